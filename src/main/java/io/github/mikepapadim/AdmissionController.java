@@ -0,0 +1,201 @@
+package io.github.mikepapadim;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Admission control of the sequences of a {@link Scheduler}, against a memory
+ * budget set through the {@code llama2.MemoryBudgetMB} property (default 0 for
+ * no limit). The footprint of the model is made of fixed parts, allocated once:
+ * the weights, the activations of the scheduler batch and the scratch of the
+ * pooled sessions, and the pages of the prefix cache; and of the KV pages of the running
+ * sequences. What is left of the budget after the fixed parts is the KV budget.
+ *
+ * <p>A sequence is admitted only if the KV pages it can grow to, up to its
+ * steps limit, fit in the KV budget along with those of the running sequences,
+ * so the KV pages in use never exceed the budget however long the sequences
+ * run. The others wait in the queue of the scheduler, which is bounded through
+ * the {@code llama2.MaxQueue} property (default 256): a sequence is rejected
+ * right away when the queue is full, or when it could not fit in the budget even
+ * alone. Under overload, the requests that are accepted thus wait at most for
+ * the queue ahead of them, and the others fail fast instead of piling up.</p>
+ *
+ * <p>The KV pages of the admitted sequences are reserved in the page pool up
+ * front, up to those of one full sequence per pooled KV cache.</p>
+ */
+public class AdmissionController {
+
+    final long budgetBytes; // 0 for no limit
+    final long weightBytes;
+    final long activationBytes; // scheduler batch and KV cache scratch
+    final long prefixCacheBytes;
+    final long kvBudgetBytes; // KV pages of the running sequences
+    final int maxQueue;
+
+    private final KVPagePool pages;
+    private final int sessionPositions;
+
+    // guarded by this
+    private long reservedBytes; // KV pages the running sequences can grow to
+    private int running;
+    private long admitted;
+    private long rejected;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    /**
+     * A snapshot of the admission statistics.
+     *
+     * @param queued
+     *            The number of sequences waiting in the queue.
+     * @param oldestWaitNanos
+     *            How long the oldest queued sequence has been waiting.
+     * @param running
+     *            The number of admitted sequences not retired yet.
+     * @param admitted
+     *            The number of sequences admitted so far.
+     * @param rejected
+     *            The number of sequences rejected so far.
+     * @param averageWaitNanos
+     *            The average time the admitted sequences waited in the queue.
+     * @param maxWaitNanos
+     *            The longest time an admitted sequence waited in the queue.
+     * @param reservedBytes
+     *            The KV bytes reserved by the running sequences.
+     * @param kvBudgetBytes
+     *            The KV budget, {@link Long#MAX_VALUE} for no limit.
+     */
+    record Stats(int queued, long oldestWaitNanos, int running, long admitted, long rejected, long averageWaitNanos, long maxWaitNanos, long reservedBytes, long kvBudgetBytes) {
+    }
+
+    /**
+     * Creates the admission controller of a scheduler, with the memory budget
+     * ({@code llama2.MemoryBudgetMB}) and the queue bound ({@code llama2.MaxQueue})
+     * set through properties, and reserves the KV pages it can admit.
+     *
+     * @param transformer
+     *            The Transformer model.
+     * @param sessions
+     *            The sessions of the scheduler.
+     * @param batchBytes
+     *            The size of the batch buffers of the scheduler.
+     * @throws IllegalStateException
+     *             If the fixed parts do not fit in the budget, or the prefix cache
+     *             in the page limit of the pool.
+     */
+    AdmissionController(Transformer transformer, SessionPool sessions, long batchBytes) {
+        this(transformer, sessions, batchBytes, Long.getLong("llama2.MemoryBudgetMB", 0) << 20, Integer.getInteger("llama2.MaxQueue", 256));
+    }
+
+    AdmissionController(Transformer transformer, SessionPool sessions, long batchBytes, long budgetBytes, int maxQueue) {
+        this.pages = transformer.kvPages;
+        this.sessionPositions = sessions.sessionPositions;
+        this.budgetBytes = budgetBytes;
+        this.weightBytes = transformer.weightBytes();
+        this.activationBytes = sessions.bytes() + batchBytes;
+        this.prefixCacheBytes = transformer.prefixCache != null ? transformer.prefixCache.budgetBytes : 0;
+        this.maxQueue = maxQueue;
+
+        long kvBudget = Long.MAX_VALUE;
+        if (budgetBytes > 0) {
+            kvBudget = budgetBytes - weightBytes - activationBytes - prefixCacheBytes;
+            if (kvBudget < pages.pageBytes) {
+                throw new IllegalStateException(String.format("memory budget of %d MB too small: weights %d MB, activations %d MB, prefix cache %d MB", budgetBytes >> 20,
+                        weightBytes >> 20, activationBytes >> 20, prefixCacheBytes >> 20));
+            }
+        }
+        if (pages.maxPages > 0) {
+            kvBudget = Math.min(kvBudget, pages.maxPages * pages.pageBytes - prefixCacheBytes);
+            if (kvBudget < pages.pageBytes) {
+                throw new IllegalStateException(String.format("KV page pool of %d pages too small: prefix cache %d MB", pages.maxPages, prefixCacheBytes >> 20));
+            }
+        }
+        this.kvBudgetBytes = kvBudget;
+
+        long sessionPages = sessions.size * (long) pagesOf(sessionPositions);
+        pages.reserve((int) Math.min(sessionPages, kvBudget / pages.pageBytes));
+    }
+
+    /**
+     * Returns the KV bytes a sequence can grow to.
+     */
+    long kvBytes(Sequence seq) {
+        return pagesOf(Math.min(seq.steps, sessionPositions)) * pages.pageBytes;
+    }
+
+    private int pagesOf(int positions) {
+        return (positions + pages.pageSize - 1) / pages.pageSize;
+    }
+
+    /**
+     * Checks that a sequence can be queued.
+     *
+     * @param seq
+     *            The submitted sequence.
+     * @param queued
+     *            The number of sequences already in the queue.
+     * @throws RejectedExecutionException
+     *             If the queue is full.
+     * @throws IllegalArgumentException
+     *             If the sequence does not fit in the KV budget.
+     */
+    synchronized void check(Sequence seq, int queued) {
+        if (maxQueue > 0 && queued >= maxQueue) {
+            rejected++;
+            throw new RejectedExecutionException("overloaded: " + queued + " requests waiting");
+        }
+        long bytes = kvBytes(seq);
+        if (bytes > kvBudgetBytes) {
+            rejected++;
+            throw new IllegalArgumentException(String.format("request needs %d KB of KV cache, the budget is %d KB", bytes >> 10, kvBudgetBytes >> 10));
+        }
+    }
+
+    /**
+     * Reserves the KV bytes of a queued sequence if they fit in the budget.
+     *
+     * @return Whether the sequence is admitted.
+     */
+    synchronized boolean tryAdmit(Sequence seq) {
+        long bytes = kvBytes(seq);
+        if (bytes > kvBudgetBytes - reservedBytes) {
+            return false;
+        }
+        reservedBytes += bytes;
+        running++;
+        admitted++;
+        long wait = System.nanoTime() - seq.submitted;
+        totalWaitNanos += wait;
+        maxWaitNanos = Math.max(maxWaitNanos, wait);
+        return true;
+    }
+
+    /**
+     * Releases the KV bytes of a retired sequence.
+     */
+    synchronized void release(Sequence seq) {
+        reservedBytes -= kvBytes(seq);
+        running--;
+    }
+
+    /**
+     * Resets the counters and the wait times of the statistics.
+     */
+    synchronized void resetStats() {
+        admitted = 0;
+        rejected = 0;
+        totalWaitNanos = 0;
+        maxWaitNanos = 0;
+    }
+
+    /**
+     * Returns the current statistics.
+     *
+     * @param queued
+     *            The number of sequences waiting in the queue.
+     * @param oldestWaitNanos
+     *            How long the oldest of them has been waiting.
+     */
+    synchronized Stats stats(int queued, long oldestWaitNanos) {
+        return new Stats(queued, oldestWaitNanos, running, admitted, rejected, admitted > 0 ? totalWaitNanos / admitted : 0, maxWaitNanos, reservedBytes, kvBudgetBytes);
+    }
+}
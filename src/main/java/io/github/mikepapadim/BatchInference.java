@@ -0,0 +1,323 @@
+package io.github.mikepapadim;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Offline batch inference over a JSONL file of prompts (Java version only). Every
+ * line of the input is a request, run through the continuous batching of a
+ * {@link Scheduler} in the batch class, with a window of requests in flight so
+ * that the batches stay full; the results are written to the output JSONL as
+ * soon as they and all the lines before them are done, so the output follows the
+ * order of the input.
+ *
+ * <p>An input line is an object with a {@code "prompt"} and optionally
+ * {@code "max_tokens"}, {@code "temperature"}, {@code "top_p"},
+ * {@code "top_k"}, {@code "seed"}, {@code "stop"} (as in the completion
+ * endpoint of {@link InferenceServer}) and an {@code "id"}, copied to the
+ * result. Blank lines are skipped, but counted in the indices of the lines. A
+ * result line has the {@code "index"} of its input line, its
+ * {@code "id"}, and either its {@code "text"}, {@code "finish_reason"} (as in
+ * the completion endpoint), {@code "prompt_tokens"} and
+ * {@code "completion_tokens"}, or an {@code "error"}.</p>
+ *
+ * <p>The progress is saved in a checkpoint file next to the output: the number
+ * of lines done, the byte offsets in the input and the output after them, and
+ * the seed of the run. A run that finds a checkpoint resumes from it: the output
+ * is truncated to its offset, the input is read from its offset, and the lines
+ * without a seed get the same seeds as in the first run.</p>
+ */
+public class BatchInference {
+
+    /**
+     * The lines saved between two checkpoints.
+     */
+    static final int CHECKPOINT_INTERVAL = 64;
+
+    final Transformer transformer;
+    final Tokenizer tokenizer;
+    final Scheduler scheduler;
+    final Path input;
+    final Path output;
+    final Path checkpoint;
+
+    // defaults of the requests
+    final float temperature;
+    final float topp;
+    final int topk;
+    final long seed;
+    final int maxTokens;
+
+    final int window; // maximum number of requests in flight
+
+    /**
+     * A line of the input, from its request to its result.
+     */
+    private final class Job implements Sequence.Listener {
+        final long index;
+        final long inputEnd; // byte offset in the input after the line
+        Object id;
+        int promptTokens;
+        final StringBuilder text = new StringBuilder();
+        int completionTokens;
+        Sequence.FinishReason finishReason;
+        String error;
+
+        Job(long index, long inputEnd) {
+            this.index = index;
+            this.inputEnd = inputEnd;
+        }
+
+        boolean isDone() {
+            return finishReason != null || error != null;
+        }
+
+        @Override
+        public void token(int token, String piece) {
+            completionTokens++;
+            text.append(piece);
+        }
+
+        @Override
+        public void finished(Sequence.FinishReason reason) {
+            finishReason = reason;
+        }
+
+        String result() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("index", (double) index);
+            if (id != null) {
+                result.put("id", id);
+            }
+            if (error != null) {
+                result.put("error", error);
+            } else {
+                result.put("text", text.toString());
+                result.put("finish_reason", InferenceServer.finishReason(finishReason));
+                result.put("prompt_tokens", (double) promptTokens);
+                result.put("completion_tokens", (double) completionTokens);
+            }
+            return Json.write(result);
+        }
+    }
+
+    /**
+     * Creates a batch run.
+     *
+     * @param transformer
+     *            The Transformer model.
+     * @param tokenizer
+     *            The tokenizer of the model.
+     * @param scheduler
+     *            The scheduler running the sequences, on the calling thread.
+     * @param input
+     *            The JSONL file of the requests.
+     * @param output
+     *            The JSONL file of the results, whose checkpoint file has the same
+     *            name followed by {@code .checkpoint}.
+     * @param temperature
+     *            The default temperature.
+     * @param topp
+     *            The default top-p.
+     * @param topk
+     *            The default top-k.
+     * @param seed
+     *            The seed of the first line without one; the next lines get the
+     *            next seeds. A resumed run keeps the seed of its checkpoint.
+     * @param maxTokens
+     *            The default maximum number of generated tokens.
+     */
+    BatchInference(Transformer transformer, Tokenizer tokenizer, Scheduler scheduler, Path input, Path output, float temperature, float topp, int topk, long seed, int maxTokens) {
+        this.transformer = transformer;
+        this.tokenizer = tokenizer;
+        this.scheduler = scheduler;
+        this.input = input;
+        this.output = output;
+        this.checkpoint = output.resolveSibling(output.getFileName() + ".checkpoint");
+        this.temperature = temperature;
+        this.topp = topp;
+        this.topk = topk;
+        this.seed = seed;
+        this.maxTokens = maxTokens;
+        // enough requests waiting to refill the sessions as they finish, within the queue bound
+        int maxQueue = scheduler.admission.maxQueue;
+        int inFlight = 2 * scheduler.sessions.size;
+        this.window = maxQueue > 0 ? Math.min(inFlight, scheduler.sessions.size + maxQueue) : inFlight;
+    }
+
+    /**
+     * Runs all the lines of the input after the checkpoint, and prints a
+     * throughput summary.
+     *
+     * @throws IOException
+     *             If the input, the output or the checkpoint cannot be read or
+     *             written.
+     */
+    void run() throws IOException {
+        long[] saved = readCheckpoint(); // lines, input offset, output offset, seed
+        long index = saved[0];
+        long inputOffset = saved[1];
+        long runSeed = saved[3];
+        if (index > 0) {
+            System.err.printf("resuming at line %d\n", index);
+        }
+
+        long start = System.nanoTime();
+        long lines = 0;
+        long errors = 0;
+        long promptTokens = 0;
+        long completionTokens = 0;
+        ArrayDeque<Job> inFlight = new ArrayDeque<>(); // in input order
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            in.position(inputOffset);
+            out.truncate(saved[2]);
+            out.position(saved[2]);
+            InputStream lineReader = new BufferedInputStream(Channels.newInputStream(in), 1 << 16);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            ByteArrayOutputStream pending = new ByteArrayOutputStream(); // results not written yet
+            boolean eof = false;
+            long sinceCheckpoint = 0;
+            while (true) {
+                while (!eof && inFlight.size() < window) {
+                    long length = readLine(lineReader, line);
+                    if (length < 0) {
+                        eof = true;
+                        break;
+                    }
+                    inputOffset += length;
+                    String text = line.toString(StandardCharsets.UTF_8).strip();
+                    if (!text.isEmpty()) {
+                        inFlight.add(submit(index, inputOffset, text, runSeed));
+                    }
+                    index++;
+                }
+                if (scheduler.isBusy()) {
+                    scheduler.step();
+                }
+                // the results done in input order
+                while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+                    Job job = inFlight.remove();
+                    pending.write((job.result() + "\n").getBytes(StandardCharsets.UTF_8));
+                    lines++;
+                    if (job.error != null) {
+                        errors++;
+                    } else {
+                        promptTokens += job.promptTokens;
+                        completionTokens += job.completionTokens;
+                    }
+                    if (++sinceCheckpoint == CHECKPOINT_INTERVAL || inFlight.isEmpty()) {
+                        out.write(ByteBuffer.wrap(pending.toByteArray()));
+                        pending.reset();
+                        // the checkpoint must not point past what is on disk
+                        out.force(false);
+                        writeCheckpoint(job.index + 1, job.inputEnd, out.position(), runSeed);
+                        sinceCheckpoint = 0;
+                    }
+                }
+                if (eof && inFlight.isEmpty()) {
+                    break;
+                }
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("batch: %d lines (%d errors) in %.1f s, %.2f lines/s\n", lines, errors, seconds, lines / seconds);
+        System.err.printf("  prompt tokens    : %d (%.1f tok/s)\n", promptTokens, promptTokens / seconds);
+        System.err.printf("  generated tokens : %d (%.1f tok/s)\n", completionTokens, completionTokens / seconds);
+    }
+
+    /**
+     * Parses a line and submits its sequence, or records why it cannot run.
+     *
+     * @param runSeed
+     *            The seed of the run, from which the lines without a seed get
+     *            theirs.
+     */
+    private Job submit(long index, long inputEnd, String line, long runSeed) {
+        Job job = new Job(index, inputEnd);
+        try {
+            Map<String, Object> request = Json.parseObject(line);
+            job.id = request.get("id");
+            if (!(request.get("prompt") instanceof String prompt)) {
+                throw new IllegalArgumentException("missing \"prompt\"");
+            }
+            int[] tokens = new int[prompt.length() * 2 + 3]; // +3 for '\0', ?BOS, ?EOS
+            tokens = Arrays.copyOf(tokens, Llama2.encode(tokenizer, prompt, true, false, tokens));
+            job.promptTokens = tokens.length;
+            int steps = scheduler.steps(tokens.length, (int) InferenceServer.number(request, "max_tokens", maxTokens));
+            long lineSeed = (long) InferenceServer.number(request, "seed", 0);
+            Sampler.Settings sampling = new Sampler.Settings((float) Math.max(InferenceServer.number(request, "temperature", temperature), 0.0),
+                    (float) InferenceServer.number(request, "top_p", topp), (int) InferenceServer.number(request, "top_k", topk), lineSeed > 0 ? lineSeed : runSeed + index);
+            scheduler.submit(new Sequence(tokens, tokens.length, steps, sampling, InferenceServer.stops(request), job, Sequence.Priority.BATCH, CancellationToken.NONE));
+        } catch (IllegalArgumentException e) {
+            job.error = e.getMessage();
+        }
+        return job;
+    }
+
+    /**
+     * Reads a line, without its end of line.
+     *
+     * @return The number of bytes read, end of line included, or -1 at the end of
+     *         the input.
+     */
+    private static long readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+        line.reset();
+        long length = 0;
+        int b;
+        while ((b = in.read()) >= 0) {
+            length++;
+            if (b == '\n') {
+                return length;
+            }
+            line.write(b);
+        }
+        return length > 0 ? length : -1;
+    }
+
+    /**
+     * Reads the checkpoint, or starts from the beginning with the seed of this
+     * run if there is none.
+     *
+     * @return The lines done, the input and output offsets, and the seed.
+     */
+    private long[] readCheckpoint() throws IOException {
+        if (!Files.exists(checkpoint)) {
+            return new long[]{0, 0, 0, seed};
+        }
+        String[] fields = Files.readString(checkpoint).strip().split(" ");
+        if (fields.length != 4) {
+            throw new IOException("Bad checkpoint: " + checkpoint);
+        }
+        try {
+            return new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3])};
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad checkpoint: " + checkpoint, e);
+        }
+    }
+
+    /**
+     * Replaces the checkpoint, atomically so that a crash leaves the previous
+     * one.
+     */
+    private void writeCheckpoint(long lines, long inputOffset, long outputOffset, long seed) throws IOException {
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.writeString(tmp, lines + " " + inputOffset + " " + outputOffset + " " + seed + "\n");
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.mikepapadim;
+
+import uk.ac.manchester.tornado.api.types.arrays.FloatArray;
+
+/**
+ * Buffers for the activations of a batch of tokens processed together by
+ * {@link InferenceEngine#forwardBatchWithJava}. Each row of the batch has its own
+ * token, position and KV cache: the rows can be consecutive tokens of one prompt
+ * (prefill) as well as tokens of different sequences.
+ */
+public class BatchState {
+    final int capacity; // maximum number of rows
+    // the rows of the activations, back to back
+    final FloatArray x; // activations (capacity, dim)
+    final FloatArray xb; // same, but inside a residual branch (capacity, dim)
+    final FloatArray xb2; // an additional buffer just for convenience (capacity, dim)
+    final FloatArray hb; // buffer for hidden dimension in the ffn (capacity, hidden_dim)
+    final FloatArray hb2; // buffer for hidden dimension in the ffn (capacity, hidden_dim)
+    final FloatArray q; // queries (capacity, dim)
+    final FloatArray k; // keys (capacity, kv_dim)
+    final FloatArray v; // values (capacity, kv_dim)
+    final float[] att; // buffer for scores/attention values (n_heads, seq_len)
+    final float[] input; // heap copy of the input rows of a batched matmul (capacity, max(dim, hidden_dim))
+    // the rows of the batch
+    final int[] tokens; // (capacity,)
+    final int[] positions; // (capacity,) positions in the KV caches
+    final KVCache[] caches; // (capacity,)
+    final LoraAdapter[] adapters; // (capacity,) null for the base model
+    final float[] lora; // scratch of the adapter updates (capacity, LoraAdapter.MAX_RANK)
+
+    /**
+     * Creates the buffers of a batch.
+     *
+     * @param config
+     *            The {@link Config} object containing transformer model
+     *            configuration.
+     * @param capacity
+     *            The maximum number of rows.
+     */
+    BatchState(Config config, int capacity) {
+        int kv_dim = (config.dim * config.n_kv_heads) / config.n_heads;
+        this.capacity = capacity;
+        this.x = new FloatArray(capacity * config.dim);
+        this.xb = new FloatArray(capacity * config.dim);
+        this.xb2 = new FloatArray(capacity * config.dim);
+        this.hb = new FloatArray(capacity * config.hidden_dim);
+        this.hb2 = new FloatArray(capacity * config.hidden_dim);
+        this.q = new FloatArray(capacity * config.dim);
+        this.k = new FloatArray(capacity * kv_dim);
+        this.v = new FloatArray(capacity * kv_dim);
+        this.att = new float[config.n_heads * config.seq_len];
+        this.input = new float[capacity * Math.max(config.dim, config.hidden_dim)];
+        this.tokens = new int[capacity];
+        this.positions = new int[capacity];
+        this.caches = new KVCache[capacity];
+        this.adapters = new LoraAdapter[capacity];
+        this.lora = new float[capacity * LoraAdapter.MAX_RANK];
+    }
+
+    /**
+     * Returns the size in bytes of the buffers of a batch.
+     */
+    static long bytes(Config config, int capacity) {
+        int kv_dim = (config.dim * config.n_kv_heads) / config.n_heads;
+        long floats = capacity * (4L * config.dim + 2L * config.hidden_dim + 2L * kv_dim + Math.max(config.dim, config.hidden_dim) + LoraAdapter.MAX_RANK) + (long) config.n_heads * config.seq_len;
+        return floats * Float.BYTES + capacity * 2L * Integer.BYTES;
+    }
+}
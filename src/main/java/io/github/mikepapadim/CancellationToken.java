@@ -0,0 +1,61 @@
+package io.github.mikepapadim;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets the caller of a generation stop it: by cancelling it from any thread,
+ * for instance when its client disconnects, or by giving it a deadline. The
+ * generation loop checks the token between two forward passes, so a cancelled
+ * or expired generation stops within one step and frees its cores and its KV
+ * cache for the others.
+ */
+public class CancellationToken {
+
+    /**
+     * A token that is never cancelled and has no deadline.
+     */
+    static final CancellationToken NONE = new CancellationToken();
+
+    final long deadline; // System.nanoTime(), Long.MAX_VALUE for none
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a token without a deadline.
+     */
+    CancellationToken() {
+        this.deadline = Long.MAX_VALUE;
+    }
+
+    /**
+     * Creates a token whose deadline is the given time from now.
+     *
+     * @param timeout
+     *            The time left, 0 or less for no deadline.
+     * @param unit
+     *            The unit of the time left.
+     */
+    CancellationToken(long timeout, TimeUnit unit) {
+        this.deadline = timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Cancels the generation. Can be called from any thread, any number of times.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns whether the deadline has passed.
+     *
+     * @param now
+     *            The current {@link System#nanoTime()}.
+     */
+    boolean isExpired(long now) {
+        return deadline != Long.MAX_VALUE && now - deadline >= 0;
+    }
+}
@@ -0,0 +1,200 @@
+package io.github.mikepapadim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Client of a {@link DaemonServer}, over one connection to its Unix domain
+ * socket. Requests on one client run one after the other; open several clients
+ * to run requests concurrently.
+ *
+ * <pre>{@code
+ * try (DaemonClient client = new DaemonClient(Path.of("llama2.sock"))) {
+ *     DaemonClient.Result result = client.complete("Once upon a time", new DaemonClient.Options().maxTokens(64),
+ *             (token, piece) -> System.out.print(piece));
+ * }
+ * }</pre>
+ */
+public class DaemonClient implements Closeable {
+
+    /**
+     * The sampler settings and limits of a request.
+     */
+    public static final class Options {
+        float temperature = 1.0f;
+        float topp = 0.9f;
+        int topk = 0;
+        long seed = 0; // random
+        int maxTokens = 256;
+        boolean batch = false;
+        int timeoutMillis = 0; // none
+        List<String> stop = List.of();
+
+        public Options temperature(float temperature) {
+            this.temperature = temperature;
+            return this;
+        }
+
+        public Options topp(float topp) {
+            this.topp = topp;
+            return this;
+        }
+
+        public Options topk(int topk) {
+            this.topk = topk;
+            return this;
+        }
+
+        public Options seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Options maxTokens(int maxTokens) {
+            this.maxTokens = maxTokens;
+            return this;
+        }
+
+        /**
+         * Runs the request in the batch class, behind the interactive requests.
+         */
+        public Options batch(boolean batch) {
+            this.batch = batch;
+            return this;
+        }
+
+        /**
+         * Sets the deadline of the request, after which it finishes with
+         * "deadline"; 0 for none.
+         */
+        public Options timeoutMillis(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        public Options stop(List<String> stop) {
+            this.stop = List.copyOf(stop);
+            return this;
+        }
+    }
+
+    /**
+     * Receives the generated tokens as they arrive.
+     */
+    @FunctionalInterface
+    public interface TokenListener {
+        void token(int token, String piece);
+    }
+
+    /**
+     * The end of a completion.
+     *
+     * @param finishReason
+     *            "eos", "length", "stop", "cancelled" or "deadline".
+     * @param promptTokens
+     *            The number of prompt tokens.
+     * @param completionTokens
+     *            The number of generated tokens.
+     */
+    public record Result(String finishReason, int promptTokens, int completionTokens) {
+    }
+
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final DaemonProtocol.Payload payload = new DaemonProtocol.Payload();
+
+    /**
+     * Connects to a daemon.
+     *
+     * @param socket
+     *            The path of the socket file of the daemon.
+     * @throws IOException
+     *             If the connection fails.
+     */
+    public DaemonClient(Path socket) throws IOException {
+        this.channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.connect(UnixDomainSocketAddress.of(socket));
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    /**
+     * Completes a text prompt, which is encoded by the daemon with a leading BOS.
+     *
+     * @throws IOException
+     *             If the connection fails, or the daemon rejects the request.
+     */
+    public Result complete(String prompt, Options options, TokenListener listener) throws IOException {
+        writeOptions(DaemonProtocol.PROMPT_TEXT, options);
+        DaemonProtocol.writeString(payload.data, prompt);
+        return send(listener);
+    }
+
+    /**
+     * Completes a prompt given as token ids, starting with BOS.
+     *
+     * @throws IOException
+     *             If the connection fails, or the daemon rejects the request.
+     */
+    public Result complete(int[] promptTokens, Options options, TokenListener listener) throws IOException {
+        writeOptions(DaemonProtocol.PROMPT_TOKENS, options);
+        payload.data.writeInt(promptTokens.length);
+        for (int token : promptTokens) {
+            payload.data.writeInt(token);
+        }
+        return send(listener);
+    }
+
+    private void writeOptions(byte kind, Options options) throws IOException {
+        payload.reset();
+        payload.data.writeByte(kind);
+        payload.data.writeFloat(options.temperature);
+        payload.data.writeFloat(options.topp);
+        payload.data.writeInt(options.topk);
+        payload.data.writeLong(options.seed);
+        payload.data.writeInt(options.maxTokens);
+        payload.data.writeByte(options.batch ? Sequence.Priority.BATCH.ordinal() : Sequence.Priority.INTERACTIVE.ordinal());
+        payload.data.writeInt(options.timeoutMillis);
+        payload.data.writeInt(options.stop.size());
+        for (String s : options.stop) {
+            DaemonProtocol.writeString(payload.data, s);
+        }
+    }
+
+    private Result send(TokenListener listener) throws IOException {
+        payload.writeTo(out);
+        while (true) {
+            byte[] frame = DaemonProtocol.readFrame(in);
+            if (frame == null) {
+                throw new IOException("Connection closed by the daemon");
+            }
+            DataInputStream response = new DataInputStream(new ByteArrayInputStream(frame));
+            switch (response.readByte()) {
+                case DaemonProtocol.TOKEN -> listener.token(response.readInt(), DaemonProtocol.readString(response));
+                case DaemonProtocol.DONE -> {
+                    String reason = Sequence.FinishReason.values()[response.readByte()].name().toLowerCase();
+                    return new Result(reason, response.readInt(), response.readInt());
+                }
+                case DaemonProtocol.ERROR -> throw new IOException(DaemonProtocol.readString(response));
+                default -> throw new IOException("Unknown frame");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,98 @@
+package io.github.mikepapadim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol between {@link DaemonServer} and {@link DaemonClient}.
+ * Every message is a frame made of its length in bytes (int) and its payload;
+ * all the numbers are big-endian and the strings are UTF-8, prefixed with their
+ * length in bytes (int).
+ *
+ * <p>A request payload is: the prompt kind (byte, {@link #PROMPT_TEXT} or
+ * {@link #PROMPT_TOKENS}), temperature (float), top-p (float), top-k (int),
+ * seed (long, 0 for a random one), the maximum number of generated tokens
+ * (int), the priority (byte, {@link Sequence.Priority} ordinal), the deadline
+ * in milliseconds (int, 0 for none), the number of stop sequences (int) and the
+ * stop sequences (strings), then the prompt: a string, or a number of tokens (int) and the token ids
+ * (ints), starting with BOS.</p>
+ *
+ * <p>The response is a frame per generated token: {@link #TOKEN}, the token id
+ * (int) and its text (string); then a last frame, {@link #DONE} with the
+ * finish reason (byte, {@link Sequence.FinishReason} ordinal), the number of
+ * prompt tokens (int) and of generated tokens (int), or {@link #ERROR} with a
+ * message (string). A connection can carry several requests, one after the
+ * other; closing it cancels the request in progress.</p>
+ */
+public final class DaemonProtocol {
+
+    public static final byte PROMPT_TEXT = 1;
+    public static final byte PROMPT_TOKENS = 2;
+
+    public static final byte TOKEN = 1;
+    public static final byte DONE = 2;
+    public static final byte ERROR = 3;
+
+    /**
+     * The largest frame accepted, to reject corrupted lengths.
+     */
+    static final int MAX_FRAME_BYTES = 64 << 20;
+
+    private DaemonProtocol() {
+    }
+
+    /**
+     * Reads the payload of a frame.
+     *
+     * @return The payload, or null at the end of the stream.
+     * @throws IOException
+     *             If an I/O error occurs, or the frame is too large.
+     */
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad frame length: " + length);
+        }
+        return in.readNBytes(length);
+    }
+
+    /**
+     * A payload being written, reused from frame to frame.
+     */
+    static final class Payload extends ByteArrayOutputStream {
+        final DataOutputStream data = new DataOutputStream(this);
+
+        /**
+         * Writes the payload as a frame and flushes it, then clears the payload.
+         */
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(count);
+            out.write(buf, 0, count);
+            out.flush();
+            reset();
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IOException("Bad string length: " + length);
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,261 @@
+package io.github.mikepapadim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Daemon serving completions of one loaded model over a Unix domain socket, with
+ * the length-prefixed binary protocol of {@link DaemonProtocol} (Java version
+ * only). It is the low-latency path for local callers: no HTTP nor JSON framing,
+ * and every token is sent as a small binary frame as soon as it is generated.
+ *
+ * <p>Every connection is served by its own virtual thread, which submits the
+ * requests to the shared {@link Scheduler}, while another virtual thread reads
+ * the requests ahead: when the client closes the connection, its request in
+ * progress is cancelled at the next step of the scheduler instead of running to
+ * its end.</p>
+ */
+public class DaemonServer {
+
+    final Transformer transformer;
+    final Tokenizer tokenizer;
+    final Scheduler scheduler;
+    final String model;
+    final Path path;
+    final ResponseCache responses; // null unless enabled
+
+    private final ServerSocketChannel channel;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Creates a daemon listening on a socket file, replacing a stale one.
+     *
+     * @param transformer
+     *            The Transformer model.
+     * @param tokenizer
+     *            The tokenizer of the model.
+     * @param scheduler
+     *            The scheduler running the sequences, started by
+     *            {@link #start()}.
+     * @param model
+     *            The name of the model, part of the keys of the response cache.
+     * @param path
+     *            The path of the socket file.
+     * @throws IOException
+     *             If the socket cannot be bound.
+     */
+    DaemonServer(Transformer transformer, Tokenizer tokenizer, Scheduler scheduler, String model, Path path) throws IOException {
+        this.transformer = transformer;
+        this.tokenizer = tokenizer;
+        this.scheduler = scheduler;
+        this.model = model;
+        this.path = path;
+        this.responses = ResponseCache.create();
+        Files.deleteIfExists(path);
+        this.channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(path));
+    }
+
+    /**
+     * Starts the scheduler thread and accepts connections on a new thread.
+     */
+    void start() {
+        scheduler.start();
+        Thread.ofPlatform().name("llama2-daemon").start(() -> {
+            while (channel.isOpen()) {
+                try {
+                    SocketChannel connection = channel.accept();
+                    executor.submit(() -> serve(connection));
+                } catch (IOException e) {
+                    if (channel.isOpen()) {
+                        System.err.println("accept failed: " + e.getMessage());
+                    }
+                }
+            }
+        });
+        System.err.printf("listening on %s\n", path);
+    }
+
+    /**
+     * Closes the socket, deletes its file, and stops the scheduler.
+     */
+    void stop() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+        scheduler.close();
+        executor.shutdown();
+    }
+
+    /**
+     * The requests of a connection read ahead, and the request in progress.
+     */
+    private static final class Connection {
+        static final byte[] END = new byte[0];
+
+        final LinkedBlockingQueue<byte[]> requests = new LinkedBlockingQueue<>(); // then END
+        private volatile Runnable current = () -> {
+        }; // stops the request in progress
+        private volatile boolean closed;
+
+        void track(Runnable cancel) {
+            current = cancel;
+            // the client may have gone away before the request started
+            if (closed) {
+                cancel.run();
+            }
+        }
+
+        void close() {
+            closed = true;
+            current.run();
+            requests.add(END);
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        Connection connection = new Connection();
+        try (channel) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            Thread.ofVirtual().start(() -> {
+                try {
+                    byte[] frame;
+                    while ((frame = DaemonProtocol.readFrame(in)) != null) {
+                        connection.requests.add(frame);
+                    }
+                } catch (IOException e) {
+                    // the client went away
+                }
+                connection.close();
+            });
+            DaemonProtocol.Payload payload = new DaemonProtocol.Payload();
+            byte[] request;
+            while ((request = connection.requests.take()) != Connection.END) {
+                handle(request, out, payload, connection);
+            }
+        } catch (IOException e) {
+            // the client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void handle(byte[] request, DataOutputStream out, DaemonProtocol.Payload payload, Connection connection) throws IOException, InterruptedException {
+        TokenQueue queue = new TokenQueue();
+        int[] promptTokens;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+            byte kind = in.readByte();
+            float temperature = in.readFloat();
+            float topp = in.readFloat();
+            int topk = in.readInt();
+            long seed = in.readLong();
+            int maxTokens = in.readInt();
+            byte priority = in.readByte();
+            if (priority < 0 || priority >= Sequence.Priority.values().length) {
+                throw new IllegalArgumentException("unknown priority: " + priority);
+            }
+            int timeoutMillis = in.readInt();
+            String[] stops = new String[readCount(in, Integer.BYTES)]; // a length each
+            for (int i = 0; i < stops.length; i++) {
+                stops[i] = DaemonProtocol.readString(in);
+            }
+            promptTokens = switch (kind) {
+                case DaemonProtocol.PROMPT_TEXT -> {
+                    String text = DaemonProtocol.readString(in);
+                    int[] tokens = new int[text.length() * 2 + 3]; // +3 for '\0', ?BOS, ?EOS
+                    yield Arrays.copyOf(tokens, Llama2.encode(tokenizer, text, true, false, tokens));
+                }
+                case DaemonProtocol.PROMPT_TOKENS -> {
+                    int[] tokens = new int[readCount(in, Integer.BYTES)];
+                    for (int i = 0; i < tokens.length; i++) {
+                        tokens[i] = in.readInt();
+                        if (tokens[i] < 0 || tokens[i] >= transformer.config.vocab_size) {
+                            throw new IllegalArgumentException("token out of range: " + tokens[i]);
+                        }
+                    }
+                    if (tokens.length == 0) {
+                        throw new IllegalArgumentException("empty prompt");
+                    }
+                    yield tokens;
+                }
+                default -> throw new IllegalArgumentException("unknown prompt kind: " + kind);
+            };
+            int steps = scheduler.steps(promptTokens.length, maxTokens);
+            float temp = Math.max(temperature, 0.0f);
+            Sampler.Settings sampling = new Sampler.Settings(temp, topp, topk, seed > 0 ? seed : System.nanoTime());
+            CancellationToken cancellation = new CancellationToken(timeoutMillis, TimeUnit.MILLISECONDS);
+            int[] tokens = promptTokens;
+            Function<Sequence.Listener, Sequence> sequence = listener -> new Sequence(tokens, tokens.length, steps, sampling, stops, listener, Sequence.Priority.values()[priority],
+                    cancellation);
+            ResponseCache.Key key = responses != null ? ResponseCache.key(model, tokens, temp, topp, topk, seed, steps, stops) : null;
+            if (key != null) {
+                ResponseCache.Entry entry = responses.submit(key, scheduler, queue, sequence);
+                connection.track(() -> entry.unsubscribe(queue));
+            } else {
+                scheduler.submit(sequence.apply(queue));
+                connection.track(cancellation::cancel);
+            }
+        } catch (IllegalArgumentException | IOException | RejectedExecutionException e) {
+            // a malformed or rejected request is answered, the connection stays usable
+            payload.data.writeByte(DaemonProtocol.ERROR);
+            DaemonProtocol.writeString(payload.data, String.valueOf(e.getMessage()));
+            payload.writeTo(out);
+            return;
+        }
+
+        Object event;
+        while ((event = queue.take()) instanceof TokenQueue.Token token) {
+            payload.data.writeByte(DaemonProtocol.TOKEN);
+            payload.data.writeInt(token.token());
+            DaemonProtocol.writeString(payload.data, token.piece());
+            payload.writeTo(out);
+        }
+        payload.data.writeByte(DaemonProtocol.DONE);
+        payload.data.writeByte(((Sequence.FinishReason) event).ordinal());
+        payload.data.writeInt(promptTokens.length);
+        payload.data.writeInt(queue.count());
+        payload.writeTo(out);
+    }
+
+    /**
+     * Reads the element count of an array of the request, checked against what
+     * is left of the request, so that a bad count is answered with an error
+     * instead of allocating an array of that size.
+     *
+     * @param in
+     *            The rest of the request.
+     * @param elementBytes
+     *            The minimum size of an element.
+     * @throws IllegalArgumentException
+     *             If the count is negative, or more than the rest of the request
+     *             can hold.
+     */
+    private static int readCount(DataInputStream in, int elementBytes) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / elementBytes) {
+            throw new IllegalArgumentException("bad count: " + count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,33 @@
+package io.github.mikepapadim;
+
+import java.util.Arrays;
+
+/**
+ * Heavy-hitter (H2O) eviction: half of the kept positions are the most recent
+ * ones, the other half are the older positions that have received the largest
+ * cumulative attention weight, which typically include the first tokens of the
+ * sequence (attention sinks).
+ */
+public class HeavyHitterEviction extends KVEvictionPolicy {
+
+    private final float[] values;
+
+    HeavyHitterEviction(Config config, int budget) {
+        super(config, budget);
+        this.values = new float[budget];
+    }
+
+    @Override
+    void select(int layer, int kvHead, int length, int[] keep, int numKeep) {
+        int recent = numKeep / 2;
+        int heavy = numKeep - recent;
+        int size = 0;
+        for (int t = 0; t < length - recent; t++) {
+            size = MatrixVectorCollection.heapOffer(keep, values, size, heavy, t, score(layer, kvHead, t));
+        }
+        Arrays.sort(keep, 0, size);
+        for (int t = length - recent; t < length; t++) {
+            keep[size++] = t;
+        }
+    }
+}
@@ -21,6 +21,8 @@ public class InferenceEngine {
      *
      * @param transformer
      *            The Transformer model to use for inference.
+     * @param state
+     *            The run state of the session.
      * @param token
      *            The input token for processing.
      * @param pos
@@ -29,15 +31,14 @@ public class InferenceEngine {
      *            The list of TornadoExecutionPlan objects for execution.
      * @return The output logits produced by the Transformer model.
      */
-    static MemorySegment forwardWithTornadoVM(Transformer transformer, int token, int pos, TornadoExecutionPlan executionPlan) {
+    static MemorySegment forwardWithTornadoVM(Transformer transformer, RunState state, int token, int pos, TornadoExecutionPlan executionPlan) {
         Config p = transformer.config;
         WeightsFP32 w = (WeightsFP32) transformer.weights;
-        RunStateFloat s = (RunStateFloat) transformer.state;
+        RunStateFloat s = (RunStateFloat) state;
         int dim = p.dim;
         int hidden_dim = p.hidden_dim;
         int head_size = p.head_size;
         int kv_dim = (p.dim * p.n_kv_heads) / p.n_heads;
-        int kv_mul = p.n_heads / p.n_kv_heads; // integer multiplier of the kv sharing in multiquery
 
         // copy the token embedding into x
         // w.token_embedding_table.get(token * dim, s.x, 0, dim);
@@ -76,64 +77,10 @@ public class InferenceEngine {
             }
 
             // save key,value at this time step (pos) to our kv cache
-            // int loff = l * p.seq_len * kv_dim; // kv cache layer offset for convenience
-            //System.arraycopy(s.k, 0, s.key_cache[l], pos * kv_dim, kv_dim);
-            //System.arraycopy(s.v, 0, s.value_cache[l], pos * kv_dim, kv_dim);
-            copyMemObjects(s.k, 0, s.key_cache[l], pos * kv_dim, kv_dim);
-            copyMemObjects(s.v, 0, s.value_cache[l], pos * kv_dim, kv_dim);
-
-
-            final int curLayer = l;
+            s.kv.store(l, pos, s.k.getSegment(), s.v.getSegment());
 
             // multihead attention. iterate over all heads
-            IntStream.range(0, p.n_heads).parallel().forEach(h -> {
-                // get the query vector for this head
-                // float* q = s.q + h * head_size;
-                int qOffset = h * head_size;
-
-                // attention scores for this head
-                // float* att = s.att + h * p.seq_len;
-                int attOffset = h * p.seq_len;
-
-                // iterate over all timesteps, including the current one
-                for (int t = 0; t <= pos; t++) {
-                    // get the key vector for this head and at this timestep
-                    // float* k = s->key_cache + loff + t * kv_dim + (h / kv_mul) * head_size;
-                    int keyCacheOffset = t * kv_dim + (h / kv_mul) * head_size;
-                    // calculate the attention score as the dot product of q and k
-                    float score = 0.0f;
-                    for (int i = 0; i < head_size; i++) {
-                        //score += s.q[qOffset + i] * s.key_cache[curLayer][keyCacheOffset + i];
-                        score += s.q.get(qOffset + i) * s.key_cache[curLayer][keyCacheOffset + i];
-                    }
-                    score /= (float) Math.sqrt(head_size);
-                    // save the score to the attention buffer
-                    s.att[attOffset + t] = score;
-                }
-
-                // softmax the scores to get attention weights, from 0..pos inclusively
-                softmax(s.att, attOffset, pos + 1);
-
-                // weighted sum of the values, store back into xb
-                // float* xb = s.xb + h * head_size;
-                int xbOffset = h * head_size;
-                // memset(xb, 0, head_size * sizeof(float));
-                //Arrays.fill(s.xb, xbOffset, xbOffset + head_size, 0f);
-                segmentFill(s.xb, xbOffset, xbOffset + head_size, 0f);
-
-                for (int t = 0; t <= pos; t++) {
-                    // get the value vector for this head and at this timestep
-                    // float* v = s->value_cache + loff + t * kv_dim + (h / kv_mul) * head_size;
-                    int vOffset = t * kv_dim + (h / kv_mul) * head_size;
-                    // get the attention weight for this timestep
-                    float a = s.att[attOffset + t];
-                    // accumulate the weighted value inconfigto xb
-                    for (int i = 0; i < head_size; i++) {
-                        float acc = s.xb.get(xbOffset + i);
-                        s.xb.set(xbOffset + i, (acc + (a * s.value_cache[curLayer][vOffset + i])));
-                    }
-                }
-            });
+            attention(p, s.kv, l, pos, s.q.getSegment(), s.xb.getSegment(), s.att);
 
             // final matmul to get the output of the attention
             MatrixVectorCollection.matmul(s.xb2, s.xb, w.wo[l], dim, dim);
@@ -172,15 +119,40 @@ public class InferenceEngine {
         return s.logits.getSegment();
     }
 
-    static MemorySegment forwardWithJava(Transformer transformer, int token, int pos) {
+    static MemorySegment forwardWithJava(Transformer transformer, RunState state, int token, int pos) {
+        Config p = transformer.config;
+        WeightsFP32 w = (WeightsFP32) transformer.weights;
+        RunStateFloat s = (RunStateFloat) state;
+
+        forwardLayersWithJava(transformer, state, token, pos);
+
+        // Final Matrix-Vector
+        MatrixVectorCollection.matmul(s.logits, s.x, w.wcls, p.dim, p.vocab_size);
+
+        return s.logits.getSegment();
+    }
+
+    /**
+     * Runs all the transformer layers and the final rmsnorm for one token, leaving
+     * the normalized activation in {@code s.x}. The classifier is not applied.
+     *
+     * @param transformer
+     *            The Transformer model to use for inference.
+     * @param state
+     *            The run state of the session.
+     * @param token
+     *            The input token for processing.
+     * @param pos
+     *            The position of the input token in the sequence.
+     */
+    static void forwardLayersWithJava(Transformer transformer, RunState state, int token, int pos) {
         Config p = transformer.config;
         WeightsFP32 w = (WeightsFP32) transformer.weights;
-        RunStateFloat s = (RunStateFloat) transformer.state;
+        RunStateFloat s = (RunStateFloat) state;
         int dim = p.dim;
         int hidden_dim = p.hidden_dim;
         int head_size = p.head_size;
         int kv_dim = (p.dim * p.n_kv_heads) / p.n_heads;
-        int kv_mul = p.n_heads / p.n_kv_heads; // integer multiplier of the kv sharing in multiquery
 
         // copy the token embedding into x
         // w.token_embedding_table.get(token * dim, s.x, 0, dim);
@@ -219,64 +191,10 @@ public class InferenceEngine {
             }
 
             // save key,value at this time step (pos) to our kv cache
-            // int loff = l * p.seq_len * kv_dim; // kv cache layer offset for convenience
-            //System.arraycopy(s.k, 0, s.key_cache[l], pos * kv_dim, kv_dim);
-            //System.arraycopy(s.v, 0, s.value_cache[l], pos * kv_dim, kv_dim);
-            copyMemObjects(s.k, 0, s.key_cache[l], pos * kv_dim, kv_dim);
-            copyMemObjects(s.v, 0, s.value_cache[l], pos * kv_dim, kv_dim);
-
-
-            final int curLayer = l;
+            s.kv.store(l, pos, s.k.getSegment(), s.v.getSegment());
 
             // multihead attention. iterate over all heads
-            IntStream.range(0, p.n_heads).parallel().forEach(h -> {
-                // get the query vector for this head
-                // float* q = s.q + h * head_size;
-                int qOffset = h * head_size;
-
-                // attention scores for this head
-                // float* att = s.att + h * p.seq_len;
-                int attOffset = h * p.seq_len;
-
-                // iterate over all timesteps, including the current one
-                for (int t = 0; t <= pos; t++) {
-                    // get the key vector for this head and at this timestep
-                    // float* k = s->key_cache + loff + t * kv_dim + (h / kv_mul) * head_size;
-                    int keyCacheOffset = t * kv_dim + (h / kv_mul) * head_size;
-                    // calculate the attention score as the dot product of q and k
-                    float score = 0.0f;
-                    for (int i = 0; i < head_size; i++) {
-                        //score += s.q[qOffset + i] * s.key_cache[curLayer][keyCacheOffset + i];
-                        score += s.q.get(qOffset + i) * s.key_cache[curLayer][keyCacheOffset + i];
-                    }
-                    score /= (float) Math.sqrt(head_size);
-                    // save the score to the attention buffer
-                    s.att[attOffset + t] = score;
-                }
-
-                // softmax the scores to get attention weights, from 0..pos inclusively
-                softmax(s.att, attOffset, pos + 1);
-
-                // weighted sum of the values, store back into xb
-                // float* xb = s.xb + h * head_size;
-                int xbOffset = h * head_size;
-                // memset(xb, 0, head_size * sizeof(float));
-                //Arrays.fill(s.xb, xbOffset, xbOffset + head_size, 0f);
-                segmentFill(s.xb, xbOffset, xbOffset + head_size, 0f);
-
-                for (int t = 0; t <= pos; t++) {
-                    // get the value vector for this head and at this timestep
-                    // float* v = s->value_cache + loff + t * kv_dim + (h / kv_mul) * head_size;
-                    int vOffset = t * kv_dim + (h / kv_mul) * head_size;
-                    // get the attention weight for this timestep
-                    float a = s.att[attOffset + t];
-                    // accumulate the weighted value inconfigto xb
-                    for (int i = 0; i < head_size; i++) {
-                        float acc = s.xb.get(xbOffset + i);
-                        s.xb.set(xbOffset + i, (acc + (a * s.value_cache[curLayer][vOffset + i])));
-                    }
-                }
-            });
+            attention(p, s.kv, l, pos, s.q.getSegment(), s.xb.getSegment(), s.att);
 
             // final matmul to get the output of the attention
             MatrixVectorCollection.matmul(s.xb2, s.xb, w.wo[l], dim, dim);
@@ -294,54 +212,235 @@ public class InferenceEngine {
             fusedSiluEwiseMul(hidden_dim, s.hb, s.hb2);
 
             // final matmul to get the output of the ffn
-            MatrixVectorCollection.matmul(s.xb, s.hb, w.w2[l], p.hidden_dim, dim);
+            if (s.sparseFFNStats != null) {
+                // skip the w2 columns of the near-zero activations
+                int active = MatrixVectorCollection.matmulSparse(s.xb, s.hb, w.w2t[l], p.hidden_dim, dim, Llama2.SPARSE_FFN_THRESHOLD, s.active);
+                s.sparseFFNStats.recordSparsity(l, active, p.hidden_dim);
+                if (s.sparseFFNStats.isChecked(pos)) {
+                    // compare against the dense projection (xb2 is free until the next layer)
+                    MatrixVectorCollection.matmul(s.xb2, s.hb, w.w2[l], p.hidden_dim, dim);
+                    s.sparseFFNStats.recordError(l, s.xb, s.xb2, dim);
+                }
+            } else {
+                MatrixVectorCollection.matmul(s.xb, s.hb, w.w2[l], p.hidden_dim, dim);
+            }
 
             residualConnection(s.x, s.xb, dim);
         }
 
         // final rmsnorm
         rmsnorm(s.x, s.x, w.rms_final_weight, dim);
+    }
 
-        // Final Matrix-Vector
-        MatrixVectorCollection.matmul(s.logits, s.x, w.wcls, dim, p.vocab_size);
+    /**
+     * Runs all the transformer layers and the final rmsnorm for a batch of tokens,
+     * leaving the normalized activations in the rows of {@code b.x}. Every
+     * projection is a matrix-matrix product over the rows of the batch (see
+     * {@link MatrixVectorCollection#matmul(FloatArray, FloatArray, FloatBuffer, int, int, int)}),
+     * so the weights are read once per batch instead of once per token, and the
+     * rows with a {@link LoraAdapter} get its low-rank update added to each
+     * adapted projection. The keys and values of all the rows of a layer are
+     * stored before the attention, so rows that are consecutive positions of the
+     * same KV cache attend causally to each other. The classifier is not applied,
+     * and the FFN down projection is always dense, whatever
+     * {@link Llama2#USE_SPARSE_FFN}.
+     *
+     * @param transformer
+     *            The Transformer model to use for inference.
+     * @param b
+     *            The batch, with the token, position and KV cache of each row.
+     * @param rows
+     *            The number of rows of the batch.
+     */
+    static void forwardBatchWithJava(Transformer transformer, BatchState b, int rows) {
+        Config p = transformer.config;
+        WeightsFP32 w = (WeightsFP32) transformer.weights;
+        int dim = p.dim;
+        int hidden_dim = p.hidden_dim;
+        int head_size = p.head_size;
+        int kv_dim = (p.dim * p.n_kv_heads) / p.n_heads;
+        boolean lora = LoraAdapter.any(b.adapters, rows);
 
-        return s.logits.getSegment();
-    }
+        // copy the token embeddings into the rows of x
+        for (int r = 0; r < rows; r++) {
+            for (int i = 0; i < dim; i++) {
+                b.x.set(r * dim + i, w.token_embedding_table.get(b.tokens[r] * dim + i));
+            }
+        }
+
+        // forward all the layers
+        for (int l = 0; l < p.n_layers; l++) {
+
+            // attention rmsnorm
+            for (int r = 0; r < rows; r++) {
+                rmsnorm(b.xb, b.x, w.rms_att_weight[l], dim, r * dim);
+            }
+
+            // qkv matmuls for all the rows
+            MatrixVectorCollection.matmul(b.q, b.xb, w.wq[l], dim, dim, rows, b.input);
+            if (lora) {
+                LoraAdapter.apply(b.adapters, LoraAdapter.WQ, l, b.q, b.input, dim, dim, rows, b.lora);
+            }
+            MatrixVectorCollection.matmul(b.k, b.xb, w.wk[l], dim, kv_dim, rows, b.input);
+            if (lora) {
+                LoraAdapter.apply(b.adapters, LoraAdapter.WK, l, b.k, b.input, dim, kv_dim, rows, b.lora);
+            }
+            MatrixVectorCollection.matmul(b.v, b.xb, w.wv[l], dim, kv_dim, rows, b.input);
+            if (lora) {
+                LoraAdapter.apply(b.adapters, LoraAdapter.WV, l, b.v, b.input, dim, kv_dim, rows, b.lora);
+            }
 
-    private static void copyMemObjects(MemObject source, final int index, float[] dest, final int destIndex, final int length) {
-        int j = destIndex;
-        for (int i = index; i < length; i++) {
-            dest[j++] = source.get(i);
+            for (int r = 0; r < rows; r++) {
+                // RoPE relative positional encoding: complex-valued rotate q and k in each head
+                int pos = b.positions[r];
+                for (int i = 0; i < dim; i += 2) {
+                    int head_dim = i % head_size;
+                    float freq = (float) (1.0 / Math.pow(10000.0f, head_dim / (float) head_size));
+                    float val = pos * freq;
+                    float fcr = (float) Math.cos(val);
+                    float fci = (float) Math.sin(val);
+                    int rotn = i < kv_dim ? 2 : 1; // how many vectors? 2 = q & k, 1 = q only
+                    for (int v = 0; v < rotn; v++) {
+                        FloatArray vec = v == 0 ? b.q : b.k; // the rows to rotate (queries or keys)
+                        int index = (v == 0 ? r * dim : r * kv_dim) + i;
+                        float v0 = vec.get(index);
+                        float v1 = vec.get(index + 1);
+                        vec.set(index, (v0 * fcr - v1 * fci));
+                        vec.set(index + 1, (v0 * fci + v1 * fcr));
+                    }
+                }
+
+                // save key,value of this row to its kv cache
+                long kvBytes = (long) kv_dim * Float.BYTES;
+                b.caches[r].store(l, pos, b.k.getSegment().asSlice(r * kvBytes, kvBytes), b.v.getSegment().asSlice(r * kvBytes, kvBytes));
+            }
+
+            // multihead attention of every row over its kv cache
+            long rowBytes = (long) dim * Float.BYTES;
+            for (int r = 0; r < rows; r++) {
+                attention(p, b.caches[r], l, b.positions[r], b.q.getSegment().asSlice(r * rowBytes, rowBytes), b.xb.getSegment().asSlice(r * rowBytes, rowBytes), b.att);
+            }
+
+            // final matmul to get the output of the attention
+            MatrixVectorCollection.matmul(b.xb2, b.xb, w.wo[l], dim, dim, rows, b.input);
+            if (lora) {
+                LoraAdapter.apply(b.adapters, LoraAdapter.WO, l, b.xb2, b.input, dim, dim, rows, b.lora);
+            }
+
+            residualConnection(b.x, b.xb2, rows * dim, 0);
+
+            // ffn rmsnorm
+            for (int r = 0; r < rows; r++) {
+                rmsnorm(b.xb, b.x, w.rms_ffn_weight[l], dim, r * dim);
+            }
+
+            // Now for FFN in PyTorch we have: self.w2(F.silu(self.w1(x)) * self.w3(x))
+            // first calculate self.w1(x) and self.w3(x)
+            MatrixVectorCollection.matmul(b.hb, b.xb, w.w1[l], dim, hidden_dim, rows, b.input);
+            if (lora) {
+                LoraAdapter.apply(b.adapters, LoraAdapter.W1, l, b.hb, b.input, dim, hidden_dim, rows, b.lora);
+            }
+            MatrixVectorCollection.matmul(b.hb2, b.xb, w.w3[l], dim, hidden_dim, rows, b.input);
+            if (lora) {
+                LoraAdapter.apply(b.adapters, LoraAdapter.W3, l, b.hb2, b.input, dim, hidden_dim, rows, b.lora);
+            }
+
+            fusedSiluEwiseMul(rows * hidden_dim, b.hb, b.hb2, 0);
+
+            // final matmul to get the output of the ffn
+            MatrixVectorCollection.matmul(b.xb, b.hb, w.w2[l], hidden_dim, dim, rows, b.input);
+            if (lora) {
+                LoraAdapter.apply(b.adapters, LoraAdapter.W2, l, b.xb, b.input, hidden_dim, dim, rows, b.lora);
+            }
+
+            residualConnection(b.x, b.xb, rows * dim, 0);
         }
-    }
 
-    private static void copyMemObjects(FloatArray source, final int index, float[] dest, final int destIndex, final int length) {
-        int j = destIndex;
-        for (int i = index; i < length; i++) {
-            dest[j++] = source.get(i);
+        // final rmsnorm
+        for (int r = 0; r < rows; r++) {
+            rmsnorm(b.x, b.x, w.rms_final_weight, dim, r * dim);
         }
     }
 
-    private static void segmentFill(MemObject memObject, int fromIndex, int toIndex, float value) {
-        for (int i = fromIndex; i < toIndex; i++)
-            memObject.set(i, value);
+    /**
+     * Samples the next token by running the classifier fused with greedy or top-k
+     * sampling: each worker keeps a running argmax (or a top-k heap) over its rows
+     * of {@code wcls}, so the logits are never written out nor scanned again.
+     *
+     * @param transformer
+     *            The Transformer model to use for inference.
+     * @param x
+     *            The normalized activation of the current token, e.g., {@code s.x}
+     *            after {@link #forwardLayersWithJava}.
+     * @param sampler
+     *            The sampler, configured for greedy or top-k sampling.
+     * @return The sampled token.
+     */
+    static int sampleWithFusedClassifier(Transformer transformer, FloatArray x, Sampler sampler) {
+        Config p = transformer.config;
+        WeightsFP32 w = (WeightsFP32) transformer.weights;
+        if (sampler.temperature == 0.0f) {
+            return MatrixVectorCollection.matmulArgmax(x, w.wcls, p.dim, p.vocab_size, sampler.block_index, sampler.block_value);
+        }
+        int n = MatrixVectorCollection.matmulTopK(x, w.wcls, p.dim, p.vocab_size, sampler.topk, sampler.topk_indices, sampler.topk_values, sampler.block_indices, sampler.block_values,
+                sampler.block_sizes);
+        return Llama2.sample_topk(sampler, n);
     }
 
-    private static void segmentFill(FloatArray memObject, int fromIndex, int toIndex, float value) {
-        for (int i = fromIndex; i < toIndex; i++)
-            memObject.set(i, value);
+    /**
+     * Multihead attention of the token at position {@code pos} over the KV cache of
+     * one layer, storing the output of every head into {@code xb}. The heads are
+     * processed in parallel.
+     *
+     * @param p
+     *            The configuration of the Transformer model.
+     * @param kv
+     *            The KV cache, already holding the key and value of {@code pos}.
+     * @param layer
+     *            The layer to attend over.
+     * @param pos
+     *            The position of the current token in the sequence.
+     * @param q
+     *            The query vector (dim,).
+     * @param xb
+     *            The output vector (dim,).
+     * @param att
+     *            The buffer for the attention scores (n_heads, seq_len).
+     */
+    private static void attention(Config p, KVCache kv, int layer, int pos, MemorySegment q, MemorySegment xb, float[] att) {
+        int head_size = p.head_size;
+        int kv_mul = p.n_heads / p.n_kv_heads; // integer multiplier of the kv sharing in multiquery
+        IntStream.range(0, p.n_heads).parallel().forEach(h -> {
+            // the query vector and the output of this head
+            // float* q = s.q + h * head_size;
+            int qOffset = h * head_size;
+            // attention scores for this head
+            // float* att = s.att + h * p.seq_len;
+            int attOffset = h * p.seq_len;
+
+            // iterate over all timesteps, including the current one
+            kv.attentionScores(layer, h / kv_mul, pos + 1, q, qOffset, att, attOffset);
+
+            // softmax the scores to get attention weights, from 0..pos inclusively
+            softmax(att, attOffset, pos + 1);
+            if (kv.eviction != null) {
+                kv.eviction.observe(layer, h, att, attOffset, pos + 1);
+            }
+
+            // weighted sum of the values, store back into xb
+            kv.attentionValues(layer, h / kv_mul, pos + 1, att, attOffset, xb, qOffset);
+        });
     }
 
-    static MemorySegment forwardWithLevelZero(Transformer transformer, int token, int pos) {
+    static MemorySegment forwardWithLevelZero(Transformer transformer, RunState state, int token, int pos) {
         Config p = transformer.config;
         WeightsShared w = (WeightsShared) transformer.weights;
-        RunStateSharedMem s = (RunStateSharedMem) transformer.state;
+        RunStateSharedMem s = (RunStateSharedMem) state;
         LevelZeroKernel kernel = s.matMulkernel;
         int dim = p.dim;
         int hidden_dim = p.hidden_dim;
         int head_size = p.head_size;
         int kv_dim = (p.dim * p.n_kv_heads) / p.n_heads;
-        int kv_mul = p.n_heads / p.n_kv_heads; // integer multiplier of the kv sharing in multiquery
 
         // copy the token embedding into x
         // w.token_embedding_table.get(token * dim, s.x, 0, dim);
@@ -381,65 +480,10 @@ public class InferenceEngine {
             }
 
             // save key,value at this time step (pos) to our kv cache
-            // int loff = l * p.seq_len * kv_dim; // kv cache layer offset for convenience
-
-            // Copies
-            //            System.arraycopy(s.k, 0, s.key_cache[l], pos * kv_dim, kv_dim);
-            //            System.arraycopy(s.v, 0, s.value_cache[l], pos * kv_dim, kv_dim)
-            copyMemObjects(s.k, 0, s.key_cache[l], pos * kv_dim, kv_dim);
-            copyMemObjects(s.v, 0, s.value_cache[l],  pos * kv_dim, kv_dim);
-
-            final int curLayer = l;
+            s.kv.store(l, pos, s.k.segment(), s.v.segment());
 
             // multihead attention. iterate over all heads
-            IntStream.range(0, p.n_heads).parallel().forEach(h -> {
-                // get the query vector for this head
-                // float* q = s.q + h * head_size;
-                int qOffset = h * head_size;
-
-                // attention scores for this head
-                // float* att = s.att + h * p.seq_len;
-                int attOffset = h * p.seq_len;
-
-                // iterate over all timesteps, including the current one
-                for (int t = 0; t <= pos; t++) {
-                    // get the key vector for this head and at this timestep
-                    // float* k = s->key_cache + loff + t * kv_dim + (h / kv_mul) * head_size;
-                    int keyCacheOffset = t * kv_dim + (h / kv_mul) * head_size;
-                    // calculate the attention score as the dot product of q and k
-                    float score = 0.0f;
-                    for (int i = 0; i < head_size; i++) {
-                        score += s.q.get(qOffset + i) * s.key_cache[curLayer][keyCacheOffset + i];
-                    }
-                    score /= (float) Math.sqrt(head_size);
-                    // save the score to the attention buffer
-                    s.att[attOffset + t] = score;
-                }
-
-                // softmax the scores to get attention weights, from 0..pos inclusively
-                softmax(s.att, attOffset, pos + 1);
-
-                // weighted sum of the values, store back into xb
-                // float* xb = s.xb + h * head_size;
-                int xbOffset = h * head_size;
-                // memset(xb, 0, head_size * sizeof(float));
-                // Arrays.fill(s.xb, xbOffset, xbOffset + head_size, 0f);
-                segmentFill(s.xb, xbOffset, xbOffset + head_size, 0f);
-
-                for (int t = 0; t <= pos; t++) {
-                    // get the value vector for this head and at this timestep
-                    // float* v = s->value_cache + loff + t * kv_dim + (h / kv_mul) * head_size;
-                    int vOffset = t * kv_dim + (h / kv_mul) * head_size;
-                    // get the attention weight for this timestep
-                    float a = s.att[attOffset + t];
-                    // accumulate the weighted value inconfigto xb
-                    for (int i = 0; i < head_size; i++) {
-                        //s.xb[xbOffset + i] += a * s.value_cache[curLayer][vOffset + i];
-                        float acc = s.xb.get(xbOffset + i);
-                        s.xb.set(xbOffset + i, (acc + (a * s.value_cache[curLayer][vOffset + i])));
-                    }
-                }
-            });
+            attention(p, s.kv, l, pos, s.q.segment(), s.xb.segment(), s.att);
 
             // final matmul to get the output of the attention
             MatrixVectorCollection.matmul(s.xb2, s.xb, w.wo[l], dim, dim);
@@ -470,8 +514,10 @@ public class InferenceEngine {
         // invoke TornadoVM to run matmul on the GPU
         //MatrixVectorCollection.matrixVectorSimple(s.logits, s.x, w.weightTensor, dim, transformer.config.vocab_size);
         if (Transformer.USE_GPU) {
-            // Runs with level Zero on the Intel Integrated GPU
-            MatrixVectorCollection.matMulOnGPU(kernel, s.computeBundle, s.logits, s.x, w.weightTensor, dim, transformer.config.vocab_size);
+            // Runs with level Zero on the Intel Integrated GPU, whose command list is shared by the sessions
+            synchronized (s.computeBundle) {
+                MatrixVectorCollection.matMulOnGPU(kernel, s.computeBundle, s.logits, s.x, w.weightTensor, dim, transformer.config.vocab_size);
+            }
 
         } else {
             MatrixVectorCollection.matmul(s.logits, s.x, w.weightTensor, dim, transformer.config.vocab_size);
@@ -492,7 +538,11 @@ public class InferenceEngine {
      *            The array representing the hidden layer output.
      */
     private static void fusedSiluEwiseMul(int hidden_dim, FloatArray out, FloatArray hb2) {
-        for (int i = 0; i < hidden_dim; i++) {
+        fusedSiluEwiseMul(hidden_dim, out, hb2, 0);
+    }
+
+    private static void fusedSiluEwiseMul(int hidden_dim, FloatArray out, FloatArray hb2, int offset) {
+        for (int i = offset; i < offset + hidden_dim; i++) {
             float val = out.get(i);
             // silu(x)=x*σ(x), where σ(x) is the logistic sigmoid
             val *= (1.0f / (1.0f + Math.exp(-val)));
@@ -523,7 +573,11 @@ public class InferenceEngine {
      *            The dimension of the vectors.
      */
     private static void residualConnection(FloatArray s, FloatArray xb2, int dim) {
-        for (int i = 0; i < dim; i++) {
+        residualConnection(s, xb2, dim, 0);
+    }
+
+    private static void residualConnection(FloatArray s, FloatArray xb2, int dim, int offset) {
+        for (int i = offset; i < offset + dim; i++) {
             s.set(i, s.get(i) + xb2.get(i));
         }
     }
@@ -547,17 +601,25 @@ public class InferenceEngine {
      *            The size of the vectors.
      */
     private static void rmsnorm(FloatArray o, FloatArray x, FloatBuffer weight, int size) {
+        rmsnorm(o, x, weight, size, 0);
+    }
+
+    /**
+     * Same as {@link #rmsnorm(FloatArray, FloatArray, FloatBuffer, int)}, for the
+     * vectors starting at index {@code offset} of {@code o} and {@code x}.
+     */
+    private static void rmsnorm(FloatArray o, FloatArray x, FloatBuffer weight, int size, int offset) {
         // calculate sum of squares
         float ss = 0.0f;
         for (int j = 0; j < size; j++) {
-            ss += x.get(j) * x.get(j);
+            ss += x.get(offset + j) * x.get(offset + j);
         }
         ss /= size;
         ss += 1e-5f;
         ss = 1.0f / (float) Math.sqrt(ss);
         // normalize and scale
         for (int j = 0; j < size; j++) {
-            o.set(j,  weight.get(j) * (ss * x.get(j)));
+            o.set(offset + j,  weight.get(j) * (ss * x.get(offset + j)));
         }
     }
 
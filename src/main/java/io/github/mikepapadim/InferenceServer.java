@@ -0,0 +1,449 @@
+package io.github.mikepapadim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server exposing completion and chat endpoints over the models
+ * of a {@link ModelRegistry} (Java version only). The request bodies and responses follow the
+ * OpenAI-style {@code /v1/completions} and {@code /v1/chat/completions}
+ * schemas; with {@code "stream": true}, the tokens are sent as Server-Sent
+ * Events as soon as they are generated.
+ *
+ * <p>Every exchange is handled on its own virtual thread, which submits a
+ * {@link Sequence} to the shared {@link Scheduler} of its model and then waits
+ * for its tokens, so concurrent requests are batched together by the scheduler
+ * while their connections only cost a virtual thread each.</p>
+ *
+ * <p>A request selects its model with {@code "model"} (default the model given
+ * on the command line), which is loaded on its first request;
+ * {@code /v1/models} lists the models and whether they are loaded. It can also
+ * select a LoRA adapter of the model with {@code "adapter"}, so one replica
+ * serves many fine-tunes of the same model, batched together.</p>
+ *
+ * <p>A request can set its scheduling class with {@code "priority"}
+ * ({@code "interactive"}, the default, or {@code "batch"}) and a deadline in
+ * seconds with {@code "timeout"} (default {@code llama2.RequestTimeout}, 0 for
+ * none). A request whose deadline passes, or whose streaming client goes away,
+ * is cancelled at the next step of the scheduler.</p>
+ *
+ * <p>The responses of deterministic requests (temperature 0, or a seed) can be
+ * cached and shared by identical requests in flight, see {@link ResponseCache}.</p>
+ *
+ * <p>The server listens as soon as it starts, but answers the completion
+ * requests with 503 until {@link #ready()} is called, once the default model is
+ * loaded and warmed up: {@code /health} tells whether the process is alive, and
+ * {@code /ready} whether it serves requests.</p>
+ *
+ * <p>When the scheduler rejects a request because it is overloaded, the server
+ * answers 503 with a {@code Retry-After} header; {@code /stats} reports the
+ * queue depth, the queue wait times and the KV memory in use of every loaded
+ * model.</p>
+ */
+public class InferenceServer {
+
+    static final String SYSTEM_TEMPLATE = "[INST] <<SYS>>\n%s\n<</SYS>>\n\n%s [/INST]";
+    static final String USER_TEMPLATE = "[INST] %s [/INST]";
+
+    final ModelRegistry models;
+    final int requestTimeout; // seconds, 0 for none
+    final ResponseCache responses; // null unless enabled
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final AtomicLong ids = new AtomicLong();
+    private volatile boolean ready;
+
+    /**
+     * Creates a server listening on the given port.
+     *
+     * @param models
+     *            The models served.
+     * @param port
+     *            The port to listen on.
+     * @throws IOException
+     *             If the server cannot be bound to the port.
+     */
+    InferenceServer(ModelRegistry models, int port) throws IOException {
+        this.models = models;
+        this.requestTimeout = Integer.getInteger("llama2.RequestTimeout", 0);
+        this.responses = ResponseCache.create();
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(executor);
+        server.createContext("/v1/completions", exchange -> handle(exchange, false));
+        server.createContext("/v1/chat/completions", exchange -> handle(exchange, true));
+        server.createContext("/v1/models", this::listModels);
+        server.createContext("/health", exchange -> send(exchange, 200, "{\"status\":\"ok\"}"));
+        server.createContext("/ready", exchange -> send(exchange, ready ? 200 : 503, ready ? "{\"status\":\"ready\"}" : "{\"status\":\"warming up\"}"));
+        server.createContext("/stats", this::stats);
+    }
+
+    /**
+     * Starts the server.
+     */
+    void start() {
+        server.start();
+        System.err.printf("listening on port %d\n", server.getAddress().getPort());
+    }
+
+    /**
+     * Starts serving the completion requests.
+     */
+    void ready() {
+        ready = true;
+        System.err.println("ready");
+    }
+
+    /**
+     * Stops the server and unloads the models.
+     */
+    void stop() throws InterruptedException {
+        server.stop(0);
+        models.close();
+        executor.shutdown();
+    }
+
+    private void handle(HttpExchange exchange, boolean chat) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "use POST");
+                return;
+            }
+            if (!ready) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendError(exchange, 503, "warming up");
+                return;
+            }
+            Map<String, Object> request;
+            ModelRegistry.Model model;
+            try {
+                request = Json.parseObject(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                if (request.get("model") != null && !(request.get("model") instanceof String)) {
+                    throw new IllegalArgumentException("\"model\" must be a string");
+                }
+                model = models.acquire((String) request.get("model"));
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, e.getMessage());
+                return;
+            } catch (RejectedExecutionException e) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendError(exchange, 503, e.getMessage());
+                return;
+            } catch (IOException e) {
+                sendError(exchange, 500, "cannot load the model: " + e.getMessage());
+                return;
+            }
+            try {
+                complete(exchange, chat, request, model);
+            } finally {
+                models.release(model);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void complete(HttpExchange exchange, boolean chat, Map<String, Object> request, ModelRegistry.Model model) throws IOException, InterruptedException {
+        Scheduler scheduler = model.scheduler;
+        int[] promptTokens;
+        Function<Sequence.Listener, Sequence> sequence;
+        ResponseCache.Key key;
+        TokenQueue queue = new TokenQueue();
+        CancellationToken cancellation;
+        try {
+            LoraAdapter adapter = request.get("adapter") instanceof String name ? models.adapter(model, name) : null;
+            if (request.get("adapter") != null && adapter == null) {
+                throw new IllegalArgumentException("\"adapter\" must be a string");
+            }
+            int[] tokens = chat ? encodeChat(model.tokenizer, request) : encodeCompletion(model.tokenizer, request);
+            int steps = scheduler.steps(tokens.length, (int) number(request, "max_tokens", 256));
+            float temperature = (float) Math.max(number(request, "temperature", 1.0), 0.0);
+            float topp = (float) number(request, "top_p", 0.9);
+            int topk = (int) number(request, "top_k", 0);
+            long seed = (long) number(request, "seed", 0);
+            Sampler.Settings sampling = new Sampler.Settings(temperature, topp, topk, seed > 0 ? seed : System.nanoTime());
+            String[] stop = stops(request);
+            Sequence.Priority priority = priority(request);
+            CancellationToken token = new CancellationToken((long) (number(request, "timeout", requestTimeout) * 1000), TimeUnit.MILLISECONDS);
+            sequence = listener -> new Sequence(tokens, tokens.length, steps, sampling, stop, listener, priority, token, adapter);
+            key = responses != null ? ResponseCache.key(adapter != null ? model.name + "+" + adapter.name : model.name, tokens, temperature, topp, topk, seed, steps, stop) : null;
+            promptTokens = tokens;
+            cancellation = token;
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+            return;
+        } catch (RejectedExecutionException e) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendError(exchange, 503, e.getMessage());
+            return;
+        } catch (IOException e) {
+            sendError(exchange, 500, "cannot load the adapter: " + e.getMessage());
+            return;
+        }
+        ResponseCache.Entry entry = null;
+        try {
+            if (key != null) {
+                entry = responses.submit(key, scheduler, queue, sequence);
+            } else {
+                scheduler.submit(sequence.apply(queue));
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+            return;
+        } catch (RejectedExecutionException e) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendError(exchange, 503, e.getMessage());
+            return;
+        }
+
+        String id = (chat ? "chatcmpl-" : "cmpl-") + ids.incrementAndGet();
+        try {
+            if (Boolean.TRUE.equals(request.get("stream"))) {
+                stream(exchange, id, model.name, chat, queue);
+            } else {
+                respond(exchange, id, model.name, chat, promptTokens.length, queue);
+            }
+        } finally {
+            // stops the sequence if the client went away, no-op once it finished
+            if (entry != null) {
+                entry.unsubscribe(queue);
+            } else {
+                cancellation.cancel();
+            }
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            StringBuilder loaded = new StringBuilder();
+            for (ModelRegistry.Model model : models.loaded()) {
+                AdmissionController.Stats stats = model.scheduler.stats();
+                AdmissionController admission = model.scheduler.admission;
+                loaded.append(loaded.isEmpty() ? "" : ",").append(Json.quote(model.name)).append(":{\"queued\":").append(stats.queued()).append(",\"oldest_wait_ms\":")
+                        .append(TimeUnit.NANOSECONDS.toMillis(stats.oldestWaitNanos())).append(",\"running\":").append(stats.running()).append(",\"admitted\":").append(stats.admitted())
+                        .append(",\"rejected\":").append(stats.rejected()).append(",\"average_wait_ms\":").append(TimeUnit.NANOSECONDS.toMillis(stats.averageWaitNanos()))
+                        .append(",\"max_wait_ms\":").append(TimeUnit.NANOSECONDS.toMillis(stats.maxWaitNanos())).append(",\"memory\":{\"budget_bytes\":").append(admission.budgetBytes)
+                        .append(",\"weight_bytes\":").append(admission.weightBytes).append(",\"activation_bytes\":").append(admission.activationBytes).append(",\"prefix_cache_bytes\":")
+                        .append(admission.prefixCacheBytes).append(",\"kv_reserved_bytes\":").append(stats.reservedBytes()).append(",\"kv_budget_bytes\":")
+                        .append(stats.kvBudgetBytes() == Long.MAX_VALUE ? "null" : stats.kvBudgetBytes()).append("},\"adapters\":[");
+                String[] adapters = models.adapters(model);
+                for (int i = 0; i < adapters.length; i++) {
+                    loaded.append(i > 0 ? "," : "").append(Json.quote(adapters[i]));
+                }
+                loaded.append("]}");
+            }
+            send(exchange, 200, "{\"models\":{" + loaded + "},\"mapped_bytes\":" + models.mappedBytes() + ",\"model_budget_bytes\":" + models.budgetBytes + ",\"response_cache\":"
+                    + responseCacheStats() + "}");
+        }
+    }
+
+    private void listModels(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            StringBuilder data = new StringBuilder();
+            for (String name : models.names()) {
+                data.append(data.isEmpty() ? "" : ",").append("{\"id\":").append(Json.quote(name)).append(",\"object\":\"model\",\"loaded\":").append(models.isLoaded(name)).append("}");
+            }
+            send(exchange, 200, "{\"object\":\"list\",\"data\":[" + data + "]}");
+        }
+    }
+
+    private String responseCacheStats() {
+        if (responses == null) {
+            return "null";
+        }
+        ResponseCache.Stats stats = responses.stats();
+        return "{\"entries\":" + stats.entries() + ",\"bytes\":" + stats.bytes() + ",\"budget_bytes\":" + responses.budgetBytes + ",\"hits\":" + stats.hits() + ",\"coalesced\":"
+                + stats.coalesced() + ",\"misses\":" + stats.misses() + "}";
+    }
+
+    /**
+     * Sends every token as an event as soon as it is generated, then a last event
+     * with the finish reason, then {@code [DONE]}.
+     */
+    private void stream(HttpExchange exchange, String id, String model, boolean chat, TokenQueue queue) throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        while (true) {
+            Object event = queue.take();
+            if (event instanceof Sequence.FinishReason reason) {
+                writeEvent(out, chunk(id, model, chat, null, finishReason(reason)));
+                writeEvent(out, "[DONE]");
+                return;
+            }
+            writeEvent(out, chunk(id, model, chat, ((TokenQueue.Token) event).piece(), null));
+        }
+    }
+
+    private static void writeEvent(OutputStream out, String data) throws IOException {
+        out.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static String chunk(String id, String model, boolean chat, String piece, String finishReason) {
+        String reason = finishReason != null ? Json.quote(finishReason) : "null";
+        String choice = chat
+                ? "{\"index\":0,\"delta\":" + (piece != null ? "{\"content\":" + Json.quote(piece) + "}" : "{}") + ",\"finish_reason\":" + reason + "}"
+                : "{\"index\":0,\"text\":" + Json.quote(piece != null ? piece : "") + ",\"finish_reason\":" + reason + "}";
+        return "{\"id\":\"" + id + "\",\"object\":\"" + (chat ? "chat.completion.chunk" : "text_completion") + "\",\"model\":" + Json.quote(model) + ",\"choices\":[" + choice + "]}";
+    }
+
+    /**
+     * Sends the whole completion once the sequence is done.
+     */
+    private static void respond(HttpExchange exchange, String id, String model, boolean chat, int promptTokens, TokenQueue queue) throws IOException, InterruptedException {
+        StringBuilder text = new StringBuilder();
+        Object event;
+        while (!((event = queue.take()) instanceof Sequence.FinishReason)) {
+            text.append(((TokenQueue.Token) event).piece());
+        }
+        String reason = Json.quote(finishReason((Sequence.FinishReason) event));
+        String choice = chat
+                ? "{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":" + Json.quote(text.toString()) + "},\"finish_reason\":" + reason + "}"
+                : "{\"index\":0,\"text\":" + Json.quote(text.toString()) + ",\"finish_reason\":" + reason + "}";
+        String usage = "{\"prompt_tokens\":" + promptTokens + ",\"completion_tokens\":" + queue.count() + ",\"total_tokens\":" + (promptTokens + queue.count()) + "}";
+        send(exchange, 200, "{\"id\":\"" + id + "\",\"object\":\"" + (chat ? "chat.completion" : "text_completion") + "\",\"model\":" + Json.quote(model)
+                + ",\"choices\":[" + choice + "],\"usage\":" + usage + "}");
+    }
+
+    /**
+     * Returns the {@code "finish_reason"} of a response.
+     */
+    static String finishReason(Sequence.FinishReason reason) {
+        return switch (reason) {
+            case LENGTH -> "length";
+            case CANCELLED -> "cancelled";
+            case DEADLINE -> "timeout";
+            default -> "stop";
+        };
+    }
+
+    private static int[] encodeCompletion(Tokenizer tokenizer, Map<String, Object> request) {
+        if (!(request.get("prompt") instanceof String prompt)) {
+            throw new IllegalArgumentException("missing \"prompt\"");
+        }
+        return encode(tokenizer, prompt, false);
+    }
+
+    /**
+     * Renders the messages into the Llama 2 Chat schema: every user message, with
+     * the system prompt before the first one, is an instruction, and every
+     * assistant message is the answer to the instruction before it, ended with
+     * EOS. The last message must be from the user.
+     */
+    private static int[] encodeChat(Tokenizer tokenizer, Map<String, Object> request) {
+        if (!(request.get("messages") instanceof List<?> messages) || messages.isEmpty()) {
+            throw new IllegalArgumentException("missing \"messages\"");
+        }
+        String system = null;
+        String instruction = null;
+        int[] tokens = new int[0];
+        for (Object m : messages) {
+            if (!(m instanceof Map<?, ?> message) || !(message.get("role") instanceof String role) || !(message.get("content") instanceof String content)) {
+                throw new IllegalArgumentException("a message needs a \"role\" and a \"content\"");
+            }
+            switch (role) {
+                case "system" -> system = content;
+                case "user" -> {
+                    if (instruction != null) {
+                        tokens = concat(tokens, encode(tokenizer, instruction, false));
+                    }
+                    instruction = tokens.length == 0 && system != null && !system.isEmpty() ? SYSTEM_TEMPLATE.formatted(system, content) : USER_TEMPLATE.formatted(content);
+                }
+                case "assistant" -> {
+                    if (instruction == null) {
+                        throw new IllegalArgumentException("an assistant message must follow a user message");
+                    }
+                    tokens = concat(tokens, encode(tokenizer, instruction + " " + content, true));
+                    instruction = null;
+                }
+                default -> throw new IllegalArgumentException("unknown role: " + role);
+            }
+        }
+        if (instruction == null) {
+            throw new IllegalArgumentException("the last message must be from the user");
+        }
+        return concat(tokens, encode(tokenizer, instruction, false));
+    }
+
+    private static int[] encode(Tokenizer tokenizer, String text, boolean eos) {
+        int[] tokens = new int[text.length() * 2 + 3]; // +3 for '\0', ?BOS, ?EOS
+        int n = Llama2.encode(tokenizer, text, true, eos, tokens);
+        return Arrays.copyOf(tokens, n);
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        int[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    static double number(Map<String, Object> request, String key, double defaultValue) {
+        Object value = request.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (!(value instanceof Double d)) {
+            throw new IllegalArgumentException("\"" + key + "\" must be a number");
+        }
+        return d;
+    }
+
+    private static Sequence.Priority priority(Map<String, Object> request) {
+        Object priority = request.get("priority");
+        if (priority == null || "interactive".equals(priority)) {
+            return Sequence.Priority.INTERACTIVE;
+        }
+        if ("batch".equals(priority)) {
+            return Sequence.Priority.BATCH;
+        }
+        throw new IllegalArgumentException("\"priority\" must be \"interactive\" or \"batch\"");
+    }
+
+    static String[] stops(Map<String, Object> request) {
+        Object stop = request.get("stop");
+        List<String> stops = new ArrayList<>();
+        if (stop instanceof String s) {
+            stops.add(s);
+        } else if (stop instanceof List<?> list) {
+            for (Object s : list) {
+                if (!(s instanceof String str)) {
+                    throw new IllegalArgumentException("\"stop\" must be a string or a list of strings");
+                }
+                stops.add(str);
+            }
+        } else if (stop != null) {
+            throw new IllegalArgumentException("\"stop\" must be a string or a list of strings");
+        }
+        return stops.toArray(new String[0]);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "{\"error\":{\"message\":" + Json.quote(message) + "}}");
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
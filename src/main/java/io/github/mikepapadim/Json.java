@@ -0,0 +1,271 @@
+package io.github.mikepapadim;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer for the request and response bodies of the
+ * server. Objects are read into {@link Map}s, arrays into {@link List}s, and
+ * numbers into {@link Double}s.
+ */
+final class Json {
+
+    private final String text;
+    private int index;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Parses a JSON document.
+     *
+     * @param text
+     *            The document.
+     * @return A map, list, string, double, boolean, or null.
+     * @throws IllegalArgumentException
+     *             If the document is not valid JSON.
+     */
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.value();
+        json.skipWhitespace();
+        if (json.index != text.length()) {
+            throw json.error("trailing characters");
+        }
+        return value;
+    }
+
+    /**
+     * Parses a JSON object.
+     *
+     * @throws IllegalArgumentException
+     *             If the document is not a valid JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> parseObject(String text) {
+        if (!(parse(text) instanceof Map<?, ?> map)) {
+            throw new IllegalArgumentException("expected a JSON object");
+        }
+        return (Map<String, Object>) map;
+    }
+
+    /**
+     * Returns a string as a quoted JSON string.
+     */
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Returns a value as read by {@link #parse} as a JSON document. Integral
+     * numbers are written without a fraction.
+     *
+     * @throws IllegalArgumentException
+     *             If the value is not a map, list, string, number, boolean, or
+     *             null.
+     */
+    static String write(Object value) {
+        StringBuilder sb = new StringBuilder();
+        write(sb, value);
+        return sb.toString();
+    }
+
+    private static void write(StringBuilder sb, Object value) {
+        switch (value) {
+            case null -> sb.append("null");
+            case String s -> sb.append(quote(s));
+            case Boolean b -> sb.append(b);
+            case Double d when d == Math.rint(d) && Math.abs(d) < 1e15 -> sb.append(d.longValue());
+            case Number n -> sb.append(n);
+            case Map<?, ?> map -> {
+                sb.append('{');
+                String separator = "";
+                for (Map.Entry<?, ?> e : map.entrySet()) {
+                    sb.append(separator).append(quote(String.valueOf(e.getKey()))).append(':');
+                    write(sb, e.getValue());
+                    separator = ",";
+                }
+                sb.append('}');
+            }
+            case List<?> list -> {
+                sb.append('[');
+                for (int i = 0; i < list.size(); i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    write(sb, list.get(i));
+                }
+                sb.append(']');
+            }
+            default -> throw new IllegalArgumentException("not a JSON value: " + value.getClass().getName());
+        }
+    }
+
+    private Object value() {
+        skipWhitespace();
+        if (index >= text.length()) {
+            throw error("unexpected end");
+        }
+        char c = text.charAt(index);
+        return switch (c) {
+            case '{' -> object();
+            case '[' -> array();
+            case '"' -> string();
+            case 't' -> literal("true", Boolean.TRUE);
+            case 'f' -> literal("false", Boolean.FALSE);
+            case 'n' -> literal("null", null);
+            default -> number();
+        };
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        index++; // {
+        skipWhitespace();
+        if (peek() == '}') {
+            index++;
+            return map;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("expected a key");
+            }
+            String key = string();
+            skipWhitespace();
+            expect(':');
+            map.put(key, value());
+            skipWhitespace();
+            if (peek() == ',') {
+                index++;
+            } else {
+                expect('}');
+                return map;
+            }
+        }
+    }
+
+    private List<Object> array() {
+        List<Object> list = new ArrayList<>();
+        index++; // [
+        skipWhitespace();
+        if (peek() == ']') {
+            index++;
+            return list;
+        }
+        while (true) {
+            list.add(value());
+            skipWhitespace();
+            if (peek() == ',') {
+                index++;
+            } else {
+                expect(']');
+                return list;
+            }
+        }
+    }
+
+    private String string() {
+        index++; // "
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (index >= text.length()) {
+                throw error("unterminated string");
+            }
+            char c = text.charAt(index++);
+            if (c == '"') {
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (index >= text.length()) {
+                throw error("unterminated string");
+            }
+            char e = text.charAt(index++);
+            switch (e) {
+                case '"', '\\', '/' -> sb.append(e);
+                case 'b' -> sb.append('\b');
+                case 'f' -> sb.append('\f');
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 't' -> sb.append('\t');
+                case 'u' -> {
+                    if (index + 4 > text.length()) {
+                        throw error("bad unicode escape");
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(text.substring(index, index + 4), 16));
+                    } catch (NumberFormatException ex) {
+                        throw error("bad unicode escape");
+                    }
+                    index += 4;
+                }
+                default -> throw error("bad escape");
+            }
+        }
+    }
+
+    private Double number() {
+        int start = index;
+        while (index < text.length() && "+-0123456789.eE".indexOf(text.charAt(index)) >= 0) {
+            index++;
+        }
+        try {
+            return Double.valueOf(text.substring(start, index));
+        } catch (NumberFormatException e) {
+            throw error("bad value");
+        }
+    }
+
+    private Object literal(String word, Object value) {
+        if (!text.startsWith(word, index)) {
+            throw error("bad value");
+        }
+        index += word.length();
+        return value;
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        index++;
+    }
+
+    private char peek() {
+        return index < text.length() ? text.charAt(index) : '\0';
+    }
+
+    private void skipWhitespace() {
+        while (index < text.length() && Character.isWhitespace(text.charAt(index))) {
+            index++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Invalid JSON at " + index + ": " + message);
+    }
+}
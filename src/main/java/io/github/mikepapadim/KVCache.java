@@ -0,0 +1,572 @@
+package io.github.mikepapadim;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+/**
+ * Off-heap key/value cache of the attention layers of one session. The cache is
+ * paged: the keys and values of every {@code pageSize} consecutive positions live
+ * in one page taken from a {@link KVPagePool} shared with the other sessions,
+ * and the cache keeps a page table mapping positions to pages. Pages are only
+ * taken when a position is first written.
+ *
+ * <p>Within a page, the rows of head_size elements are laid out as (kv, layer,
+ * kv_head, pageSize), so the keys (and values) of one head are contiguous across
+ * the positions of the page, and the attention loops stream them page by page.
+ * Setting {@code llama2.KVPageSize} to seq_len gives a single contiguous page.</p>
+ *
+ * <p>The encoding of a row depends on the precision of the cache, selected
+ * through the {@code llama2.KVCache} property: {@code fp32} (default),
+ * {@code fp16} or {@code int8}. Rows are encoded when appended and decoded inside
+ * the attention dot products, so reduced precisions save both memory and
+ * bandwidth.</p>
+ *
+ * <p>With {@code llama2.SparseAttention}, every page also keeps the per-channel
+ * minimum and maximum of its keys, which bound q·k over the page. The attention
+ * then reads the keys and values of the most recent pages, plus the older pages
+ * in decreasing order of their bound, until the pages left out can hold at most
+ * {@code 1 - llama2.SparseAttentionRecall} (default 0.95) of the attention
+ * weight.</p>
+ */
+public abstract class KVCache {
+
+    static final String PRECISION = System.getProperty("llama2.KVCache", "fp32");
+    static final boolean SPARSE_ATTENTION = Llama2.getBooleanProperty("SparseAttention", false);
+    static final double SPARSE_ATTENTION_RECALL = Double.parseDouble(System.getProperty("llama2.SparseAttentionRecall", "0.95"));
+    static final int SPARSE_ATTENTION_RECENT_PAGES = 2; // always attended
+
+    final int n_layers;
+    final int n_kv_heads;
+    final int head_size;
+    final long rowBytes; // size of one encoded (head_size,) row
+
+    final KVPagePool pool;
+    final int pageSize; // positions per page
+    final int[] pageTable; // (seq_len / pageSize,) page ids, -1 if not allocated
+    final MemorySegment[] pages; // (seq_len / pageSize,) memory of the allocated pages
+    final float[][] bounds; // (seq_len / pageSize,) key bounds of the allocated pages, only with sparse attention
+    private int mappedPages; // the entries of the page table past this one are all -1
+    private final float[][] queries; // (n_heads, head_size) the query heads being attended, decoded
+    private final float[][] outputs; // (n_heads, head_size) the outputs of the query heads being attended
+    private final float[] key; // (head_size,) the key being stored, decoded, only with sparse attention
+    private final int[][] order; // (n_heads, seq_len / pageSize) the older pages by bound, only with sparse attention
+    private final float[][] upper; // (n_heads, seq_len / pageSize) the bounds of the older pages, only with sparse attention
+    private final double[][] remaining; // (n_heads, seq_len / pageSize + 1) the bounds of their mass, only with sparse attention
+
+    final KVEvictionPolicy eviction; // null unless a KV budget is set
+
+    /**
+     * Creates an empty cache for the given model configuration.
+     *
+     * @param config
+     *            The {@link Config} object containing transformer model
+     *            configuration.
+     * @param pool
+     *            The pool the pages are taken from.
+     */
+    KVCache(Config config, KVPagePool pool) {
+        this.n_layers = config.n_layers;
+        this.n_kv_heads = config.n_kv_heads;
+        this.head_size = config.head_size;
+        this.rowBytes = pool.rowBytes;
+        this.pool = pool;
+        this.pageSize = pool.pageSize;
+        int numPages = (config.seq_len + pageSize - 1) / pageSize;
+        this.pageTable = new int[numPages];
+        this.pages = new MemorySegment[numPages];
+        this.bounds = new float[numPages][];
+        Arrays.fill(pageTable, -1);
+        this.queries = new float[config.n_heads][head_size];
+        this.outputs = new float[config.n_heads][head_size];
+        this.key = SPARSE_ATTENTION ? new float[head_size] : null;
+        this.order = SPARSE_ATTENTION ? new int[config.n_heads][numPages] : null;
+        this.upper = SPARSE_ATTENTION ? new float[config.n_heads][numPages] : null;
+        this.remaining = SPARSE_ATTENTION ? new double[config.n_heads][numPages + 1] : null;
+        this.eviction = KVEvictionPolicy.create(config);
+    }
+
+    /**
+     * Creates a cache with the precision of the pool, the one selected by the
+     * {@code llama2.KVCache} property unless the pool was created with another.
+     *
+     * @param config
+     *            The {@link Config} object containing transformer model
+     *            configuration.
+     * @param pool
+     *            The pool the pages are taken from.
+     * @return The KV cache.
+     */
+    static KVCache create(Config config, KVPagePool pool) {
+        return switch (pool.precision) {
+            case "fp32" -> new KVCacheFP32(config, pool);
+            case "fp16" -> new KVCacheFP16(config, pool);
+            case "int8" -> new KVCacheInt8(config, pool);
+            default -> throw new IllegalArgumentException("Unknown KV cache precision: " + pool.precision);
+        };
+    }
+
+    /**
+     * Returns the size in bytes of the page table and the scratch buffers of one
+     * cache, the pages of the pool aside.
+     */
+    static long bytes(Config config, KVPagePool pool) {
+        int budget = KVEvictionPolicy.budget(config);
+        long numPages = (config.seq_len + pool.pageSize - 1) / pool.pageSize;
+        long bytes = numPages * Integer.BYTES + 2L * config.n_heads * config.head_size * Float.BYTES;
+        if (SPARSE_ATTENTION) {
+            bytes += config.head_size * Float.BYTES + config.n_heads * (numPages * (Integer.BYTES + Float.BYTES) + (numPages + 1) * Double.BYTES);
+        }
+        if (budget > 0) {
+            bytes += (long) config.n_layers * config.n_heads * budget * Float.BYTES; // eviction scores
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the size of one encoded row with the precision selected by the
+     * {@code llama2.KVCache} property.
+     */
+    static long rowBytes(Config config) {
+        return rowBytes(config, PRECISION);
+    }
+
+    /**
+     * Returns the size of one encoded row with the given precision.
+     */
+    static long rowBytes(Config config, String precision) {
+        return switch (precision) {
+            case "fp32" -> (long) config.head_size * Float.BYTES;
+            case "fp16" -> (long) config.head_size * Short.BYTES;
+            case "int8" -> Float.BYTES + config.head_size; // scale + bytes
+            default -> throw new IllegalArgumentException("Unknown KV cache precision: " + precision);
+        };
+    }
+
+    /**
+     * Returns the byte offset, within a page, of the first row of a head.
+     *
+     * @param kv
+     *            0 for the keys, 1 for the values.
+     */
+    long offset(int kv, int layer, int kvHead) {
+        return (((long) kv * n_layers + layer) * n_kv_heads + kvHead) * pageSize * rowBytes;
+    }
+
+    /**
+     * Returns the page holding a position, taking one from the pool the first time.
+     */
+    MemorySegment page(int pos) {
+        int index = pos / pageSize;
+        if (pages[index] == null) {
+            pageTable[index] = pool.allocate();
+            pages[index] = pool.segment(pageTable[index]);
+            bounds[index] = pool.keyBounds(pageTable[index]);
+            mappedPages = Math.max(mappedPages, index + 1);
+        }
+        return pages[index];
+    }
+
+    /**
+     * Maps a block of positions to a page that is shared with other caches. The
+     * page must be full, since shared pages are never written again.
+     *
+     * @param index
+     *            The index of the block, i.e., the positions [index * pageSize,
+     *            (index + 1) * pageSize).
+     * @param page
+     *            The id of the page.
+     */
+    void share(int index, int page) {
+        pool.retain(page);
+        pageTable[index] = page;
+        pages[index] = pool.segment(page);
+        bounds[index] = pool.keyBounds(page);
+        mappedPages = Math.max(mappedPages, index + 1);
+    }
+
+    /**
+     * Returns the page holding a position for writing, first replacing it with a
+     * private copy if it is shared with other caches.
+     */
+    private MemorySegment writablePage(int pos) {
+        int index = pos / pageSize;
+        if (pool.isShared(pageTable[index])) {
+            int page = pool.allocate();
+            MemorySegment copy = pool.segment(page).copyFrom(pages[index]);
+            float[] copyBounds = pool.keyBounds(page);
+            if (copyBounds != null) {
+                System.arraycopy(bounds[index], 0, copyBounds, 0, copyBounds.length);
+            }
+            pool.release(pageTable[index]);
+            pageTable[index] = page;
+            pages[index] = copy;
+            bounds[index] = copyBounds;
+        }
+        return pages[index];
+    }
+
+    /**
+     * Removes the positions [start, start + count) from the first {@code length}
+     * cached positions, and moves the later ones down by {@code count}. The moved
+     * keys are rotated back by {@code count} positions, so their RoPE encoding
+     * matches their new position, and the pages left unused are returned to the
+     * pool.
+     *
+     * @param start
+     *            The first position to remove.
+     * @param count
+     *            The number of positions to remove.
+     * @param length
+     *            The number of cached positions.
+     */
+    void discard(int start, int count, int length) {
+        int[] keep = new int[length - count];
+        for (int i = 0; i < keep.length; i++) {
+            keep[i] = i < start ? i : i + count;
+        }
+        for (int layer = 0; layer < n_layers; layer++) {
+            for (int h = 0; h < n_kv_heads; h++) {
+                compact(layer, h, keep, keep.length);
+            }
+        }
+        truncate(keep.length);
+    }
+
+    /**
+     * Keeps the given positions of one head and moves them down to the positions
+     * [0, numKeep). Each moved key is rotated back by its displacement, so its RoPE
+     * encoding matches its new position. Shared pages are copied before they are
+     * written.
+     *
+     * @param layer
+     *            The layer of the head.
+     * @param kvHead
+     *            The kv head.
+     * @param keep
+     *            The positions to keep, in ascending order.
+     * @param numKeep
+     *            The number of positions to keep.
+     */
+    void compact(int layer, int kvHead, int[] keep, int numKeep) {
+        // rotation of the (i, i + 1) pairs by -delta positions
+        float[] fcr = new float[head_size / 2];
+        float[] fci = new float[head_size / 2];
+        int delta = 0;
+        int firstMoved = numKeep;
+        float[] row = new float[head_size];
+        MemorySegment rowSegment = MemorySegment.ofArray(row);
+        long keys = offset(0, layer, kvHead);
+        long values = offset(1, layer, kvHead);
+        for (int dst = 0; dst < numKeep; dst++) {
+            int src = keep[dst];
+            if (src == dst) {
+                continue;
+            }
+            firstMoved = Math.min(firstMoved, dst);
+            if (src - dst != delta) {
+                delta = src - dst;
+                for (int i = 0; i < head_size; i += 2) {
+                    float freq = (float) (1.0 / Math.pow(10000.0f, i / (float) head_size));
+                    float val = -delta * freq;
+                    fcr[i / 2] = (float) Math.cos(val);
+                    fci[i / 2] = (float) Math.sin(val);
+                }
+            }
+            MemorySegment to = writablePage(dst);
+            MemorySegment from = pages[src / pageSize];
+            long toSlot = (long) (dst % pageSize) * rowBytes;
+            long fromSlot = (long) (src % pageSize) * rowBytes;
+            Arrays.fill(row, 0.0f);
+            accumulate(from, keys + fromSlot, 1.0f, row);
+            for (int i = 0; i < head_size; i += 2) {
+                float v0 = row[i];
+                float v1 = row[i + 1];
+                row[i] = v0 * fcr[i / 2] - v1 * fci[i / 2];
+                row[i + 1] = v0 * fci[i / 2] + v1 * fcr[i / 2];
+            }
+            encode(rowSegment, 0, to, keys + toSlot);
+            MemorySegment.copy(from, values + fromSlot, to, values + toSlot, rowBytes);
+        }
+        if (SPARSE_ATTENTION) {
+            summarize(layer, kvHead, firstMoved, numKeep);
+        }
+    }
+
+    /**
+     * Recomputes the key bounds of the pages holding the first {@code length}
+     * positions, after they were written other than through {@link #store}.
+     */
+    void summarize(int length) {
+        if (!SPARSE_ATTENTION) {
+            return;
+        }
+        for (int layer = 0; layer < n_layers; layer++) {
+            for (int h = 0; h < n_kv_heads; h++) {
+                summarize(layer, h, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Recomputes the key bounds of one head for the pages holding the positions
+     * [from, to).
+     */
+    private void summarize(int layer, int kvHead, int from, int to) {
+        float[] row = new float[head_size];
+        long keys = offset(0, layer, kvHead);
+        for (int pos = from - from % pageSize; pos < to; pos++) {
+            Arrays.fill(row, 0.0f);
+            accumulate(pages[pos / pageSize], keys + (long) (pos % pageSize) * rowBytes, 1.0f, row);
+            updateBounds(layer, kvHead, pos, row);
+        }
+    }
+
+    /**
+     * Adds a decoded key to the bounds of its page, starting them over at the
+     * first position of the page.
+     */
+    private void updateBounds(int layer, int kvHead, int pos, float[] key) {
+        float[] b = bounds[pos / pageSize];
+        int min = (layer * n_kv_heads + kvHead) * 2 * head_size;
+        int max = min + head_size;
+        boolean first = pos % pageSize == 0;
+        for (int i = 0; i < head_size; i++) {
+            b[min + i] = first ? key[i] : Math.min(b[min + i], key[i]);
+            b[max + i] = first ? key[i] : Math.max(b[max + i], key[i]);
+        }
+    }
+
+    /**
+     * Returns the pages past the first {@code length} positions to the pool. Only
+     * the part of the page table that was used is visited, and the pool is locked
+     * once.
+     */
+    void truncate(int length) {
+        int first = (length + pageSize - 1) / pageSize;
+        if (first < mappedPages) {
+            pool.release(pageTable, first, mappedPages);
+            Arrays.fill(pageTable, first, mappedPages, -1);
+            Arrays.fill(pages, first, mappedPages, null);
+            Arrays.fill(bounds, first, mappedPages, null);
+            mappedPages = first;
+        }
+    }
+
+    /**
+     * Returns all the pages of this cache to the pool, and clears the eviction
+     * scores of the positions it held.
+     */
+    void reset() {
+        truncate(0);
+        if (eviction != null) {
+            eviction.reset();
+        }
+    }
+
+    /**
+     * Encodes one row of head_size floats.
+     *
+     * @param src
+     *            The source vector.
+     * @param srcIndex
+     *            The index (in floats) of the row within {@code src}.
+     * @param dst
+     *            The cache segment.
+     * @param dstOffset
+     *            The byte offset of the row within {@code dst}.
+     */
+    abstract void encode(MemorySegment src, long srcIndex, MemorySegment dst, long dstOffset);
+
+    /**
+     * Returns the dot product of the query with an encoded row.
+     */
+    abstract float dot(MemorySegment src, long offset, float[] query);
+
+    /**
+     * Accumulates {@code a} times an encoded row into {@code out}.
+     */
+    abstract void accumulate(MemorySegment src, long offset, float a, float[] out);
+
+    /**
+     * Appends the key and value vectors of the current token.
+     *
+     * @param layer
+     *            The layer of the vectors.
+     * @param pos
+     *            The position of the token in the sequence.
+     * @param k
+     *            The key vector (kv_dim,), all kv heads back to back.
+     * @param v
+     *            The value vector (kv_dim,), all kv heads back to back.
+     */
+    void store(int layer, int pos, MemorySegment k, MemorySegment v) {
+        MemorySegment page = page(pos);
+        long slot = (long) (pos % pageSize) * rowBytes;
+        for (int h = 0; h < n_kv_heads; h++) {
+            encode(k, (long) h * head_size, page, offset(0, layer, h) + slot);
+            encode(v, (long) h * head_size, page, offset(1, layer, h) + slot);
+            if (key != null) {
+                // bound the key as stored, so the bounds hold for reduced precisions too
+                Arrays.fill(key, 0.0f);
+                accumulate(page, offset(0, layer, h) + slot, 1.0f, key);
+                updateBounds(layer, h, pos, key);
+            }
+        }
+    }
+
+    /**
+     * Computes the scaled attention scores q·k / sqrt(head_size) of a query head
+     * against the first {@code count} cached keys of a kv head. The query heads of
+     * a token can be attended concurrently.
+     *
+     * @param layer
+     *            The layer to attend over.
+     * @param kvHead
+     *            The kv head shared by the query head.
+     * @param count
+     *            The number of cached positions to attend over.
+     * @param q
+     *            The query vector.
+     * @param qOffset
+     *            The index of the query head within {@code q}.
+     * @param att
+     *            The output buffer of the attention scores.
+     * @param attOffset
+     *            The index of the first score within {@code att}.
+     */
+    void attentionScores(int layer, int kvHead, int count, MemorySegment q, int qOffset, float[] att, int attOffset) {
+        float[] query = queries[qOffset / head_size];
+        for (int i = 0; i < head_size; i++) {
+            query[i] = q.getAtIndex(ValueLayout.JAVA_FLOAT, qOffset + i);
+        }
+        if (SPARSE_ATTENTION) {
+            sparseAttentionScores(layer, kvHead, count, query, qOffset / head_size, att, attOffset);
+            return;
+        }
+        for (int index = 0; index * pageSize < count; index++) {
+            scoreBlock(layer, kvHead, index, count, query, att, attOffset);
+        }
+    }
+
+    /**
+     * Computes the attention scores of the positions of one page.
+     *
+     * @return The maximum score of the page.
+     */
+    private float scoreBlock(int layer, int kvHead, int index, int count, float[] query, float[] att, int attOffset) {
+        float scale = (float) Math.sqrt(head_size);
+        long base = offset(0, layer, kvHead);
+        MemorySegment page = pages[index];
+        int start = index * pageSize;
+        int end = Math.min(start + pageSize, count);
+        float max = Float.NEGATIVE_INFINITY;
+        for (int t = start; t < end; t++) {
+            att[attOffset + t] = dot(page, base + (t - start) * rowBytes, query) / scale;
+            max = Math.max(max, att[attOffset + t]);
+        }
+        return max;
+    }
+
+    /**
+     * Computes the attention scores over a subset of the pages, see the class
+     * comment. The scores of the pages left out are set to -inf, so they get no
+     * weight in the softmax. The bookkeeping of the pages is the scratch of the
+     * query head {@code head}, so the query heads can be attended concurrently.
+     */
+    private void sparseAttentionScores(int layer, int kvHead, int count, float[] query, int head, float[] att, int attOffset) {
+        int numBlocks = (count + pageSize - 1) / pageSize;
+        int firstRecent = Math.max(0, numBlocks - SPARSE_ATTENTION_RECENT_PAGES);
+        float scale = (float) Math.sqrt(head_size);
+        int min = (layer * n_kv_heads + kvHead) * 2 * head_size;
+        int max = min + head_size;
+
+        // upper bounds of the scores of the older (full) pages, in descending order
+        int[] order = this.order[head];
+        float[] upper = this.upper[head];
+        int size = 0;
+        for (int index = 0; index < firstRecent; index++) {
+            float[] b = bounds[index];
+            float bound = 0.0f;
+            for (int i = 0; i < head_size; i++) {
+                bound += Math.max(query[i] * b[min + i], query[i] * b[max + i]);
+            }
+            size = MatrixVectorCollection.heapOffer(order, upper, size, firstRecent, index, bound / scale);
+        }
+        MatrixVectorCollection.heapSortDescending(order, upper, size);
+        // remaining[j]: bound of the softmax mass of the pages order[j..], relative to exp(upper[0])
+        double[] remaining = this.remaining[head];
+        remaining[size] = 0.0;
+        for (int j = size - 1; j >= 0; j--) {
+            remaining[j] = remaining[j + 1] + pageSize * Math.exp(upper[j] - upper[0]);
+        }
+
+        // the recent pages are always attended
+        float maxScore = Float.NEGATIVE_INFINITY;
+        for (int index = firstRecent; index < numBlocks; index++) {
+            maxScore = Math.max(maxScore, scoreBlock(layer, kvHead, index, count, query, att, attOffset));
+        }
+        double mass = 0.0; // softmax mass of the attended positions, relative to exp(maxScore)
+        for (int t = firstRecent * pageSize; t < count; t++) {
+            mass += Math.exp(att[attOffset + t] - maxScore);
+        }
+
+        // then the older pages, until the rest cannot hold enough weight to miss the recall target
+        int j = 0;
+        for (; j < size; j++) {
+            double rest = remaining[j] * Math.exp(upper[0] - maxScore);
+            if (mass >= SPARSE_ATTENTION_RECALL * (mass + rest)) {
+                break;
+            }
+            float blockMax = scoreBlock(layer, kvHead, order[j], count, query, att, attOffset);
+            if (blockMax > maxScore) {
+                mass *= Math.exp(maxScore - blockMax);
+                maxScore = blockMax;
+            }
+            for (int t = order[j] * pageSize; t < (order[j] + 1) * pageSize; t++) {
+                mass += Math.exp(att[attOffset + t] - maxScore);
+            }
+        }
+        for (; j < size; j++) {
+            Arrays.fill(att, attOffset + order[j] * pageSize, attOffset + (order[j] + 1) * pageSize, Float.NEGATIVE_INFINITY);
+        }
+    }
+
+    /**
+     * Computes the weighted sum of the first {@code count} cached values of a kv
+     * head, using the attention weights, and stores it into the output head.
+     *
+     * @param layer
+     *            The layer to attend over.
+     * @param kvHead
+     *            The kv head shared by the query head.
+     * @param count
+     *            The number of cached positions to attend over.
+     * @param att
+     *            The attention weights.
+     * @param attOffset
+     *            The index of the first weight within {@code att}.
+     * @param xb
+     *            The output vector.
+     * @param xbOffset
+     *            The index of the output head within {@code xb}.
+     */
+    void attentionValues(int layer, int kvHead, int count, float[] att, int attOffset, MemorySegment xb, int xbOffset) {
+        float[] out = outputs[xbOffset / head_size];
+        Arrays.fill(out, 0.0f);
+        long base = offset(1, layer, kvHead);
+        for (int start = 0; start < count; start += pageSize) {
+            MemorySegment page = pages[start / pageSize];
+            int end = Math.min(start + pageSize, count);
+            for (int t = start; t < end; t++) {
+                float a = att[attOffset + t];
+                if (a != 0.0f) { // skips the pages left out by the sparse attention
+                    accumulate(page, base + (t - start) * rowBytes, a, out);
+                }
+            }
+        }
+        for (int i = 0; i < head_size; i++) {
+            xb.setAtIndex(ValueLayout.JAVA_FLOAT, xbOffset + i, out[i]);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package io.github.mikepapadim;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * KV cache storing every row as head_size half-precision floats, halving the
+ * memory and bandwidth of the fp32 cache.
+ */
+public class KVCacheFP16 extends KVCache {
+
+    KVCacheFP16(Config config, KVPagePool pool) {
+        super(config, pool);
+    }
+
+    @Override
+    void encode(MemorySegment src, long srcIndex, MemorySegment dst, long dstOffset) {
+        long index = dstOffset / Short.BYTES;
+        for (int i = 0; i < head_size; i++) {
+            dst.setAtIndex(ValueLayout.JAVA_SHORT, index + i, Float.floatToFloat16(src.getAtIndex(ValueLayout.JAVA_FLOAT, srcIndex + i)));
+        }
+    }
+
+    @Override
+    float dot(MemorySegment src, long offset, float[] query) {
+        long index = offset / Short.BYTES;
+        float score = 0.0f;
+        for (int i = 0; i < head_size; i++) {
+            score += query[i] * Float.float16ToFloat(src.getAtIndex(ValueLayout.JAVA_SHORT, index + i));
+        }
+        return score;
+    }
+
+    @Override
+    void accumulate(MemorySegment src, long offset, float a, float[] out) {
+        long index = offset / Short.BYTES;
+        for (int i = 0; i < head_size; i++) {
+            out[i] += a * Float.float16ToFloat(src.getAtIndex(ValueLayout.JAVA_SHORT, index + i));
+        }
+    }
+}
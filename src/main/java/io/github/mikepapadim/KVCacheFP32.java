@@ -0,0 +1,37 @@
+package io.github.mikepapadim;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * KV cache storing every row as head_size floats.
+ */
+public class KVCacheFP32 extends KVCache {
+
+    KVCacheFP32(Config config, KVPagePool pool) {
+        super(config, pool);
+    }
+
+    @Override
+    void encode(MemorySegment src, long srcIndex, MemorySegment dst, long dstOffset) {
+        MemorySegment.copy(src, srcIndex * Float.BYTES, dst, dstOffset, rowBytes);
+    }
+
+    @Override
+    float dot(MemorySegment src, long offset, float[] query) {
+        long index = offset / Float.BYTES;
+        float score = 0.0f;
+        for (int i = 0; i < head_size; i++) {
+            score += query[i] * src.getAtIndex(ValueLayout.JAVA_FLOAT, index + i);
+        }
+        return score;
+    }
+
+    @Override
+    void accumulate(MemorySegment src, long offset, float a, float[] out) {
+        long index = offset / Float.BYTES;
+        for (int i = 0; i < head_size; i++) {
+            out[i] += a * src.getAtIndex(ValueLayout.JAVA_FLOAT, index + i);
+        }
+    }
+}
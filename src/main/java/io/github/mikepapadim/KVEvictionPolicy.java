@@ -0,0 +1,195 @@
+package io.github.mikepapadim;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the KV cache of a session within a budget of positions. The policy
+ * records the attention weights that every query head gives to the cached
+ * positions, and when the cache reaches its budget it evicts a quarter of the
+ * positions of every layer and kv head, moving the kept ones down (see
+ * {@link KVCache#compact}). Each head keeps its own positions, chosen by
+ * {@link #select}.
+ *
+ * <p>The policy is selected through the {@code llama2.KVEviction} property:
+ * {@code h2o} (default, see {@link HeavyHitterEviction}) or {@code window} (see
+ * {@link RecentWindowEviction}), and enabled by setting the budget
+ * {@code llama2.KVBudget} (positions per session). {@link #report()} prints the
+ * KV memory saved and the share of the attention weight that the kept positions
+ * had received, as a proxy of the quality loss.</p>
+ */
+public abstract class KVEvictionPolicy {
+
+    static final String POLICY = System.getProperty("llama2.KVEviction", "h2o");
+
+    final int budget; // cached positions per session
+    final int n_layers;
+    final int n_heads;
+    final int kv_mul;
+    final long positionBytes; // KV memory of one position, all layers and heads
+    final int seq_len;
+
+    final float[][] scores; // (layer, n_heads * budget) cumulative attention weights
+    private int observed; // the scores past this position are all zero
+
+    private long evictions;
+    private long evictedPositions;
+    private double retainedWeight; // sum of the share of the attention weight kept by each eviction of a head
+    private long evictedHeads;
+
+    KVEvictionPolicy(Config config, int budget) {
+        this.budget = budget;
+        this.n_layers = config.n_layers;
+        this.n_heads = config.n_heads;
+        this.kv_mul = config.n_heads / config.n_kv_heads;
+        this.positionBytes = 2L * config.n_layers * config.n_kv_heads * KVCache.rowBytes(config);
+        this.seq_len = config.seq_len;
+        this.scores = new float[config.n_layers][config.n_heads * budget];
+    }
+
+    /**
+     * Returns the number of positions a session keeps, set through the
+     * {@code llama2.KVBudget} property and bounded by seq_len, or 0 if no budget
+     * is set.
+     */
+    static int budget(Config config) {
+        return Math.max(Math.min(Integer.getInteger("llama2.KVBudget", 0), config.seq_len), 0);
+    }
+
+    /**
+     * Creates the policy selected by the {@code llama2.KVEviction} property.
+     *
+     * @param config
+     *            The {@link Config} object containing transformer model
+     *            configuration.
+     * @return The policy, or null if no budget is set.
+     */
+    static KVEvictionPolicy create(Config config) {
+        int budget = budget(config);
+        if (budget <= 0) {
+            return null;
+        }
+        return switch (POLICY) {
+            case "h2o" -> new HeavyHitterEviction(config, budget);
+            case "window" -> new RecentWindowEviction(config, budget);
+            default -> throw new IllegalArgumentException("Unknown KV eviction policy: " + POLICY);
+        };
+    }
+
+    /**
+     * Records the attention weights of a query head over the cached positions.
+     * Query heads are observed concurrently, each one only writes its own scores.
+     *
+     * @param layer
+     *            The layer of the head.
+     * @param head
+     *            The query head.
+     * @param att
+     *            The attention weights, after the softmax.
+     * @param attOffset
+     *            The index of the first weight within {@code att}.
+     * @param count
+     *            The number of cached positions.
+     */
+    void observe(int layer, int head, float[] att, int attOffset, int count) {
+        float[] s = scores[layer];
+        int base = head * budget;
+        observed = Math.max(observed, count); // the same count for all the heads of a step
+        for (int t = 0; t < count; t++) {
+            s[base + t] += att[attOffset + t];
+        }
+    }
+
+    /**
+     * Returns the cumulative attention weight of a position, over the query heads
+     * of a kv head.
+     */
+    float score(int layer, int kvHead, int pos) {
+        float score = 0.0f;
+        for (int h = kvHead * kv_mul; h < (kvHead + 1) * kv_mul; h++) {
+            score += scores[layer][h * budget + pos];
+        }
+        return score;
+    }
+
+    /**
+     * Chooses the positions of a kv head to keep.
+     *
+     * @param layer
+     *            The layer of the head.
+     * @param kvHead
+     *            The kv head.
+     * @param length
+     *            The number of cached positions.
+     * @param keep
+     *            The output buffer of the positions to keep, in ascending order.
+     * @param numKeep
+     *            The number of positions to keep.
+     */
+    abstract void select(int layer, int kvHead, int length, int[] keep, int numKeep);
+
+    /**
+     * Evicts positions from a full KV cache.
+     *
+     * @param kv
+     *            The KV cache.
+     * @param length
+     *            The number of cached positions.
+     * @return The number of positions evicted.
+     */
+    int evict(KVCache kv, int length) {
+        int numKeep = length - Math.max(1, length / 4);
+        int[] keep = new int[numKeep];
+        for (int layer = 0; layer < n_layers; layer++) {
+            for (int kvHead = 0; kvHead < kv.n_kv_heads; kvHead++) {
+                select(layer, kvHead, length, keep, numKeep);
+                kv.compact(layer, kvHead, keep, numKeep);
+
+                double total = 0.0;
+                double kept = 0.0;
+                for (int t = 0; t < length; t++) {
+                    total += score(layer, kvHead, t);
+                }
+                for (int j = 0; j < numKeep; j++) {
+                    kept += score(layer, kvHead, keep[j]);
+                }
+                retainedWeight += total > 0.0 ? kept / total : 1.0;
+                evictedHeads++;
+
+                // the scores follow their positions
+                for (int h = kvHead * kv_mul; h < (kvHead + 1) * kv_mul; h++) {
+                    float[] s = scores[layer];
+                    int base = h * budget;
+                    for (int j = 0; j < numKeep; j++) {
+                        s[base + j] = s[base + keep[j]];
+                    }
+                    Arrays.fill(s, base + numKeep, base + budget, 0.0f);
+                }
+            }
+        }
+        kv.truncate(numKeep);
+        evictions++;
+        evictedPositions += length - numKeep;
+        return length - numKeep;
+    }
+
+    /**
+     * Clears the scores, for a new sequence. Only the positions that were
+     * observed are visited, not the whole budget.
+     */
+    void reset() {
+        for (float[] s : scores) {
+            for (int h = 0; h < n_heads; h++) {
+                Arrays.fill(s, h * budget, h * budget + observed, 0.0f);
+            }
+        }
+        observed = 0;
+    }
+
+    void report() {
+        System.err.printf("kv eviction (%s, budget %d positions):\n", POLICY, budget);
+        System.err.printf("  kv memory    : %d bytes per session, %d bytes at seq_len (%.1f%%)\n", budget * positionBytes,
+                seq_len * positionBytes, 100.0 * budget / seq_len);
+        System.err.printf("  evictions    : %d, %d positions per head\n", evictions, evictedPositions);
+        System.err.printf("  attention weight retained: %6.2f%%\n", evictedHeads > 0 ? 100.0 * retainedWeight / evictedHeads : 100.0);
+    }
+}
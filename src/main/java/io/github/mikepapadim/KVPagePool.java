@@ -0,0 +1,224 @@
+package io.github.mikepapadim;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+
+/**
+ * Block allocator of KV cache pages, shared by all the sessions of a model. A
+ * page holds the keys and values of {@code pageSize} consecutive positions for
+ * every layer and kv head, so the KV memory of a session grows with the number
+ * of tokens it actually uses instead of with seq_len.
+ *
+ * <p>The native memory is reserved in chunks of about {@link #CHUNK_BYTES} as the
+ * pool grows, up to {@code maxPages} (0 for no limit). Pages are reference
+ * counted, so full pages can be shared read-only between sessions (see
+ * {@link PrefixCache}); a page goes back to the free list when its last
+ * reference is released, and is handed out again before the pool grows.</p>
+ */
+public class KVPagePool {
+
+    static final long CHUNK_BYTES = 16L << 20;
+
+    final String precision; // encoding of the rows, see KVCache
+    final int pageSize; // positions per page
+    final long rowBytes; // size of one encoded (head_size,) row
+    final long pageBytes; // (2, layer, kv_head, pageSize) rows
+    final int maxPages;
+    final int pagesPerChunk;
+    final int boundsSize; // floats of the key bounds of a page, 0 unless sparse attention is enabled
+
+    private final Arena arena = Arena.ofShared();
+    private volatile MemorySegment[] chunks = new MemorySegment[0];
+    private int[] freePages = new int[16];
+    private int[] refCounts = new int[16];
+    private float[][] keyBounds = new float[16][];
+    private int numFreePages;
+    private int numPages; // pages ever created, free or in use
+
+    /**
+     * Creates an empty pool for the given model configuration, with the KV
+     * precision ({@code llama2.KVCache}), the page size ({@code llama2.KVPageSize},
+     * default 16) and the page limit ({@code llama2.KVPoolPages}, default 0 for no
+     * limit) set through properties.
+     *
+     * @param config
+     *            The {@link Config} object containing transformer model
+     *            configuration.
+     */
+    KVPagePool(Config config) {
+        this(config, KVCache.PRECISION, Integer.getInteger("llama2.KVPageSize", 16), Integer.getInteger("llama2.KVPoolPages", 0));
+    }
+
+    KVPagePool(Config config, String precision, int pageSize, int maxPages) {
+        this.precision = precision;
+        this.pageSize = Math.min(pageSize, config.seq_len);
+        this.rowBytes = KVCache.rowBytes(config, precision);
+        this.pageBytes = 2L * config.n_layers * config.n_kv_heads * this.pageSize * rowBytes;
+        this.maxPages = maxPages;
+        this.pagesPerChunk = (int) Math.max(1, CHUNK_BYTES / pageBytes);
+        this.boundsSize = KVCache.SPARSE_ATTENTION ? 2 * config.n_layers * config.n_kv_heads * config.head_size : 0;
+    }
+
+    /**
+     * Takes a page from the pool, growing it if there are no free pages.
+     *
+     * @return The id of the page.
+     * @throws IllegalStateException
+     *             if the pool is at its page limit.
+     */
+    synchronized int allocate() {
+        if (numFreePages > 0) {
+            int page = freePages[--numFreePages];
+            refCounts[page] = 1;
+            return page;
+        }
+        if (maxPages > 0 && numPages >= maxPages) {
+            throw new IllegalStateException("KV page pool exhausted (" + maxPages + " pages)");
+        }
+        if (numPages == chunks.length * pagesPerChunk) {
+            MemorySegment[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+            grown[chunks.length] = arena.allocate(pagesPerChunk * pageBytes, Float.BYTES);
+            chunks = grown;
+        }
+        if (numPages == refCounts.length) {
+            refCounts = Arrays.copyOf(refCounts, refCounts.length * 2);
+            keyBounds = Arrays.copyOf(keyBounds, keyBounds.length * 2);
+        }
+        refCounts[numPages] = 1;
+        if (boundsSize > 0) {
+            keyBounds[numPages] = new float[boundsSize];
+        }
+        return numPages++;
+    }
+
+    /**
+     * Reserves the native memory of the first {@code pages} pages up front (up to
+     * the page limit, if any), so that allocating them later never grows the
+     * pool.
+     *
+     * @param pages
+     *            The number of pages to reserve.
+     */
+    synchronized void reserve(int pages) {
+        if (maxPages > 0) {
+            pages = Math.min(pages, maxPages);
+        }
+        int reserved = chunks.length * pagesPerChunk;
+        if (pages <= reserved) {
+            return;
+        }
+        int added = (pages - reserved + pagesPerChunk - 1) / pagesPerChunk;
+        MemorySegment[] grown = Arrays.copyOf(chunks, chunks.length + added);
+        for (int c = chunks.length; c < grown.length; c++) {
+            grown[c] = arena.allocate(pagesPerChunk * pageBytes, Float.BYTES);
+        }
+        chunks = grown;
+        if (refCounts.length < grown.length * pagesPerChunk) {
+            refCounts = Arrays.copyOf(refCounts, grown.length * pagesPerChunk);
+            keyBounds = Arrays.copyOf(keyBounds, grown.length * pagesPerChunk);
+        }
+    }
+
+    /**
+     * Adds a reference to a page that is already in use.
+     *
+     * @param page
+     *            The id of the page.
+     */
+    synchronized void retain(int page) {
+        refCounts[page]++;
+    }
+
+    /**
+     * Drops a reference to a page, returning it to the pool when it was the last
+     * one. Its contents are left as they are.
+     *
+     * @param page
+     *            The id of the page.
+     */
+    synchronized void release(int page) {
+        if (--refCounts[page] > 0) {
+            return;
+        }
+        if (numFreePages == freePages.length) {
+            freePages = Arrays.copyOf(freePages, freePages.length * 2);
+        }
+        freePages[numFreePages++] = page;
+    }
+
+    /**
+     * Drops a reference to each of the allocated pages of a range of a page
+     * table, see {@link #release(int)}.
+     *
+     * @param pageTable
+     *            The page ids, -1 for the pages that are not allocated.
+     * @param from
+     *            The first entry, inclusive.
+     * @param to
+     *            The last entry, exclusive.
+     */
+    synchronized void release(int[] pageTable, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (pageTable[i] != -1) {
+                release(pageTable[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns whether a page has more than one reference, i.e., it must be copied
+     * before it is written.
+     *
+     * @param page
+     *            The id of the page.
+     */
+    synchronized boolean isShared(int page) {
+        return refCounts[page] > 1;
+    }
+
+    /**
+     * Returns the memory of a page.
+     *
+     * @param page
+     *            The id of the page.
+     * @return A segment of {@link #pageBytes} bytes.
+     */
+    MemorySegment segment(int page) {
+        return chunks[page / pagesPerChunk].asSlice((page % pagesPerChunk) * pageBytes, pageBytes);
+    }
+
+    /**
+     * Returns the per-channel bounds of the keys stored in a page, laid out as
+     * (layer, kv_head, min/max, head_size), or null unless sparse attention is
+     * enabled. They are kept up to date by the cache writing the page.
+     *
+     * @param page
+     *            The id of the page.
+     */
+    synchronized float[] keyBounds(int page) {
+        return keyBounds[page];
+    }
+
+    /**
+     * Returns the number of pages currently handed out to sessions.
+     */
+    synchronized int usedPages() {
+        return numPages - numFreePages;
+    }
+
+    /**
+     * Returns the native memory reserved by the pool, in bytes.
+     */
+    long reservedBytes() {
+        return chunks.length * pagesPerChunk * pageBytes;
+    }
+
+    /**
+     * Frees the native memory of the pool. No page may be used afterwards.
+     */
+    synchronized void close() {
+        arena.close();
+        chunks = new MemorySegment[0];
+    }
+}
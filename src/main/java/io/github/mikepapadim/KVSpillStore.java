@@ -0,0 +1,142 @@
+package io.github.mikepapadim;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Disk tier of the KV caches. The KV pages of an idle session are written to a
+ * memory-mapped file in a local directory and released from memory, and are
+ * read back with bulk copies when the session resumes, instead of prefilling
+ * the whole conversation again. The files outlive the process, so sessions can
+ * also be resumed after a restart.
+ *
+ * <p>A session file holds a header with the geometry and the precision of the
+ * cache, followed by the used pages in position order. Files are written to a temporary file and
+ * then renamed, so a crash never leaves a truncated session behind.</p>
+ */
+public class KVSpillStore {
+
+    private static final int MAGIC = 0x4B564332; // "KVC2"
+    private static final int HEADER_INTS = 8; // magic, n_layers, n_kv_heads, head_size, precision, row bytes, page size, length
+    private static final long HEADER_BYTES = HEADER_INTS * Integer.BYTES;
+    private static final List<String> PRECISIONS = List.of("fp32", "fp16", "int8"); // by their code in the header
+
+    final Path directory;
+
+    /**
+     * Creates a store in the given directory, creating it if needed.
+     *
+     * @param directory
+     *            The directory of the session files.
+     * @throws IOException
+     *             If the directory cannot be created.
+     */
+    KVSpillStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    private Path file(String session) {
+        return directory.resolve(session + ".kv");
+    }
+
+    /**
+     * Writes the first {@code length} positions of a KV cache to the session file,
+     * and returns all the pages of the cache to the pool.
+     *
+     * @param session
+     *            The id of the session.
+     * @param kv
+     *            The KV cache of the session.
+     * @param length
+     *            The number of positions in the cache.
+     * @throws IOException
+     *             If an I/O error occurs while writing the file.
+     */
+    void spill(String session, KVCache kv, int length) throws IOException {
+        int numPages = (length + kv.pageSize - 1) / kv.pageSize;
+        long pageBytes = kv.pool.pageBytes;
+        Path tmp = directory.resolve(session + ".kv.tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             Arena arena = Arena.ofConfined()) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + numPages * pageBytes, arena);
+            int[] header = header(kv, length);
+            MemorySegment.copy(header, 0, file, ValueLayout.JAVA_INT, 0, header.length);
+            for (int i = 0; i < numPages; i++) {
+                MemorySegment.copy(kv.pages[i], 0, file, HEADER_BYTES + i * pageBytes, pageBytes);
+            }
+            file.force();
+        }
+        Files.move(tmp, file(session), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        kv.reset();
+    }
+
+    /**
+     * Reads a session file back into an empty KV cache.
+     *
+     * @param session
+     *            The id of the session.
+     * @param kv
+     *            The empty KV cache of the session.
+     * @return The number of positions restored, or 0 if there is no file for the
+     *         session.
+     * @throws IOException
+     *             If an I/O error occurs while reading the file, if it was
+     *             written for a different model or cache configuration, or if it
+     *             is truncated.
+     */
+    int restore(String session, KVCache kv) throws IOException {
+        Path path = file(session);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long pageBytes = kv.pool.pageBytes;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             Arena arena = Arena.ofConfined()) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Session file " + path + " is truncated");
+            }
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena);
+            int[] header = file.asSlice(0, HEADER_BYTES).toArray(ValueLayout.JAVA_INT);
+            int length = header[HEADER_INTS - 1];
+            int[] expected = header(kv, length);
+            if (!Arrays.equals(header, expected) || length < 0 || length > kv.pages.length * kv.pageSize) {
+                throw new IOException("Session file " + path + " does not match the KV cache configuration");
+            }
+            int numPages = (length + kv.pageSize - 1) / kv.pageSize;
+            if (size != HEADER_BYTES + numPages * pageBytes) {
+                throw new IOException("Session file " + path + " has " + size + " bytes, expected " + (HEADER_BYTES + numPages * pageBytes));
+            }
+            for (int i = 0; i < numPages; i++) {
+                MemorySegment.copy(file, HEADER_BYTES + i * pageBytes, kv.page(i * kv.pageSize), 0, pageBytes);
+            }
+            kv.summarize(length);
+            return length;
+        }
+    }
+
+    /**
+     * Deletes the session file, if any.
+     *
+     * @param session
+     *            The id of the session.
+     * @throws IOException
+     *             If an I/O error occurs while deleting the file.
+     */
+    void delete(String session) throws IOException {
+        Files.deleteIfExists(file(session));
+    }
+
+    private static int[] header(KVCache kv, int length) {
+        return new int[] { MAGIC, kv.n_layers, kv.n_kv_heads, kv.head_size, PRECISIONS.indexOf(kv.pool.precision), (int) kv.rowBytes, kv.pageSize, length };
+    }
+}
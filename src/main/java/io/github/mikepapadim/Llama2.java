@@ -4,10 +4,13 @@ import java.io.IOException;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 import uk.ac.manchester.tornado.api.TaskGraph;
 import uk.ac.manchester.tornado.api.TornadoExecutionPlan;
@@ -30,10 +33,51 @@ class Llama2 {
      */
     static final boolean USE_VECTOR_API = getBooleanProperty("VectorAPI", false);
 
-    private static boolean getBooleanProperty(String propertyName, boolean defaultValue) {
+    /**
+     * Fuses the classifier matmul with greedy and top-k sampling in the Java
+     * version, so the logits vector is never materialized.
+     */
+    static final boolean USE_FUSED_CLASSIFIER = getBooleanProperty("FusedClassifier", true);
+
+    /**
+     * Skips the columns of the FFN down projection (w2) whose SwiGLU activation is
+     * below {@link #SPARSE_FFN_THRESHOLD} in absolute value (Java version only).
+     * Only the single-sequence forward pass (generate and chat modes) is sparse:
+     * the batched forward pass of the {@link Scheduler} always runs the dense
+     * projection, since the rows of a batch do not share their active columns.
+     * The sparse projection streams the columns of w2 from a transposed copy,
+     * kept next to w2 (still needed by the batched pass and the accuracy
+     * checks), so it adds the size of w2 to the memory of the weights.
+     */
+    static final boolean USE_SPARSE_FFN = getBooleanProperty("SparseFFN", false);
+    static final float SPARSE_FFN_THRESHOLD = getFloatProperty("SparseFFNThreshold", 1e-2f);
+
+    /**
+     * Streaming (attention sink) mode: generation and chat go on past seq_len by
+     * keeping the first {@link #STREAMING_SINKS} tokens of the KV cache plus a
+     * window of the most recent ones. When the cache is full, the oldest half of
+     * the window is discarded and the rest moved down, so the RoPE positions stay
+     * within the cache and the memory and attention cost per token are bounded.
+     */
+    static final boolean STREAMING = getBooleanProperty("Streaming", false);
+    static final int STREAMING_SINKS = Integer.getInteger("llama2.StreamingSinks", 4);
+
+    /**
+     * Prefills the prompt in batches of up to {@link #PREFILL_CHUNK} tokens, with
+     * matrix-matrix products instead of one forward pass per token (Java version
+     * only).
+     */
+    static final boolean USE_BATCHED_PREFILL = getBooleanProperty("BatchedPrefill", true);
+    static final int PREFILL_CHUNK = Integer.getInteger("llama2.PrefillChunk", 64);
+
+    static boolean getBooleanProperty(String propertyName, boolean defaultValue) {
         return "true".equalsIgnoreCase(System.getProperty("llama2." + propertyName, String.valueOf(defaultValue)));
     }
 
+    private static float getFloatProperty(String propertyName, float defaultValue) {
+        return Float.parseFloat(System.getProperty("llama2." + propertyName, String.valueOf(defaultValue)));
+    }
+
     // ============= Utility functions =============
 
     /**
@@ -42,12 +86,14 @@ class Llama2 {
      *
      * @param transformer
      *            The Transformer model used for sequence generation.
+     * @param state
+     *            The run state of the session, whose buffers the plan uses.
      * @return The TornadoVM execution plan for the specified execution mode
      */
-    private static TornadoExecutionPlan createTornadoExecutionPlan(Transformer transformer) {
+    private static TornadoExecutionPlan createTornadoExecutionPlan(Transformer transformer, RunState state) {
         Config p = transformer.config;
         WeightsFP32 w = (WeightsFP32) transformer.weights;
-        RunStateFloat s = (RunStateFloat) transformer.state;
+        RunStateFloat s = (RunStateFloat) state;
         int dim = p.dim;
         TaskGraph taskGraph;
 
@@ -174,12 +220,13 @@ class Llama2 {
         }
 
         if (t.sorted_vocab == null) {
-            // sort vocabulary
-            t.sorted_vocab = new HashMap<>();
+            // sort vocabulary, and publish it once complete since the tokenizer is shared by the sessions
+            Map<String, Integer> sorted_vocab = new HashMap<>();
             for (int i = 0; i < t.vocab_size; i++) {
-                assert !t.sorted_vocab.containsKey(t.vocab[i]);
-                t.sorted_vocab.put(t.vocab[i], i);
+                assert !sorted_vocab.containsKey(t.vocab[i]);
+                sorted_vocab.put(t.vocab[i], i);
             }
+            t.sorted_vocab = sorted_vocab;
         }
 
         // start at 0 tokens
@@ -493,6 +540,86 @@ class Llama2 {
         return max_i;
     }
 
+    /**
+     * Selects the top-k logits into the buffers of the sampler, in descending
+     * order.
+     *
+     * @param sampler
+     *            The sampler holding the top-k parameter and buffers.
+     * @param logits
+     *            The array of logits.
+     * @return The number of selected candidates.
+     */
+    static int select_topk(Sampler sampler, float[] logits) {
+        int size = 0;
+        for (int i = 0; i < sampler.vocab_size; i++) {
+            size = MatrixVectorCollection.heapOffer(sampler.topk_indices, sampler.topk_values, size, sampler.topk, i, logits[i]);
+        }
+        MatrixVectorCollection.heapSortDescending(sampler.topk_indices, sampler.topk_values, size);
+        return size;
+    }
+
+    static int select_topk(Sampler sampler, MemorySegment logits) {
+        int size = 0;
+        for (int i = 0; i < sampler.vocab_size; i++) {
+            size = MatrixVectorCollection.heapOffer(sampler.topk_indices, sampler.topk_values, size, sampler.topk, i, get(logits, i));
+        }
+        MatrixVectorCollection.heapSortDescending(sampler.topk_indices, sampler.topk_values, size);
+        return size;
+    }
+
+    /**
+     * Performs top-k sampling over the candidates previously selected into the
+     * buffers of the sampler. The temperature and the softmax are applied over the
+     * candidates only, and the top-p threshold, if any, is applied within them.
+     *
+     * @param sampler
+     *            The sampler holding the selected candidates, sorted by descending
+     *            logit.
+     * @param n
+     *            The number of selected candidates.
+     * @return The index of the sampled token.
+     */
+    static int sample_topk(Sampler sampler, int n) {
+        int[] indices = sampler.topk_indices;
+        float[] values = sampler.topk_values;
+        // apply the temperature and softmax over the candidates (values[0] is the largest logit)
+        float max_val = values[0];
+        float sum = 0.0f;
+        for (int i = 0; i < n; i++) {
+            values[i] = (float) Math.exp((values[i] - max_val) / sampler.temperature);
+            sum += values[i];
+        }
+
+        // truncate the candidates where the cumulative probability exceeds topp
+        int last_idx = n - 1;
+        if (sampler.topp > 0 && sampler.topp < 1) {
+            float cumulative_prob = 0.0f;
+            for (int i = 0; i < n; i++) {
+                cumulative_prob += values[i] / sum;
+                if (cumulative_prob > sampler.topp) {
+                    last_idx = i;
+                    break;
+                }
+            }
+        }
+        float mass = 0.0f;
+        for (int i = 0; i <= last_idx; i++) {
+            mass += values[i];
+        }
+
+        // sample from the truncated list
+        float r = sampler.random_f32() * mass;
+        float cdf = 0.0f;
+        for (int i = 0; i <= last_idx; i++) {
+            cdf += values[i];
+            if (r < cdf) {
+                return indices[i];
+            }
+        }
+        return indices[last_idx]; // in case of rounding errors
+    }
+
     /**
      * Samples a token based on the given logits and sampler parameters.
      *
@@ -509,6 +636,9 @@ class Llama2 {
         if (sampler.temperature == 0.0f) {
             // greedy argmax sampling: take the token with the highest probability
             next = sample_argmax(logits, sampler.vocab_size);
+        } else if (sampler.topk > 0) {
+            // top-k sampling, the temperature is applied over the k candidates only
+            next = sample_topk(sampler, select_topk(sampler, logits));
         } else {
             // apply the temperature to the logits
             for (int q = 0; q < sampler.vocab_size; q++) {
@@ -535,6 +665,9 @@ class Llama2 {
         if (sampler.temperature == 0.0f) {
             // greedy argmax sampling: take the token with the highest probability
             next = sample_argmax(logits, sampler.vocab_size);
+        } else if (sampler.topk > 0) {
+            // top-k sampling, the temperature is applied over the k candidates only
+            next = sample_topk(sampler, select_topk(sampler, logits));
         } else {
             // apply the temperature to the logits
             for (int q = 0; q < sampler.vocab_size; q++) {
@@ -558,12 +691,70 @@ class Llama2 {
         return next;
     }
 
+    /**
+     * Makes room in a full KV cache before the next position is stored: evicts
+     * positions when the cache reaches its budget, or in streaming mode discards
+     * the oldest half of the positions after the sink tokens when it reaches
+     * seq_len.
+     *
+     * @param kv
+     *            The KV cache.
+     * @param length
+     *            The number of cached positions.
+     * @param seq_len
+     *            The maximum number of cached positions.
+     * @return The number of positions removed.
+     */
+    static int makeRoom(KVCache kv, int length, int seq_len) {
+        if (kv.eviction != null && length == kv.eviction.budget) {
+            return kv.eviction.evict(kv, length);
+        }
+        if (STREAMING && length == seq_len) {
+            int sinks = Math.min(STREAMING_SINKS, length - 1);
+            int count = Math.max(1, (length - sinks) / 2);
+            kv.discard(sinks, count, length);
+            return count;
+        }
+        return 0;
+    }
+
+    /**
+     * Runs the forward pass of a token on the backend selected by
+     * {@code llama2.version}.
+     *
+     * @param transformer
+     *            The Transformer model.
+     * @param state
+     *            The run state of the session.
+     * @param token
+     *            The input token.
+     * @param pos
+     *            The position of the token in the sequence.
+     * @param tornadoExecutionPlan
+     *            The execution plan of the classifier, only used by the TornadoVM
+     *            backend.
+     * @return The logits of the next token.
+     */
+    static MemorySegment forward(Transformer transformer, RunState state, int token, int pos, TornadoExecutionPlan tornadoExecutionPlan) {
+        if (Transformer.USE_JAVA) {
+            return InferenceEngine.forwardWithJava(transformer, state, token, pos);
+        } else if (Transformer.USE_LEVEL_ZERO) {
+            return InferenceEngine.forwardWithLevelZero(transformer, state, token, pos);
+        } else if (Transformer.USE_TORNADOVM) {
+            return InferenceEngine.forwardWithTornadoVM(transformer, state, token, pos, tornadoExecutionPlan);
+        } else {
+            throw new RuntimeException("Error");
+        }
+    }
+
     /**
      * Generates a sequence of tokens using the provided Transformer model,
      * Tokenizer, Sampler, and input prompt.
      *
      * @param transformer
      *            The Transformer model used for sequence generation.
+     * @param state
+     *            The run state of the session.
      * @param tokenizer
      *            The Tokenizer for encoding and decoding tokens.
      * @param sampler
@@ -572,8 +763,10 @@ class Llama2 {
      *            The input prompt to start the generation process.
      * @param steps
      *            The maximum number of steps (tokens) to generate.
+     * @param cancellation
+     *            Stops the generation, checked before every forward pass.
      */
-    static void generate(Transformer transformer, Tokenizer tokenizer, Sampler sampler, String prompt, int steps) {
+    static void generate(Transformer transformer, RunState state, Tokenizer tokenizer, Sampler sampler, String prompt, int steps, CancellationToken cancellation) {
         String empty_prompt = "";
         if (prompt == null) {
             prompt = empty_prompt;
@@ -589,28 +782,76 @@ class Llama2 {
         }
         TornadoExecutionPlan tornadoExecutionPlan = null;
         if (Transformer.USE_TORNADOVM) {
-             tornadoExecutionPlan = createTornadoExecutionPlan(transformer);
+             tornadoExecutionPlan = createTornadoExecutionPlan(transformer, state);
+        }
+
+        boolean fusedClassifier = Transformer.USE_JAVA && USE_FUSED_CLASSIFIER && sampler.isFusable();
+        BatchState prefill = state instanceof RunStateFloat s ? s.prefill : null;
+
+        // start from an empty KV cache, or from the longest cached prefix of the prompt
+        KVCache kv = state.kv;
+        kv.reset();
+        int resume_pos = 0;
+        if (transformer.prefixCache != null) {
+            resume_pos = transformer.prefixCache.fork(prompt_tokens, num_prompt_tokens, kv);
+            // echo the part of the prompt that is not forwarded again
+            for (int i = 1; i <= resume_pos; i++) {
+                safe_printf(decode(tokenizer, prompt_tokens[i - 1], prompt_tokens[i]));
+            }
         }
 
         long start = 0; // used to time our code, only initialized after first iteration
+        int start_pos = 0; // position when the timer started
+        long prefill_ms = 0; // time spent in batched prefill
         int next; // will store the next token in the sequence
-        int token = prompt_tokens[0]; // kick off with the first token in the prompt
-        int pos = 0; // position in the sequence
+        int token = prompt_tokens[resume_pos]; // kick off with the first token in the prompt not yet in the KV cache
+        int pos = resume_pos; // position in the sequence
+        int shift = 0; // positions discarded from the KV cache in streaming mode
+        int capacity = kv.eviction != null ? kv.eviction.budget : transformer.config.seq_len;
         while (pos < steps) {
-            // forward the transformer to get logits for the next token
-            MemorySegment logits;
-            if (Transformer.USE_JAVA) {
-                logits = InferenceEngine.forwardWithJava(transformer, token, pos);
-            } else if (Transformer.USE_LEVEL_ZERO) {
-                logits = InferenceEngine.forwardWithLevelZero(transformer, token, pos);
-            } else if (Transformer.USE_TORNADOVM) {
-                logits = InferenceEngine.forwardWithTornadoVM(transformer, token, pos, tornadoExecutionPlan);
+            if (cancellation.isCancelled() || cancellation.isExpired(System.nanoTime())) {
+                System.err.printf("\ngeneration %s at position %d\n", cancellation.isCancelled() ? "cancelled" : "past its deadline", pos);
+                break;
+            }
+            shift += makeRoom(kv, pos - shift, transformer.config.seq_len);
+            int cache_pos = pos - shift; // position in the KV cache
+            if (prefill != null && pos < num_prompt_tokens - 1) {
+                // forward a chunk of the prompt as one batch, up to the last prompt
+                // token, whose logits are needed to sample
+                long prefill_start = time_in_ms();
+                int count = Math.min(Math.min(num_prompt_tokens - 1, steps) - pos, Math.min(prefill.capacity, capacity - cache_pos));
+                for (int r = 0; r < count; r++) {
+                    prefill.tokens[r] = prompt_tokens[pos + r];
+                    prefill.positions[r] = cache_pos + r;
+                    prefill.caches[r] = kv;
+                }
+                InferenceEngine.forwardBatchWithJava(transformer, prefill, count);
+                for (int r = 0; r < count; r++) {
+                    safe_printf(decode(tokenizer, prompt_tokens[pos + r], prompt_tokens[pos + r + 1]));
+                }
+                System.out.flush();
+                pos += count;
+                token = prompt_tokens[pos];
+                prefill_ms += time_in_ms() - prefill_start;
+                continue;
+            }
+            boolean prompting = pos < num_prompt_tokens - 1;
+            if (fusedClassifier) {
+                // the logits are only needed to sample, so the classifier runs fused with the sampler
+                InferenceEngine.forwardLayersWithJava(transformer, state, token, cache_pos);
+                next = prompting ? prompt_tokens[pos + 1] : InferenceEngine.sampleWithFusedClassifier(transformer, ((RunStateFloat) state).x, sampler);
             } else {
-                throw new RuntimeException("Error");
+                // forward the transformer to get logits for the next token
+                MemorySegment logits = forward(transformer, state, token, cache_pos, tornadoExecutionPlan);
+                next = prompting ? prompt_tokens[pos + 1] : sample(sampler, logits);
+            }
+
+            // the whole prompt is in the KV cache now, share its pages with later requests
+            if (transformer.prefixCache != null && shift == 0 && pos == num_prompt_tokens - 1) {
+                transformer.prefixCache.insert(prompt_tokens, num_prompt_tokens, kv);
             }
 
             // Advance the state machine
-            next = (pos < num_prompt_tokens - 1) ? prompt_tokens[pos + 1] : sample(sampler, logits);
             pos++;
 
             // data-dependent terminating condition: the BOS (=1) token delimits sequences
@@ -628,15 +869,31 @@ class Llama2 {
             // init the timer here because the first iteration can be slower
             if (start == 0) {
                 start = time_in_ms();
+                start_pos = pos;
             }
         }
 
         System.out.println();
 
-        // report achieved tok/s (pos-1 because the timer starts after first iteration)
-        if (pos > 1) {
+        // report achieved tok/s (from the position the timer started, because the first iteration can be slower)
+        if (start != 0 && pos > start_pos) {
             long end = time_in_ms();
-            System.err.printf("\nachieved tok/s: %f\n", (pos - 1) / (double) (end - start) * 1000);
+            System.err.printf("\nachieved tok/s: %f\n", (pos - start_pos) / (double) (end - start) * 1000);
+        }
+        if (prefill_ms > 0) {
+            System.err.printf("prefill: %d ms\n", prefill_ms);
+        }
+
+        if (transformer.prefixCache != null) {
+            System.err.println(transformer.prefixCache);
+        }
+
+        if (state instanceof RunStateFloat s && s.sparseFFNStats != null) {
+            s.sparseFFNStats.report();
+        }
+
+        if (kv.eviction != null) {
+            kv.eviction.report();
         }
     }
 
@@ -666,6 +923,8 @@ class Llama2 {
      *
      * @param transformer
      *            The Transformer model used for generating responses.
+     * @param state
+     *            The run state of the session.
      * @param tokenizer
      *            The Tokenizer for encoding and decoding text.
      * @param sampler
@@ -676,8 +935,11 @@ class Llama2 {
      *            The optional system prompt provided via the command line.
      * @param steps
      *            The maximum number of conversation steps.
+     * @throws IOException
+     *             If an I/O error occurs while spilling or restoring the KV
+     *             cache of the session.
      */
-    static void chat(Transformer transformer, Tokenizer tokenizer, Sampler sampler, String cli_user_prompt, String cli_system_prompt, int steps) {
+    static void chat(Transformer transformer, RunState state, Tokenizer tokenizer, Sampler sampler, String cli_user_prompt, String cli_system_prompt, int steps) throws IOException {
 
         // buffers for reading the system prompt and user prompt from stdin
         String system_prompt = null;
@@ -687,11 +949,30 @@ class Llama2 {
         int[] prompt_tokens = new int[512];
         int user_idx = 0;
 
+        TornadoExecutionPlan tornadoExecutionPlan = null;
+        if (Transformer.USE_TORNADOVM) {
+            tornadoExecutionPlan = createTornadoExecutionPlan(transformer, state);
+        }
+
+        // with a spill store, the KV cache of the session is kept on disk between
+        // turns, and a conversation left there by a previous run is resumed
+        KVSpillStore spillStore = transformer.spillStore;
+        String session = System.getProperty("llama2.Session", "chat");
+        KVCache kv = state.kv;
+        kv.reset();
+        int pos = 0; // position in the sequence
+        int shift = 0; // positions discarded from the KV cache in streaming mode
+        if (spillStore != null) {
+            pos = spillStore.restore(session, kv);
+            if (pos > 0) {
+                System.err.printf("resumed session %s at position %d\n", session, pos);
+            }
+        }
+
         // start the main loop
         boolean user_turn = true; // user starts
         int next = 0; // will store the next token in the sequence
         int token = 0; // stores the current token to feed into the transformer
-        int pos = 0; // position in the sequence
         while (pos < steps) {
 
             // when it is the user's turn to contribute tokens to the dialog...
@@ -712,8 +993,18 @@ class Llama2 {
                     // user prompt for position 0 was passed in, use it
                     user_prompt = cli_user_prompt;
                 } else {
-                    // otherwise get user prompt from stdin
+                    // otherwise get user prompt from stdin, the KV pages of the session
+                    // wait on disk meanwhile
+                    if (spillStore != null && pos > 0) {
+                        spillStore.spill(session, kv, pos - shift);
+                    }
                     user_prompt = read_stdin("User: ");
+                    if (user_prompt == null) {
+                        break;
+                    }
+                    if (spillStore != null && pos > 0) {
+                        spillStore.restore(session, kv);
+                    }
                 }
                 // render user/system prompts into the Llama 2 Chat schema
                 if (pos == 0 && system_prompt.isEmpty()) {
@@ -744,7 +1035,8 @@ class Llama2 {
             }
 
             // forward the transformer to get logits for the next token
-            MemorySegment logits = InferenceEngine.forwardWithTornadoVM(transformer, token, pos, null);
+            shift += makeRoom(kv, pos - shift, transformer.config.seq_len);
+            MemorySegment logits = forward(transformer, state, token, pos - shift, tornadoExecutionPlan);
             next = sample(sampler, logits);
             pos++;
 
@@ -761,6 +1053,105 @@ class Llama2 {
         System.out.println();
     }
 
+    // ============= Server =============
+
+    /**
+     * Serves completions of the model over HTTP on the port set through the
+     * {@code llama2.Port} property (default 8080), until the process is stopped.
+     * More models can be served by the same process, listed as
+     * {@code name=path,name=path} in the {@code llama2.Models} property; they are
+     * loaded on their first request, see {@link ModelRegistry}. Their LoRA
+     * adapters are listed the same way in the {@code llama2.Adapters} property.
+     *
+     * @param transformer
+     *            The Transformer model, served by default.
+     * @param tokenizer
+     *            The tokenizer of the model.
+     * @param modelFileBin
+     *            The path of the checkpoint, whose file name is the model name.
+     * @param tokenizerPath
+     *            The path of the tokenizer, shared by the models.
+     * @throws IOException
+     *             If the server cannot be started.
+     */
+    static void serve(Transformer transformer, Tokenizer tokenizer, String modelFileBin, String tokenizerPath) throws IOException {
+        if (!Transformer.USE_JAVA) {
+            System.err.println("serve mode needs -Dllama2.version=java");
+            System.exit(1);
+        }
+        String model = Paths.get(modelFileBin).getFileName().toString();
+        Map<String, Path> catalog = ModelRegistry.parseCatalog(System.getProperty("llama2.Models"));
+        catalog.putIfAbsent(model, Paths.get(modelFileBin));
+        ModelRegistry models = new ModelRegistry(catalog, ModelRegistry.parseCatalog(System.getProperty("llama2.Adapters")), model, Paths.get(tokenizerPath));
+        InferenceServer server = new InferenceServer(models, Integer.getInteger("llama2.Port", 8080));
+        server.start();
+        // warms the model up, while the server answers that it is not ready
+        models.preload(model, transformer, tokenizer);
+        server.ready();
+    }
+
+    /**
+     * Serves completions of the model on the Unix domain socket set through the
+     * {@code llama2.Socket} property (default llama2.sock), until the process is
+     * stopped. The socket is bound once the model is warmed up, see
+     * {@link WarmUp}.
+     *
+     * @param transformer
+     *            The Transformer model.
+     * @param tokenizer
+     *            The tokenizer of the model.
+     * @param modelFileBin
+     *            The checkpoint file, whose name identifies the model.
+     * @throws IOException
+     *             If the socket cannot be bound.
+     */
+    static void daemon(Transformer transformer, Tokenizer tokenizer, String modelFileBin) throws IOException {
+        if (!Transformer.USE_JAVA) {
+            System.err.println("daemon mode needs -Dllama2.version=java");
+            System.exit(1);
+        }
+        String model = Paths.get(modelFileBin).getFileName().toString();
+        Scheduler scheduler = new Scheduler(transformer, tokenizer);
+        if (WarmUp.ENABLED) {
+            // before the socket is bound, so that clients only find it once it serves
+            new WarmUp(scheduler).run();
+        }
+        DaemonServer daemon = new DaemonServer(transformer, tokenizer, scheduler, model, Paths.get(System.getProperty("llama2.Socket", "llama2.sock")));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                daemon.stop();
+            } catch (IOException e) {
+                // the socket file is left behind, and replaced at the next start
+            }
+        }));
+        daemon.start();
+    }
+
+    /**
+     * Runs the requests of a JSONL file in batch, see {@link BatchInference}.
+     *
+     * @param transformer
+     *            The Transformer model.
+     * @param tokenizer
+     *            The tokenizer of the model.
+     * @param input
+     *            The JSONL file of the requests.
+     * @param output
+     *            The JSONL file of the results, resumed from its checkpoint if
+     *            any.
+     * @param steps
+     *            The default maximum number of generated tokens.
+     * @throws IOException
+     *             If a file cannot be read or written.
+     */
+    static void batch(Transformer transformer, Tokenizer tokenizer, Path input, Path output, float temperature, float topp, int topk, long rng_seed, int steps) throws IOException {
+        if (!Transformer.USE_JAVA) {
+            System.err.println("batch mode needs -Dllama2.version=java");
+            System.exit(1);
+        }
+        new BatchInference(transformer, tokenizer, new Scheduler(transformer, tokenizer), input, output, temperature, topp, topk, rng_seed, steps).run();
+    }
+
     /**
      * Prints error messages and usage examples.
      */
@@ -770,12 +1161,15 @@ class Llama2 {
         System.err.println("Options:");
         System.err.println("  -t <float>  temperature in [0,inf], default 1.0");
         System.err.println("  -p <float>  p value in top-p (nucleus) sampling in [0,1] default 0.9");
+        System.err.println("  -k <int>    k value in top-k sampling, default 0 (disabled)");
         System.err.println("  -s <int>    random seed, default time(NULL)");
         System.err.println("  -n <int>    number of steps to run for, default 256. 0 = max_seq_len");
-        System.err.println("  -i <string> input prompt");
+        System.err.println("  -i <string> input prompt, or the input JSONL file in batch mode");
         System.err.println("  -z <string> optional path to custom tokenizer");
-        System.err.println("  -m <string> mode: generate|chat, default: generate");
+        System.err.println("  -m <string> mode: generate|chat|serve|daemon|batch, default: generate");
+        System.err.println("  -o <string> output JSONL file in batch mode");
         System.err.println("  -y <string> (optional) system prompt in chat mode");
+        System.err.println("  -d <int>    deadline of the generation in seconds, default 0 (none)");
         System.exit(1);
     }
 
@@ -785,11 +1179,14 @@ class Llama2 {
         String tokenizer_path = "tokenizer.bin";
         float temperature = 1.0f; // 0.0 = greedy deterministic. 1.0 = original. don't set higher
         float topp = 0.9f; // top-p in nucleus sampling. 1.0 = off. 0.9 works well, but slower
+        int topk = 0; // top-k sampling. 0 = off
         long rng_seed = 0; // seed rng with time by default
         int steps = 256; // max number of steps to run for, 0: use seq_len
         String prompt = null; // prompt string
-        String mode = "generate"; // generate|chat
+        String mode = "generate"; // generate|chat|serve|daemon|batch
+        String output = null; // the output file in batch mode
         String system_prompt = null; // the (optional) system prompt to use in chat mode
+        int deadline = 0; // seconds the generation may run for, 0 = no deadline
 
         // parsing of arguments to override the defaults above from the command
         if (args.length >= 1) {
@@ -836,12 +1233,15 @@ class Llama2 {
             switch (args[i].charAt(1)) {
                 case 't' -> temperature = Float.parseFloat(args[i + 1]);
                 case 'p' -> topp = Float.parseFloat(args[i + 1]);
+                case 'k' -> topk = Integer.parseInt(args[i + 1]);
                 case 's' -> rng_seed = Integer.parseInt(args[i + 1]);
                 case 'n' -> steps = Integer.parseInt(args[i + 1]);
                 case 'i' -> prompt = args[i + 1];
                 case 'z' -> tokenizer_path = args[i + 1];
                 case 'm' -> mode = args[i + 1];
+                case 'o' -> output = args[i + 1];
                 case 'y' -> system_prompt = args[i + 1];
+                case 'd' -> deadline = Integer.parseInt(args[i + 1]);
                 default -> error_usage();
             }
         }
@@ -856,13 +1256,16 @@ class Llama2 {
         if (topp < 0.0 || 1.0 < topp) {
             topp = 0.9f;
         }
+        if (topk < 0) {
+            topk = 0;
+        }
         if (steps <= 0) {
             steps = 0;
         }
 
         // build the Transformer via the model .bin file
         Transformer transformer = new Transformer(modelFileBin);
-        if (steps == 0 || steps > transformer.config.seq_len) {
+        if (steps == 0 || (steps > transformer.config.seq_len && !STREAMING && KVEvictionPolicy.budget(transformer.config) == 0)) {
             steps = transformer.config.seq_len; // ovrerride to ~max length
         }
 
@@ -871,12 +1274,21 @@ class Llama2 {
         Tokenizer tokenizer = new Tokenizer(tokenizer_path, transformer.config.vocab_size);
 
         // build the Sampler
-        Sampler sampler = new Sampler(transformer.config.vocab_size, temperature, topp, rng_seed);
+        Sampler sampler = new Sampler(transformer.config.vocab_size, temperature, topp, topk, rng_seed);
 
         // run!
         switch (mode) {
-            case "generate" -> generate(transformer, tokenizer, sampler, prompt, steps);
-            case "chat" -> chat(transformer, tokenizer, sampler, prompt, system_prompt, steps);
+            // the buffers of our session, the other modes have their own sessions
+            case "generate" -> generate(transformer, transformer.createState(), tokenizer, sampler, prompt, steps, new CancellationToken(deadline, TimeUnit.SECONDS));
+            case "chat" -> chat(transformer, transformer.createState(), tokenizer, sampler, prompt, system_prompt, steps);
+            case "serve" -> serve(transformer, tokenizer, modelFileBin, tokenizer_path);
+            case "daemon" -> daemon(transformer, tokenizer, modelFileBin);
+            case "batch" -> {
+                if (prompt == null || output == null) {
+                    error_usage();
+                }
+                batch(transformer, tokenizer, Paths.get(prompt), Paths.get(output), temperature, topp, topk, rng_seed, steps);
+            }
             default -> {
                 System.err.println("unknown mode: " + mode);
                 error_usage();
@@ -0,0 +1,215 @@
+package io.github.mikepapadim;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+import uk.ac.manchester.tornado.api.types.arrays.FloatArray;
+
+/**
+ * A LoRA adapter of a base model (Java version only): for some of the
+ * projections, a low-rank update {@code (alpha / rank) * B @ A} of the weights,
+ * with A (rank, n) and B (d, rank) for a weight matrix W (d, n). The update is
+ * not merged into the weights: it is added to the output of the base projection
+ * of every row that uses the adapter, as {@code B @ (A @ x)}, so any number of
+ * adapters share the weights of one model, and the rows of one batch can use
+ * different adapters.
+ *
+ * <p>The adapter file starts with a header of 8 32-bit little-endian values:
+ * the rank, a bit mask of the adapted projections (bit 0 to 6 for wq, wk, wv,
+ * wo, w1, w2, w3), alpha as a float, then dim, hidden_dim, n_layers, n_heads and
+ * n_kv_heads of the base model. Then, for every adapted projection in that
+ * order, and for every layer, come A and B. The file is memory mapped, like the
+ * checkpoint.</p>
+ */
+public class LoraAdapter {
+
+    static final int WQ = 0;
+    static final int WK = 1;
+    static final int WV = 2;
+    static final int WO = 3;
+    static final int W1 = 4;
+    static final int W2 = 5;
+    static final int W3 = 6;
+    private static final int TARGETS = 7;
+
+    /**
+     * Maximum rank, which bounds the scratch buffer of a batch row.
+     */
+    static final int MAX_RANK = 64;
+
+    private static final int HEADER_BYTES = 8 * Integer.BYTES;
+
+    final String name;
+    final int rank;
+    final float scale; // alpha / rank
+    final long fileSize;
+
+    private final FloatBuffer[][] a; // (target, layer) -> (rank, n), null if not adapted
+    private final FloatBuffer[][] b; // (target, layer) -> (d, rank), null if not adapted
+    private final Arena arena;
+
+    /**
+     * Maps an adapter file.
+     *
+     * @param name
+     *            The name of the adapter.
+     * @param path
+     *            The adapter file.
+     * @param config
+     *            The configuration of the base model.
+     * @throws IOException
+     *             If the file cannot be read.
+     * @throws IllegalArgumentException
+     *             If the adapter does not match the base model.
+     */
+    LoraAdapter(String name, Path path, Config config) throws IOException {
+        this.name = name;
+        this.arena = Arena.ofShared();
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.fileSize = fileChannel.size();
+            MemorySegment data = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, arena);
+            ValueLayout.OfInt intLayout = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+            this.rank = data.get(intLayout, 0);
+            int targets = data.get(intLayout, 4);
+            float alpha = data.get(ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN), 8);
+            int[] shape = new int[5]; // dim, hidden_dim, n_layers, n_heads, n_kv_heads
+            for (int i = 0; i < shape.length; i++) {
+                shape[i] = data.get(intLayout, 12 + 4L * i);
+            }
+            if (shape[0] != config.dim || shape[1] != config.hidden_dim || shape[2] != config.n_layers || shape[3] != config.n_heads || shape[4] != config.n_kv_heads) {
+                throw new IllegalArgumentException("adapter " + name + " does not match the model");
+            }
+            if (rank <= 0 || rank > MAX_RANK) {
+                throw new IllegalArgumentException("adapter " + name + " has rank " + rank + ", the maximum is " + MAX_RANK);
+            }
+            this.scale = alpha / rank;
+
+            int kv_dim = (config.dim * config.n_kv_heads) / config.n_heads;
+            this.a = new FloatBuffer[TARGETS][];
+            this.b = new FloatBuffer[TARGETS][];
+            long position = HEADER_BYTES;
+            for (int t = 0; t < TARGETS; t++) {
+                if ((targets & (1 << t)) == 0) {
+                    continue;
+                }
+                int n = inputSize(t, config);
+                int d = outputSize(t, config, kv_dim);
+                a[t] = new FloatBuffer[config.n_layers];
+                b[t] = new FloatBuffer[config.n_layers];
+                for (int l = 0; l < config.n_layers; l++) {
+                    a[t][l] = floats(data, position, (long) rank * n);
+                    position += (long) rank * n * Float.BYTES;
+                    b[t][l] = floats(data, position, (long) d * rank);
+                    position += (long) d * rank * Float.BYTES;
+                }
+            }
+            if (position != fileSize) {
+                throw new IllegalArgumentException("adapter " + name + " has " + fileSize + " bytes, expected " + position);
+            }
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    private static int inputSize(int target, Config config) {
+        return target == W2 ? config.hidden_dim : config.dim;
+    }
+
+    private static int outputSize(int target, Config config, int kv_dim) {
+        return switch (target) {
+            case WK, WV -> kv_dim;
+            case W1, W3 -> config.hidden_dim;
+            default -> config.dim;
+        };
+    }
+
+    private static FloatBuffer floats(MemorySegment data, long offset, long count) {
+        return data.asSlice(offset, count * Float.BYTES).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    /**
+     * Adds the updates of the adapters of the rows to the output of a batched
+     * projection, see
+     * {@link MatrixVectorCollection#matmul(FloatArray, FloatArray, FloatBuffer, int, int, int, float[])}.
+     * Every row runs in parallel, with its own slice of {@code scratch}.
+     *
+     * @param adapters
+     *            The adapter of each row, null for the rows of the base model.
+     * @param target
+     *            The projection.
+     * @param layer
+     *            The layer.
+     * @param xout
+     *            The output rows (rows, d) of the base projection.
+     * @param in
+     *            The input rows (rows, n), as copied by the base projection.
+     * @param n
+     *            The size of the input rows.
+     * @param d
+     *            The size of the output rows.
+     * @param rows
+     *            The number of rows.
+     * @param scratch
+     *            A buffer of at least {@code rows * MAX_RANK} floats.
+     */
+    static void apply(LoraAdapter[] adapters, int target, int layer, FloatArray xout, float[] in, int n, int d, int rows, float[] scratch) {
+        IntStream.range(0, rows).parallel().forEach(r -> {
+            LoraAdapter adapter = adapters[r];
+            if (adapter != null && adapter.a[target] != null) {
+                adapter.apply(target, layer, xout, in, r, n, d, scratch, r * MAX_RANK);
+            }
+        });
+    }
+
+    /**
+     * Adds the update of one row: {@code xout += scale * B @ (A @ x)}.
+     */
+    private void apply(int target, int layer, FloatArray xout, float[] in, int row, int n, int d, float[] t, int tOffset) {
+        FloatBuffer wa = a[target][layer];
+        FloatBuffer wb = b[target][layer];
+        int x = row * n;
+        for (int k = 0; k < rank; k++) {
+            float val = 0f;
+            for (int j = 0; j < n; j++) {
+                val += wa.get(k * n + j) * in[x + j];
+            }
+            t[tOffset + k] = val * scale;
+        }
+        int out = row * d;
+        for (int i = 0; i < d; i++) {
+            float val = 0f;
+            for (int k = 0; k < rank; k++) {
+                val += wb.get(i * rank + k) * t[tOffset + k];
+            }
+            xout.set(out + i, xout.get(out + i) + val);
+        }
+    }
+
+    /**
+     * Returns whether some of the rows use an adapter.
+     */
+    static boolean any(LoraAdapter[] adapters, int rows) {
+        for (int r = 0; r < rows; r++) {
+            if (adapters[r] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Unmaps the adapter. It must not be used by any sequence anymore.
+     */
+    void close() {
+        arena.close();
+    }
+}
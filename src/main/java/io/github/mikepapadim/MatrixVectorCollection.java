@@ -1,8 +1,10 @@
 package io.github.mikepapadim;
 
 import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.IntStream;
 
 import io.github.mikepapadim.gpu.shared.ComputeBundle;
@@ -94,26 +96,375 @@ public class MatrixVectorCollection {
     static void matmul(FloatArray xout, FloatArray x, FloatBuffer w, int n, int d) {
         // W (d,n) @ x (n,) -> xout (d,)
         // by far the most amount of time is spent inside this little function
-        MemorySegment wSegment = MemorySegment.ofBuffer(w);
-        IntStream.range(0, d).parallel().forEach(i -> {
-            float val = 0f;
-            int j = 0;
-            // Graal's auto-vectorization.
-            int upperBound = n & ~3;
-            float[] sum = new float[4];
-            for (; j < upperBound; j += sum.length) {
-                sum[0] += w.get(i * n + j + 0) * x.get(j + 0);
-                sum[1] += w.get(i * n + j + 1) * x.get(j + 1);
-                sum[2] += w.get(i * n + j + 2) * x.get(j + 2);
-                sum[3] += w.get(i * n + j + 3) * x.get(j + 3);
+        IntStream.range(0, d).parallel().forEach(i -> xout.set(i, dot(w, i, x, n)));
+    }
+
+    /**
+     * Computes the dot product between one row of the weight matrix (W) and the
+     * input vector (x). This is the inner loop of
+     * {@link #matmul(FloatArray, FloatArray, FloatBuffer, int, int)}, so every
+     * kernel built on top of it produces bit-identical values.
+     *
+     * @param w
+     *            The weight matrix represented as a {@link FloatBuffer}.
+     * @param i
+     *            The row of the weight matrix.
+     * @param x
+     *            The input vector.
+     * @param n
+     *            The number of columns in the weight matrix.
+     * @return The value of row {@code i} of W @ x.
+     */
+    static float dot(FloatBuffer w, int i, FloatArray x, int n) {
+        float val = 0f;
+        int j = 0;
+        // Graal's auto-vectorization.
+        int upperBound = n & ~3;
+        float[] sum = new float[4];
+        for (; j < upperBound; j += sum.length) {
+            sum[0] += w.get(i * n + j + 0) * x.get(j + 0);
+            sum[1] += w.get(i * n + j + 1) * x.get(j + 1);
+            sum[2] += w.get(i * n + j + 2) * x.get(j + 2);
+            sum[3] += w.get(i * n + j + 3) * x.get(j + 3);
+        }
+        val += sum[0] + sum[1] + sum[2] + sum[3];
+
+        for (; j < n; j++) {
+            val += w.get(i * n + j) * x.get(j);
+        }
+        return val;
+    }
+
+    /**
+     * Size of the tiles of weight rows of the batched matmul, meant to stay in the
+     * L2 cache.
+     */
+    private static final int TILE_BYTES = 256 << 10;
+
+    /**
+     * Performs the matrix multiplication of the weight matrix (W) with a batch of
+     * input vectors, i.e., W (d,n) @ x^T for x (rows,n) -> xout (rows,d). See
+     * {@link #matmul(FloatArray, FloatArray, MemorySegment, int, int, int, float[])}.
+     */
+    static void matmul(FloatArray xout, FloatArray x, FloatBuffer w, int n, int d, int rows, float[] in) {
+        matmul(xout, x, MemorySegment.ofBuffer(w), n, d, rows, in);
+    }
+
+    /**
+     * Performs the matrix multiplication of the weight matrix (W) with a batch of
+     * input vectors, i.e., W (d,n) @ x^T for x (rows,n) -> xout (rows,d). The
+     * weight rows are split into tiles that stay in cache while every input row
+     * goes through them, so W is read from memory once for the whole batch
+     * instead of once per row, and each weight row is multiplied with four input
+     * rows at a time, so every weight load feeds four products. Each output keeps
+     * the arithmetic of {@link #dot}, so it is bit-identical to the matrix-vector
+     * product of its row.
+     *
+     * @param xout
+     *            The output rows (rows, d), back to back.
+     * @param x
+     *            The input rows (rows, n), back to back.
+     * @param w
+     *            The weight matrix (d, n).
+     * @param n
+     *            The number of columns in the weight matrix.
+     * @param d
+     *            The number of rows in the weight matrix.
+     * @param rows
+     *            The number of input rows.
+     * @param in
+     *            A buffer of at least {@code rows * n} floats, where the input rows
+     *            are copied to be read from the heap.
+     */
+    static void matmul(FloatArray xout, FloatArray x, MemorySegment w, int n, int d, int rows, float[] in) {
+        MemorySegment.copy(x.getSegment(), ValueLayout.JAVA_FLOAT, 0, in, 0, rows * n);
+        int tileRows = Math.max(1, Math.min(TILE_BYTES / (n * Float.BYTES), (d + PARALLEL_BLOCKS - 1) / PARALLEL_BLOCKS));
+        int tiles = (d + tileRows - 1) / tileRows;
+        IntStream.range(0, tiles).parallel().forEach(tile -> {
+            int from = tile * tileRows;
+            int to = Math.min(from + tileRows, d);
+            int r = 0;
+            for (; r + 4 <= rows; r += 4) {
+                for (int i = from; i < to; i++) {
+                    dot4(w, i, in, r, n, xout, d);
+                }
             }
-            val += sum[0] + sum[1] + sum[2] + sum[3];
+            for (; r < rows; r++) {
+                for (int i = from; i < to; i++) {
+                    xout.set(r * d + i, dot(w, i, in, r * n, n));
+                }
+            }
+        });
+    }
 
-            for (; j < n; j++) {
-                val += w.get(i * n + j) * x.get(j);
+    /**
+     * Computes the dot products of one weight row with the input rows [r, r + 4),
+     * with the arithmetic of {@link #dot}, and stores them into {@code xout}.
+     */
+    private static void dot4(MemorySegment w, int i, float[] x, int r, int n, FloatArray xout, int d) {
+        long base = (long) i * n;
+        int x0 = r * n;
+        int x1 = x0 + n;
+        int x2 = x1 + n;
+        int x3 = x2 + n;
+        // four partial sums per row, as in dot
+        float a0 = 0f, a1 = 0f, a2 = 0f, a3 = 0f;
+        float b0 = 0f, b1 = 0f, b2 = 0f, b3 = 0f;
+        float c0 = 0f, c1 = 0f, c2 = 0f, c3 = 0f;
+        float e0 = 0f, e1 = 0f, e2 = 0f, e3 = 0f;
+        int j = 0;
+        int upperBound = n & ~3;
+        for (; j < upperBound; j += 4) {
+            float w0 = w.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, base + j);
+            float w1 = w.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, base + j + 1);
+            float w2 = w.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, base + j + 2);
+            float w3 = w.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, base + j + 3);
+            a0 += w0 * x[x0 + j];
+            a1 += w1 * x[x0 + j + 1];
+            a2 += w2 * x[x0 + j + 2];
+            a3 += w3 * x[x0 + j + 3];
+            b0 += w0 * x[x1 + j];
+            b1 += w1 * x[x1 + j + 1];
+            b2 += w2 * x[x1 + j + 2];
+            b3 += w3 * x[x1 + j + 3];
+            c0 += w0 * x[x2 + j];
+            c1 += w1 * x[x2 + j + 1];
+            c2 += w2 * x[x2 + j + 2];
+            c3 += w3 * x[x2 + j + 3];
+            e0 += w0 * x[x3 + j];
+            e1 += w1 * x[x3 + j + 1];
+            e2 += w2 * x[x3 + j + 2];
+            e3 += w3 * x[x3 + j + 3];
+        }
+        float va = a0 + a1 + a2 + a3;
+        float vb = b0 + b1 + b2 + b3;
+        float vc = c0 + c1 + c2 + c3;
+        float ve = e0 + e1 + e2 + e3;
+        for (; j < n; j++) {
+            float wj = w.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, base + j);
+            va += wj * x[x0 + j];
+            vb += wj * x[x1 + j];
+            vc += wj * x[x2 + j];
+            ve += wj * x[x3 + j];
+        }
+        xout.set(r * d + i, va);
+        xout.set((r + 1) * d + i, vb);
+        xout.set((r + 2) * d + i, vc);
+        xout.set((r + 3) * d + i, ve);
+    }
+
+    /**
+     * Computes the dot product of one weight row with the input vector starting at
+     * index {@code xOffset} of {@code x}, with the arithmetic of {@link #dot}.
+     */
+    private static float dot(MemorySegment w, int i, float[] x, int xOffset, int n) {
+        long base = (long) i * n;
+        float val = 0f;
+        int j = 0;
+        int upperBound = n & ~3;
+        float sum0 = 0f, sum1 = 0f, sum2 = 0f, sum3 = 0f;
+        for (; j < upperBound; j += 4) {
+            sum0 += w.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, base + j + 0) * x[xOffset + j + 0];
+            sum1 += w.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, base + j + 1) * x[xOffset + j + 1];
+            sum2 += w.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, base + j + 2) * x[xOffset + j + 2];
+            sum3 += w.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, base + j + 3) * x[xOffset + j + 3];
+        }
+        val += sum0 + sum1 + sum2 + sum3;
+
+        for (; j < n; j++) {
+            val += w.getAtIndex(ValueLayout.JAVA_FLOAT_UNALIGNED, base + j) * x[xOffset + j];
+        }
+        return val;
+    }
+
+    /**
+     * Number of row blocks the blocked kernels split their output into. Each
+     * block is reduced by one worker of the common pool.
+     */
+    private static final int PARALLEL_BLOCKS = 4 * ForkJoinPool.getCommonPoolParallelism();
+
+    /**
+     * Returns the number of blocks the blocked kernels split {@code d} rows into,
+     * i.e., the size of their scratch buffers.
+     */
+    static int blocks(int d) {
+        return Math.min(d, PARALLEL_BLOCKS);
+    }
+
+    /**
+     * Returns the maximum number of rows of a block of {@code d} rows.
+     */
+    static int blockRows(int d) {
+        return (d + blocks(d) - 1) / blocks(d);
+    }
+
+    /**
+     * Computes W @ x and returns the index of the largest output, without
+     * materializing the output vector. Every worker keeps a running argmax over its
+     * block of rows and the partial results are merged at the end.
+     *
+     * @param x
+     *            The input vector to be multiplied with the weight matrix.
+     * @param w
+     *            The weight matrix represented as a {@link FloatBuffer}.
+     * @param n
+     *            The number of columns in the weight matrix and the size of the
+     *            input vector.
+     * @param d
+     *            The number of rows in the weight matrix.
+     * @param blockIndex
+     *            Scratch buffer of {@link #blocks(int) blocks(d)} entries.
+     * @param blockValue
+     *            Scratch buffer of {@link #blocks(int) blocks(d)} entries.
+     * @return The row with the highest value (the first one in case of ties).
+     */
+    static int matmulArgmax(FloatArray x, FloatBuffer w, int n, int d, int[] blockIndex, float[] blockValue) {
+        int blocks = blocks(d);
+        IntStream.range(0, blocks).parallel().forEach(b -> {
+            int from = (int) ((long) d * b / blocks);
+            int to = (int) ((long) d * (b + 1) / blocks);
+            int max_i = from;
+            float max_v = dot(w, from, x, n);
+            for (int i = from + 1; i < to; i++) {
+                float val = dot(w, i, x, n);
+                if (val > max_v) {
+                    max_i = i;
+                    max_v = val;
+                }
             }
-            xout.set(i, val);
+            blockIndex[b] = max_i;
+            blockValue[b] = max_v;
+        });
+
+        // blocks are ordered by row, so a strict comparison keeps the first maximum
+        int max_b = 0;
+        for (int b = 1; b < blocks; b++) {
+            if (blockValue[b] > blockValue[max_b]) {
+                max_b = b;
+            }
+        }
+        return blockIndex[max_b];
+    }
+
+    /**
+     * Computes W @ x and keeps only the {@code k} largest outputs, without
+     * materializing the output vector. Every worker keeps a min-heap of size
+     * {@code k} over its block of rows, and the heaps are merged at the end.
+     *
+     * @param x
+     *            The input vector to be multiplied with the weight matrix.
+     * @param w
+     *            The weight matrix represented as a {@link FloatBuffer}.
+     * @param n
+     *            The number of columns in the weight matrix and the size of the
+     *            input vector.
+     * @param d
+     *            The number of rows in the weight matrix.
+     * @param k
+     *            The number of outputs to keep.
+     * @param indices
+     *            Output buffer (at least {@code k} long) for the selected rows.
+     * @param values
+     *            Output buffer (at least {@code k} long) for the selected values.
+     * @param blockIndices
+     *            Scratch heaps of {@link #blocks(int) blocks(d)} by
+     *            {@code min(k, }{@link #blockRows(int) blockRows(d)}{@code )}
+     *            entries.
+     * @param blockValues
+     *            Scratch heaps of the same size.
+     * @param blockSizes
+     *            Scratch buffer of {@link #blocks(int) blocks(d)} entries.
+     * @return The number of selected entries, {@code min(k, d)}, stored in
+     *         descending order of value.
+     */
+    static int matmulTopK(FloatArray x, FloatBuffer w, int n, int d, int k, int[] indices, float[] values, int[][] blockIndices, float[][] blockValues, int[] blockSizes) {
+        int blocks = blocks(d);
+        IntStream.range(0, blocks).parallel().forEach(b -> {
+            int from = (int) ((long) d * b / blocks);
+            int to = (int) ((long) d * (b + 1) / blocks);
+            int size = 0;
+            for (int i = from; i < to; i++) {
+                size = heapOffer(blockIndices[b], blockValues[b], size, k, i, dot(w, i, x, n));
+            }
+            blockSizes[b] = size;
         });
+
+        // merge the partial heaps
+        int size = 0;
+        for (int b = 0; b < blocks; b++) {
+            for (int i = 0; i < blockSizes[b]; i++) {
+                size = heapOffer(indices, values, size, k, blockIndices[b][i], blockValues[b][i]);
+            }
+        }
+
+        heapSortDescending(indices, values, size);
+        return size;
+    }
+
+    /**
+     * Sorts a min-heap in place by repeatedly moving its minimum to the end,
+     * leaving the values in descending order.
+     */
+    static void heapSortDescending(int[] indices, float[] values, int size) {
+        for (int last = size - 1; last > 0; last--) {
+            swap(indices, values, 0, last);
+            heapSiftDown(indices, values, 0, last);
+        }
+    }
+
+    /**
+     * Offers an entry to a bounded min-heap of size {@code k}, replacing the
+     * current minimum if the heap is full and the new value is larger.
+     *
+     * @return The new size of the heap.
+     */
+    static int heapOffer(int[] indices, float[] values, int size, int k, int index, float value) {
+        if (size < k) {
+            // sift up
+            int child = size;
+            indices[child] = index;
+            values[child] = value;
+            while (child > 0) {
+                int parent = (child - 1) / 2;
+                if (values[parent] <= values[child]) {
+                    break;
+                }
+                swap(indices, values, parent, child);
+                child = parent;
+            }
+            return size + 1;
+        }
+        if (value > values[0]) {
+            indices[0] = index;
+            values[0] = value;
+            heapSiftDown(indices, values, 0, size);
+        }
+        return size;
+    }
+
+    private static void heapSiftDown(int[] indices, float[] values, int from, int n) {
+        int prev = from, next;
+        while ((next = 2 * prev + 1) < n) {
+            int r = next + 1;
+            if (r < n && values[r] < values[next]) {
+                next = r;
+            }
+            if (values[next] < values[prev]) {
+                swap(indices, values, prev, next);
+                prev = next;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static void swap(int[] indices, float[] values, int a, int b) {
+        int tmpIndex = indices[a];
+        indices[a] = indices[b];
+        indices[b] = tmpIndex;
+        float tmpValue = values[a];
+        values[a] = values[b];
+        values[b] = tmpValue;
     }
 
     static void matmul(float[] xout, float[] x, TensorFP32 weightTensor, int n, int d) {
@@ -191,6 +542,59 @@ public class MatrixVectorCollection {
         });
     }
 
+    /**
+     * Performs the matrix multiplication W (d,n) @ x (n,) with W stored transposed
+     * (column-major), skipping the columns of W whose input activation is close to
+     * zero. Only the rows of {@code wt} for the active inputs are streamed, so the
+     * memory traffic scales with the density of x instead of with the size of W.
+     *
+     * @param xout
+     *            The output vector of the matrix multiplication.
+     * @param x
+     *            The (sparse) input vector.
+     * @param wt
+     *            The transposed weight matrix (n,d).
+     * @param n
+     *            The number of columns in the weight matrix and the size of the
+     *            input vector.
+     * @param d
+     *            The number of rows in the weight matrix and the size of the output
+     *            vector.
+     * @param threshold
+     *            Inputs with an absolute value less or equal than this are skipped.
+     * @param active
+     *            Scratch buffer (at least {@code n} long) for the active inputs.
+     * @return The number of active inputs.
+     */
+    static int matmulSparse(FloatArray xout, FloatArray x, FloatBuffer wt, int n, int d, float threshold, int[] active) {
+        int count = 0;
+        for (int j = 0; j < n; j++) {
+            if (Math.abs(x.get(j)) > threshold) {
+                active[count++] = j;
+            }
+        }
+        final int numActive = count;
+
+        // each worker owns a block of the output and accumulates the active rows of wt into it
+        int blocks = Math.max(1, Math.min(d / 64, PARALLEL_BLOCKS));
+        IntStream.range(0, blocks).parallel().forEach(b -> {
+            int from = (int) ((long) d * b / blocks);
+            int to = (int) ((long) d * (b + 1) / blocks);
+            for (int i = from; i < to; i++) {
+                xout.set(i, 0.0f);
+            }
+            for (int a = 0; a < numActive; a++) {
+                int j = active[a];
+                float xj = x.get(j);
+                int rowOffset = j * d;
+                for (int i = from; i < to; i++) {
+                    xout.set(i, xout.get(i) + xj * wt.get(rowOffset + i));
+                }
+            }
+        });
+        return numActive;
+    }
+
     static void matmul(MemObject xout, MemObject x, MemObject w, int n, int d) {
         IntStream.range(0, d).parallel().forEach(i -> {
             float val = 0f;
@@ -0,0 +1,467 @@
+package io.github.mikepapadim;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The models served by one process (Java version only). The catalog maps model
+ * names to checkpoints; a model is loaded on its first request, with its own
+ * scheduler thread, and stays loaded while it is used. A model is warmed up (see
+ * {@link WarmUp}) before its scheduler thread starts, so no request runs on code
+ * the JIT did not compile yet.
+ *
+ * <p>The checkpoints are memory mapped, so the mapped bytes of the loaded
+ * models, with the weights copied out of the mapping (see
+ * {@link Transformer#weightBytes()}), are accounted against a budget set
+ * through the {@code llama2.ModelBudgetMB} property (default 0 for no limit). Before a
+ * model is loaded, the least recently used models that are idle are evicted
+ * until it fits: they are removed under the lock, then their scheduler is
+ * stopped and their checkpoint unmapped outside of it, which gives their memory
+ * back at once. A model that does not fit even then is rejected, as an
+ * overload. The size of the checkpoint is reserved before the load, and the
+ * weights copied out of it once they are built, evicting again if needed.</p>
+ *
+ * <p>A model is loaded outside the lock of the registry, so the requests to the
+ * loaded models, and the statistics, do not wait for it: its bytes are reserved
+ * and a future of the model is registered under the lock, then the request that
+ * started the load builds and warms up the model, and the other requests for it
+ * wait on the future. A model is only listed as loaded, and evicted, once it is
+ * warm.</p>
+ *
+ * <p>Models with the same tokenizer file and vocabulary size share one
+ * {@link Tokenizer}.</p>
+ *
+ * <p>The {@link LoraAdapter}s of a second catalog can be applied to the models
+ * they match: an adapter is mapped for a model on the first request that uses
+ * it, outside the lock, after the idle models are evicted as for a model that
+ * does not fit, counted in the mapped bytes of the model, and unmapped with
+ * it.</p>
+ */
+public class ModelRegistry {
+
+    /**
+     * A loaded model.
+     */
+    static final class Model {
+        final String name;
+        final Transformer transformer;
+        final Tokenizer tokenizer;
+        final Scheduler scheduler;
+        private final Thread thread;
+        private final Map<String, LoraAdapter> adapters = new HashMap<>(); // guarded by the registry
+        private long adapterBytes; // guarded by the registry
+        private int users; // guarded by the registry
+
+        private Model(String name, Transformer transformer, Tokenizer tokenizer) {
+            this.name = name;
+            this.transformer = transformer;
+            this.tokenizer = tokenizer;
+            this.scheduler = new Scheduler(transformer, tokenizer);
+            if (WarmUp.ENABLED) {
+                new WarmUp(scheduler).run();
+            }
+            this.thread = scheduler.start();
+        }
+
+        /**
+         * Returns the mapped bytes of the model and its adapters, with the weights
+         * copied out of the mapping.
+         */
+        private long bytes() {
+            return transformer.weightBytes() + adapterBytes;
+        }
+
+        /**
+         * Stops the scheduler and unmaps the model and its adapters.
+         */
+        private void close() throws InterruptedException {
+            scheduler.close();
+            thread.join();
+            for (LoraAdapter adapter : adapters.values()) {
+                adapter.close();
+            }
+            transformer.close();
+        }
+    }
+
+    final String defaultModel;
+    final long budgetBytes; // 0 for no limit
+
+    private final Map<String, Path> catalog;
+    private final Map<String, Path> adapterCatalog;
+    private final Path tokenizerPath;
+    private final Map<String, Tokenizer> tokenizers = new HashMap<>(); // by path and vocabulary size
+    private final LinkedHashMap<String, CompletableFuture<Model>> loaded = new LinkedHashMap<>(16, 0.75f, true); // done once the model is built
+    private long mappedBytes; // with the reservations of the models being loaded
+
+    /**
+     * Creates a registry, with the budget set through the
+     * {@code llama2.ModelBudgetMB} property.
+     *
+     * @param catalog
+     *            The checkpoints by model name.
+     * @param adapterCatalog
+     *            The adapter files by adapter name.
+     * @param defaultModel
+     *            The model of the requests that do not name one.
+     * @param tokenizerPath
+     *            The tokenizer file of the models.
+     */
+    ModelRegistry(Map<String, Path> catalog, Map<String, Path> adapterCatalog, String defaultModel, Path tokenizerPath) {
+        if (!catalog.containsKey(defaultModel)) {
+            throw new IllegalArgumentException("unknown default model: " + defaultModel);
+        }
+        this.catalog = Map.copyOf(catalog);
+        this.adapterCatalog = Map.copyOf(adapterCatalog);
+        this.defaultModel = defaultModel;
+        this.tokenizerPath = tokenizerPath;
+        this.budgetBytes = Long.getLong("llama2.ModelBudgetMB", 0) << 20;
+    }
+
+    /**
+     * Parses a catalog of the form {@code name=path,name=path}, as set through
+     * the {@code llama2.Models} and {@code llama2.Adapters} properties.
+     *
+     * @throws IllegalArgumentException
+     *             If an entry has no name or no path.
+     */
+    static Map<String, Path> parseCatalog(String models) {
+        Map<String, Path> catalog = new LinkedHashMap<>();
+        if (models == null || models.isBlank()) {
+            return catalog;
+        }
+        for (String entry : models.split(",")) {
+            int eq = entry.indexOf('=');
+            if (eq <= 0 || eq == entry.length() - 1) {
+                throw new IllegalArgumentException("bad model entry: " + entry);
+            }
+            catalog.put(entry.substring(0, eq).strip(), Path.of(entry.substring(eq + 1).strip()));
+        }
+        return catalog;
+    }
+
+    /**
+     * Adds a model loaded by the caller, such as the one given on the command
+     * line, so that its first request does not load it again. The model is
+     * warmed up outside the lock, like a model loaded by a request.
+     */
+    void preload(String name, Transformer transformer, Tokenizer tokenizer) {
+        CompletableFuture<Model> future = new CompletableFuture<>();
+        synchronized (this) {
+            tokenizers.putIfAbsent(tokenizerKey(transformer.config.vocab_size), tokenizer);
+            loaded.put(name, future);
+            mappedBytes += transformer.weightBytes();
+        }
+        try {
+            future.complete(new Model(name, transformer, tokenizer));
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                loaded.remove(name, future);
+                mappedBytes -= transformer.weightBytes();
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the names of the models of the catalog.
+     */
+    Set<String> names() {
+        return catalog.keySet();
+    }
+
+    /**
+     * Returns whether a model is loaded.
+     */
+    synchronized boolean isLoaded(String name) {
+        // without a lookup, which would count as a use
+        return loaded.entrySet().stream().anyMatch(e -> e.getKey().equals(name) && e.getValue().isDone());
+    }
+
+    /**
+     * Returns the loaded model of the given name, loading it first if needed, or
+     * waiting for the request that is loading it. Every call must be followed by
+     * {@link #release(Model)} once the request is done, so that the model can be
+     * evicted again.
+     *
+     * @param name
+     *            The model name, or null for the default model.
+     * @throws IllegalArgumentException
+     *             If the model is not in the catalog.
+     * @throws RejectedExecutionException
+     *             If the model does not fit in the budget, the other models being
+     *             in use.
+     * @throws IOException
+     *             If the model cannot be loaded.
+     */
+    Model acquire(String name) throws IOException, InterruptedException {
+        String modelName = name != null ? name : defaultModel;
+        Path checkpoint = catalog.get(modelName);
+        if (checkpoint == null) {
+            throw new IllegalArgumentException("unknown model: " + modelName);
+        }
+        while (true) {
+            CompletableFuture<Model> future;
+            long reserved = -1;
+            List<Model> evicted = new ArrayList<>();
+            try {
+                synchronized (this) {
+                    future = loaded.get(modelName);
+                    if (future == null) {
+                        long size = Files.size(checkpoint);
+                        evict(size, evicted);
+                        reserved = size;
+                        mappedBytes += reserved;
+                        future = new CompletableFuture<>();
+                        loaded.put(modelName, future);
+                    }
+                }
+            } finally {
+                close(evicted);
+            }
+            if (reserved >= 0) {
+                load(modelName, checkpoint, reserved, future);
+            }
+            Model model = await(future);
+            synchronized (this) {
+                // unless it was evicted in the meantime, then it is loaded again
+                if (loaded.get(modelName) == future) {
+                    model.users++;
+                    return model;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a model whose checkpoint size is reserved, reserves the weights
+     * copied out of the checkpoint, evicting idle models if they do not fit, and
+     * completes its future. If it fails, the reservation is given back, the
+     * future is removed and completed with the error, and the model is closed.
+     */
+    private void load(String name, Path checkpoint, long reserved, CompletableFuture<Model> future) throws InterruptedException {
+        Transformer transformer = null;
+        Model model = null;
+        try {
+            transformer = new Transformer(checkpoint.toString());
+            model = new Model(name, transformer, tokenizer(transformer.config.vocab_size));
+            long mapped;
+            List<Model> evicted = new ArrayList<>();
+            try {
+                synchronized (this) {
+                    evict(model.bytes() - reserved, evicted);
+                    mappedBytes += model.bytes() - reserved;
+                    reserved = model.bytes();
+                    mapped = mappedBytes;
+                }
+            } finally {
+                close(evicted);
+            }
+            future.complete(model);
+            System.err.printf("loaded %s (%d MB mapped in total)\n", name, mapped >> 20);
+        } catch (IOException | RuntimeException | Error e) {
+            if (model != null) {
+                model.close();
+            } else if (transformer != null) {
+                transformer.close();
+            }
+            synchronized (this) {
+                loaded.remove(name, future);
+                mappedBytes -= reserved;
+            }
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Waits for a model being loaded.
+     *
+     * @throws RejectedExecutionException
+     *             If the weights copied out of its checkpoint did not fit.
+     * @throws IOException
+     *             If its load failed, such as for a corrupt checkpoint.
+     */
+    private static Model await(CompletableFuture<Model> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException cause) {
+                throw cause;
+            }
+            throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the tokenizer of a vocabulary size, shared by the models.
+     */
+    private synchronized Tokenizer tokenizer(int vocabSize) throws IOException {
+        Tokenizer tokenizer = tokenizers.get(tokenizerKey(vocabSize));
+        if (tokenizer == null) {
+            tokenizer = new Tokenizer(tokenizerPath.toString(), vocabSize);
+            tokenizers.put(tokenizerKey(vocabSize), tokenizer);
+        }
+        return tokenizer;
+    }
+
+    /**
+     * Returns an adapter of a model acquired by the caller, mapping it first if
+     * needed, after evicting idle models if it does not fit in the budget.
+     *
+     * @throws IllegalArgumentException
+     *             If the adapter is not in the catalog, or does not match the
+     *             model.
+     * @throws RejectedExecutionException
+     *             If the adapter does not fit in the budget, the other models being
+     *             in use.
+     * @throws IOException
+     *             If the adapter cannot be read.
+     */
+    LoraAdapter adapter(Model model, String name) throws IOException, InterruptedException {
+        synchronized (this) {
+            LoraAdapter adapter = model.adapters.get(name);
+            if (adapter != null) {
+                return adapter;
+            }
+        }
+        Path path = adapterCatalog.get(name);
+        if (path == null) {
+            throw new IllegalArgumentException("unknown adapter: " + name);
+        }
+        long reserved = Files.size(path);
+        List<Model> evicted = new ArrayList<>();
+        try {
+            synchronized (this) {
+                evict(reserved, evicted);
+                mappedBytes += reserved;
+            }
+        } finally {
+            close(evicted);
+        }
+        // mapped and validated outside the lock, like a model
+        LoraAdapter adapter;
+        try {
+            adapter = new LoraAdapter(name, path, model.transformer.config);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                mappedBytes -= reserved;
+            }
+            throw e;
+        }
+        LoraAdapter mapped;
+        synchronized (this) {
+            mapped = model.adapters.putIfAbsent(name, adapter);
+            if (mapped == null) {
+                model.adapterBytes += adapter.fileSize;
+                mappedBytes += adapter.fileSize - reserved;
+            } else {
+                mappedBytes -= reserved;
+            }
+        }
+        if (mapped != null) {
+            // another request mapped it first
+            adapter.close();
+            return mapped;
+        }
+        return adapter;
+    }
+
+    /**
+     * Returns the names of the adapters of a model that are mapped.
+     */
+    synchronized String[] adapters(Model model) {
+        return model.adapters.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Ends a request on a model returned by {@link #acquire(String)}.
+     */
+    synchronized void release(Model model) {
+        model.users--;
+    }
+
+    /**
+     * Removes the least recently used idle models until {@code bytes} more fit in
+     * the budget. Their bytes are given back at once, but the caller closes them,
+     * with {@link #close(List)} outside the lock, since stopping a scheduler waits
+     * for its thread.
+     *
+     * @param evicted
+     *            The list the removed models are added to, even if the others do
+     *            not fit.
+     */
+    private void evict(long bytes, List<Model> evicted) {
+        if (budgetBytes <= 0) {
+            return;
+        }
+        Iterator<CompletableFuture<Model>> it = loaded.values().iterator();
+        while (mappedBytes + bytes > budgetBytes && it.hasNext()) {
+            Model model = it.next().getNow(null); // null while it is loaded
+            // a sequence can outlive its request for one step once it is cancelled
+            if (model != null && model.users == 0 && !model.scheduler.isBusy()) {
+                it.remove();
+                mappedBytes -= model.bytes();
+                evicted.add(model);
+            }
+        }
+        if (mappedBytes + bytes > budgetBytes) {
+            throw new RejectedExecutionException("model budget exhausted: " + (mappedBytes >> 20) + " MB mapped by models in use");
+        }
+    }
+
+    /**
+     * Stops and unmaps models removed by {@link #evict(long, List)}. They cannot
+     * be acquired any more, so no lock is needed.
+     */
+    private static void close(List<Model> evicted) throws InterruptedException {
+        for (Model model : evicted) {
+            model.close();
+            System.err.printf("evicted %s\n", model.name);
+        }
+    }
+
+    private String tokenizerKey(int vocabSize) {
+        return tokenizerPath + ":" + vocabSize;
+    }
+
+    /**
+     * Returns the loaded models, from the least to the most recently used.
+     */
+    synchronized Model[] loaded() {
+        return loaded.values().stream().map(future -> future.getNow(null)).filter(Objects::nonNull).toArray(Model[]::new);
+    }
+
+    /**
+     * Returns the mapped bytes of the loaded models.
+     */
+    synchronized long mappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * Stops and unmaps all the models.
+     */
+    synchronized void close() throws InterruptedException {
+        for (CompletableFuture<Model> future : loaded.values()) {
+            Model model = future.getNow(null);
+            if (model != null) {
+                model.close();
+            }
+        }
+        loaded.clear();
+        mappedBytes = 0;
+    }
+}
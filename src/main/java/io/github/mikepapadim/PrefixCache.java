@@ -0,0 +1,189 @@
+package io.github.mikepapadim;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the KV state of prompt prefixes shared between requests (system
+ * prompts, chat templates, ...). The prefixes are kept in a radix tree whose
+ * edges are blocks of {@code pageSize} tokens, and every node holds a reference
+ * to the KV page computed for its block. A new request forks from the longest
+ * cached prefix by sharing those pages, and only prefills the rest of its
+ * prompt.
+ *
+ * <p>Only full pages are cached, so shared pages are never written again. When
+ * the cached pages exceed the memory budget, the least recently used leaves are
+ * evicted and their pages released.</p>
+ */
+public class PrefixCache {
+
+    /**
+     * A block of pageSize tokens, the key of an edge of the tree.
+     */
+    private record TokenBlock(int[] tokens) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TokenBlock other && Arrays.equals(tokens, other.tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(tokens);
+        }
+    }
+
+    private static final class Node {
+        final Node parent;
+        final TokenBlock block;
+        final int page;
+        final Map<TokenBlock, Node> children = new HashMap<>();
+
+        Node(Node parent, TokenBlock block, int page) {
+            this.parent = parent;
+            this.block = block;
+            this.page = page;
+        }
+    }
+
+    final KVPagePool pool;
+    final long budgetBytes;
+
+    private final Node root = new Node(null, null, -1);
+    private final LinkedHashMap<Node, Node> lru = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long lookups;
+    private long lookupTokens;
+    private long reusedTokens;
+
+    /**
+     * Creates an empty prefix cache.
+     *
+     * @param pool
+     *            The pool of the KV pages held by the cache.
+     * @param budgetBytes
+     *            The maximum size of the cached pages, in bytes.
+     */
+    PrefixCache(KVPagePool pool, long budgetBytes) {
+        this.pool = pool;
+        this.budgetBytes = budgetBytes;
+    }
+
+    private TokenBlock block(int[] tokens, int index) {
+        return new TokenBlock(Arrays.copyOfRange(tokens, index * pool.pageSize, (index + 1) * pool.pageSize));
+    }
+
+    /**
+     * Maps the longest cached prefix of a prompt into an empty KV cache. At least
+     * the last prompt token is left out, since its forward pass is needed for the
+     * logits of the first generated token.
+     *
+     * @param tokens
+     *            The prompt tokens.
+     * @param numTokens
+     *            The number of prompt tokens.
+     * @param kv
+     *            The empty KV cache of the new request.
+     * @return The number of prompt tokens whose KV entries are already in
+     *         {@code kv}, i.e., the position to resume the prefill from.
+     */
+    synchronized int fork(int[] tokens, int numTokens, KVCache kv) {
+        int pageSize = pool.pageSize;
+        Node node = root;
+        int blocks = 0;
+        while ((blocks + 1) * pageSize <= numTokens - 1) {
+            Node child = node.children.get(block(tokens, blocks));
+            if (child == null) {
+                break;
+            }
+            lru.get(child); // touch
+            kv.share(blocks, child.page);
+            node = child;
+            blocks++;
+        }
+        lookups++;
+        lookupTokens += numTokens;
+        reusedTokens += (long) blocks * pageSize;
+        return blocks * pageSize;
+    }
+
+    /**
+     * Adds the full pages of a prompt to the cache, after its prefill.
+     *
+     * @param tokens
+     *            The prompt tokens.
+     * @param numTokens
+     *            The number of prompt tokens whose KV entries are in {@code kv}.
+     * @param kv
+     *            The KV cache holding the prompt.
+     */
+    synchronized void insert(int[] tokens, int numTokens, KVCache kv) {
+        Node node = root;
+        for (int b = 0; (b + 1) * pool.pageSize <= numTokens; b++) {
+            TokenBlock block = block(tokens, b);
+            Node child = node.children.get(block);
+            if (child == null) {
+                int page = kv.pageTable[b];
+                pool.retain(page);
+                child = new Node(node, block, page);
+                node.children.put(block, child);
+            }
+            lru.put(child, child);
+            node = child;
+        }
+        evict();
+    }
+
+    /**
+     * Evicts the least recently used leaves until the cache fits its budget.
+     */
+    private void evict() {
+        while (cachedBytes() > budgetBytes) {
+            Node victim = null;
+            for (Node node : lru.keySet()) {
+                if (node.children.isEmpty()) {
+                    victim = node;
+                    break;
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            lru.remove(victim);
+            victim.parent.children.remove(victim.block);
+            pool.release(victim.page);
+        }
+    }
+
+    /**
+     * Removes all the prefixes and releases their pages.
+     */
+    synchronized void clear() {
+        for (Node node : lru.keySet()) {
+            pool.release(node.page);
+        }
+        lru.clear();
+        root.children.clear();
+        lookups = 0;
+        lookupTokens = 0;
+        reusedTokens = 0;
+    }
+
+    /**
+     * Returns the size of the cached pages, in bytes.
+     */
+    synchronized long cachedBytes() {
+        return lru.size() * pool.pageBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PrefixCache{" +
+                "pages=" + lru.size() +
+                ", bytes=" + cachedBytes() +
+                ", lookups=" + lookups +
+                ", reused tokens=" + reusedTokens + "/" + lookupTokens +
+                '}';
+    }
+}
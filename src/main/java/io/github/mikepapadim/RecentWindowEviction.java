@@ -0,0 +1,21 @@
+package io.github.mikepapadim;
+
+/**
+ * Window eviction: keeps the first {@link Llama2#STREAMING_SINKS} positions and
+ * the most recent ones, regardless of the attention weights. The baseline to
+ * compare the score-based policies with.
+ */
+public class RecentWindowEviction extends KVEvictionPolicy {
+
+    RecentWindowEviction(Config config, int budget) {
+        super(config, budget);
+    }
+
+    @Override
+    void select(int layer, int kvHead, int length, int[] keep, int numKeep) {
+        int sinks = Math.min(Llama2.STREAMING_SINKS, numKeep);
+        for (int j = 0; j < numKeep; j++) {
+            keep[j] = j < sinks ? j : length - numKeep + j;
+        }
+    }
+}
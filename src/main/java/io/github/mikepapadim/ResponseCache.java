@@ -0,0 +1,281 @@
+package io.github.mikepapadim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Cache of the responses of deterministic requests: greedy sampling, or a fixed
+ * seed. A response is the same for the same model, prompt tokens, sampler
+ * parameters, seed, steps limit and stop sequences, so a repeated request is
+ * answered from the cache without running the model at all.
+ *
+ * <p>The same entry also coalesces identical requests in flight: a request that
+ * arrives while the same one is running attaches to its output stream, gets the
+ * tokens generated so far replayed, and then the others as they come, instead of
+ * running a second sequence. The shared sequence keeps the deadline of the
+ * request that started it, and is cancelled only when all the requests attached
+ * to it went away.</p>
+ *
+ * <p>Only the responses that ran to their end (EOS, steps limit or stop
+ * sequence) are kept. When the kept responses exceed the memory budget, the
+ * least recently used ones are evicted.</p>
+ */
+public class ResponseCache {
+
+    /**
+     * What determines a response.
+     */
+    record Key(String model, int[] promptTokens, float temperature, float topp, int topk, long seed, int steps, String[] stop) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && model.equals(other.model) && Arrays.equals(promptTokens, other.promptTokens) && temperature == other.temperature && topp == other.topp
+                    && topk == other.topk && seed == other.seed && steps == other.steps && Arrays.equals(stop, other.stop);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = model.hashCode();
+            h = 31 * h + Arrays.hashCode(promptTokens);
+            h = 31 * h + Float.hashCode(temperature);
+            h = 31 * h + Float.hashCode(topp);
+            h = 31 * h + topk;
+            h = 31 * h + Long.hashCode(seed);
+            h = 31 * h + steps;
+            return 31 * h + Arrays.hashCode(stop);
+        }
+    }
+
+    /**
+     * The response of a key, in flight or complete: records the output stream of
+     * its sequence and forwards it to the requests attached to it.
+     */
+    final class Entry implements Sequence.Listener {
+        final Key key;
+
+        // guarded by this
+        private int[] tokens = new int[64];
+        private final List<String> pieces = new ArrayList<>();
+        private volatile Sequence.FinishReason finishReason;
+        private final List<Sequence.Listener> subscribers = new ArrayList<>();
+        private boolean started;
+        private volatile CancellationToken cancellation; // of the running sequence
+        private long bytes;
+
+        private Entry(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * Replays the output so far to a listener, then forwards the rest of it.
+         */
+        synchronized void subscribe(Sequence.Listener listener) {
+            for (int i = 0; i < pieces.size(); i++) {
+                listener.token(tokens[i], pieces.get(i));
+            }
+            if (finishReason != null) {
+                listener.finished(finishReason);
+            } else {
+                subscribers.add(listener);
+            }
+        }
+
+        /**
+         * Detaches a listener, and cancels the sequence if no listener is left.
+         * Does nothing once the sequence finished.
+         */
+        synchronized void unsubscribe(Sequence.Listener listener) {
+            if (subscribers.remove(listener) && subscribers.isEmpty() && finishReason == null) {
+                cancellation.cancel();
+            }
+        }
+
+        @Override
+        public synchronized void token(int token, String piece) {
+            if (pieces.size() == tokens.length) {
+                tokens = Arrays.copyOf(tokens, tokens.length * 2);
+            }
+            tokens[pieces.size()] = token;
+            pieces.add(piece);
+            bytes += Integer.BYTES + 2L * piece.length() + 16;
+            for (Sequence.Listener subscriber : subscribers) {
+                subscriber.token(token, piece);
+            }
+        }
+
+        @Override
+        public void finished(Sequence.FinishReason reason) {
+            synchronized (this) {
+                finishReason = reason;
+                for (Sequence.Listener subscriber : subscribers) {
+                    subscriber.finished(reason);
+                }
+                subscribers.clear();
+            }
+            completed(this);
+        }
+    }
+
+    final long budgetBytes;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes; // of the complete entries
+
+    private long hits;
+    private long coalesced;
+    private long misses;
+
+    /**
+     * Creates an empty response cache.
+     *
+     * @param budgetBytes
+     *            The maximum size of the kept responses, in bytes.
+     */
+    ResponseCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Creates the response cache with the budget set through the
+     * {@code llama2.ResponseCacheMB} property.
+     *
+     * @return The cache, or null if no budget is set.
+     */
+    static ResponseCache create() {
+        long budgetMB = Long.getLong("llama2.ResponseCacheMB", 0);
+        return budgetMB > 0 ? new ResponseCache(budgetMB << 20) : null;
+    }
+
+    /**
+     * Returns the key of a request, or null if its response is not deterministic.
+     * The seed and the top-p and top-k parameters do not change a greedy
+     * response, so they are left out of its key.
+     */
+    static Key key(String model, int[] promptTokens, float temperature, float topp, int topk, long seed, int steps, String[] stop) {
+        if (temperature == 0.0f) {
+            return new Key(model, promptTokens, 0.0f, 0.0f, 0, 0, steps, stop);
+        }
+        return seed > 0 ? new Key(model, promptTokens, temperature, topp, topk, seed, steps, stop) : null;
+    }
+
+    /**
+     * Answers a request from the cache, attaches it to the same request in
+     * flight, or submits a new sequence for it.
+     *
+     * @param key
+     *            The key of the request.
+     * @param scheduler
+     *            The scheduler to submit the sequence to.
+     * @param listener
+     *            The output stream of the request.
+     * @param sequence
+     *            Creates the sequence of the request, given its listener.
+     * @return The entry the listener is attached to, to detach it when the
+     *         request goes away.
+     * @throws java.util.concurrent.RejectedExecutionException
+     *             If the scheduler rejects the sequence.
+     * @throws IllegalArgumentException
+     *             If the scheduler rejects the sequence.
+     */
+    Entry submit(Key key, Scheduler scheduler, Sequence.Listener listener, Function<Sequence.Listener, Sequence> sequence) {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(key);
+                if (entry != null && entry.finishReason == null && entry.cancellation != null && entry.cancellation.isCancelled()) {
+                    // all its requests went away, the sequence stops at the next step
+                    entry = null;
+                }
+                if (entry != null) {
+                    if (entry.finishReason != null) {
+                        hits++;
+                    } else {
+                        coalesced++;
+                    }
+                } else {
+                    misses++;
+                    entry = new Entry(key);
+                    entries.put(key, entry);
+                }
+            }
+            synchronized (entry) {
+                if (!entry.started) {
+                    if (entry.finishReason != null) {
+                        // the first request of the entry failed to submit its sequence and removed the entry
+                        synchronized (this) {
+                            coalesced--;
+                        }
+                        continue;
+                    }
+                    // first request of the entry, which runs the sequence
+                    Sequence seq = sequence.apply(entry);
+                    try {
+                        scheduler.submit(seq);
+                    } catch (RuntimeException e) {
+                        synchronized (this) {
+                            entries.remove(key, entry);
+                        }
+                        entry.finished(Sequence.FinishReason.CANCELLED);
+                        throw e;
+                    }
+                    entry.started = true;
+                    entry.cancellation = seq.cancellation;
+                }
+                entry.subscribe(listener);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Keeps the response of a finished entry, evicting the least recently used
+     * ones over the budget, or drops it if the sequence did not run to its end.
+     */
+    private synchronized void completed(Entry entry) {
+        if (entries.get(entry.key) != entry) {
+            return;
+        }
+        if (entry.finishReason == Sequence.FinishReason.CANCELLED || entry.finishReason == Sequence.FinishReason.DEADLINE || entry.bytes > budgetBytes) {
+            entries.remove(entry.key);
+            return;
+        }
+        cachedBytes += entry.bytes;
+        Iterator<Entry> it = entries.values().iterator();
+        while (cachedBytes > budgetBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            if (eldest.finishReason != null && eldest != entry) {
+                it.remove();
+                cachedBytes -= eldest.bytes;
+            }
+        }
+    }
+
+    /**
+     * A snapshot of the cache statistics.
+     *
+     * @param entries
+     *            The number of responses, complete or in flight.
+     * @param bytes
+     *            The size of the complete responses.
+     * @param hits
+     *            The number of requests answered from the cache.
+     * @param coalesced
+     *            The number of requests attached to the same request in flight.
+     * @param misses
+     *            The number of requests that ran a sequence.
+     */
+    record Stats(int entries, long bytes, long hits, long coalesced, long misses) {
+    }
+
+    synchronized Stats stats() {
+        return new Stats(entries.size(), cachedBytes, hits, coalesced, misses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("response cache: %d entries, %d bytes, %d hits, %d coalesced, %d misses", entries.size(), cachedBytes, hits, coalesced, misses);
+    }
+}
@@ -1,4 +1,18 @@
 package io.github.mikepapadim;
 
 public class RunState {
+    // kv cache
+    final KVCache kv; // paged, off-heap
+
+    RunState(KVCache kv) {
+        this.kv = kv;
+    }
+
+    /**
+     * Makes the state ready for a new session. The activations are overwritten by
+     * every forward pass, so only the pages of the KV cache are given back.
+     */
+    void reset() {
+        kv.reset();
+    }
 }
@@ -17,9 +17,11 @@ public class RunStateFloat extends RunState {
     final FloatArray v; // value (dim,)
     final float[] att; // buffer for scores/attention values (n_heads, seq_len)
     final FloatArray logits; // output logits
-    // kv cache
-    final float[][] key_cache; // (layer, seq_len, dim)
-    final float[][] value_cache; // (layer, seq_len, dim)
+    // sparse ffn
+    final int[] active; // indices of the active hb entries (hidden_dim,)
+    final SparseFFNStats sparseFFNStats; // null unless the sparse ffn is enabled
+    // batched prompt prefill
+    final BatchState prefill; // null unless enabled (Java version only)
 
     /**
      * Constructs a {@code RunState} object using the provided {@link Config}.
@@ -27,8 +29,11 @@ public class RunStateFloat extends RunState {
      * @param config
      *            The {@link Config} object containing transformer model
      *            configuration.
+     * @param kvPages
+     *            The pool the pages of the KV cache are taken from.
      */
-    RunStateFloat(Config config) {
+    RunStateFloat(Config config, KVPagePool kvPages) {
+        super(KVCache.create(config, kvPages));
         int kv_dim = (config.dim * config.n_kv_heads) / config.n_heads;
         this.x = new FloatArray(config.dim);
         this.xb = new FloatArray(config.dim);
@@ -40,7 +45,8 @@ public class RunStateFloat extends RunState {
         this.v = new FloatArray(kv_dim);
         this.att = new float[config.n_heads * config.seq_len];
         this.logits = new FloatArray(config.vocab_size);
-        this.key_cache = new float[config.n_layers][config.seq_len * kv_dim];
-        this.value_cache = new float[config.n_layers][config.seq_len * kv_dim];
+        this.active = Llama2.USE_SPARSE_FFN ? new int[config.hidden_dim] : null;
+        this.sparseFFNStats = Llama2.USE_SPARSE_FFN ? new SparseFFNStats(config.n_layers) : null;
+        this.prefill = Transformer.USE_JAVA && Llama2.USE_BATCHED_PREFILL ? new BatchState(config, Llama2.PREFILL_CHUNK) : null;
     }
-}
\ No newline at end of file
+}
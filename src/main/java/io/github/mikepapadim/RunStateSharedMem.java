@@ -19,9 +19,6 @@ public class RunStateSharedMem extends  RunState {
     final MemObject v; // value (dim,)
     final float[] att; // buffer for scores/attention values (n_heads, seq_len)
     final MemObject logits; // output logits
-    // kv cache
-    final float[][] key_cache; // (layer, seq_len, dim)
-    final float[][] value_cache; // (layer, seq_len, dim)
 
     ComputeBundle computeBundle;
     LevelZeroKernel matMulkernel;
@@ -32,8 +29,11 @@ public class RunStateSharedMem extends  RunState {
      * @param config
      *            The {@link Config} object containing transformer model
      *            configuration.
+     * @param kvPages
+     *            The pool the pages of the KV cache are taken from.
      */
-    RunStateSharedMem(Config config, ComputeBundle computeBundle) {
+    RunStateSharedMem(Config config, KVPagePool kvPages, ComputeBundle computeBundle) {
+        super(KVCache.create(config, kvPages));
         this.computeBundle = computeBundle;
         int kv_dim = (config.dim * config.n_kv_heads) / config.n_heads;
         this.x = allocate(config.dim);
@@ -46,8 +46,6 @@ public class RunStateSharedMem extends  RunState {
         this.v = allocate(kv_dim);
         this.att = new float[(config.n_heads * config.seq_len)];
         this.logits = allocate(config.vocab_size);
-        this.key_cache = new float[config.n_layers][config.seq_len * kv_dim];
-        this.value_cache = new float[config.n_layers][config.seq_len * kv_dim];
         matMulkernel = computeBundle.createKernel("matMul");
     }
 
@@ -6,9 +6,30 @@ package io.github.mikepapadim;
  * number generation using the xorshift pseudo-random number generator. The
  * class is designed for use in sampling scenarios, particularly for natural
  * language processing tasks.
+ *
+ * <p>A sampler holds the random state and the buffers of one session, so
+ * concurrent sessions each use their own. The buffers are sized for any
+ * parameters, so the samplers of the {@link SessionPool} are allocated once and
+ * set to the parameters of each request with {@link #reset}.</p>
  */
 public class Sampler {
 
+    /**
+     * The sampling parameters of a request, applied with {@link #reset} to the
+     * pooled sampler its sequence runs with.
+     *
+     * @param temperature
+     *            The temperature, 0 for greedy sampling.
+     * @param topp
+     *            The top-p parameter.
+     * @param topk
+     *            The number of most likely tokens to sample from, 0 to disable.
+     * @param seed
+     *            The seed for the pseudo-random number generator.
+     */
+    record Settings(float temperature, float topp, int topk, long seed) {
+    }
+
     /**
      * The size of the vocabulary used in sampling.
      */
@@ -23,13 +44,37 @@ public class Sampler {
      * The temperature parameter for controlling the randomness of the sampling
      * process. Higher values lead to more random samples.
      */
-    final float temperature;
+    float temperature;
 
     /**
      * The top-p parameter for nucleus sampling, controlling the cumulative
      * probability mass to consider for sampling. Should be in the range (0, 1].
      */
-    final float topp;
+    float topp;
+
+    /**
+     * The top-k parameter, restricting sampling to the k most likely tokens.
+     * A value of 0 disables top-k sampling.
+     */
+    int topk;
+
+    /**
+     * Buffers used in top-k sampling, holding the selected token indices and
+     * their logits in descending order (vocab_size long, for any k).
+     */
+    final int[] topk_indices;
+    final float[] topk_values;
+
+    /**
+     * Scratch buffers of the fused classifier, one entry (argmax) or one heap
+     * (top-k) per block of rows, see {@link MatrixVectorCollection#blocks(int)}.
+     * Allocated once, so sampling a token does not allocate.
+     */
+    final int[] block_index;
+    final float[] block_value;
+    final int[][] block_indices;
+    final float[][] block_values;
+    final int[] block_sizes;
 
     /**
      * The seed for the pseudo-random number generator.
@@ -52,11 +97,88 @@ public class Sampler {
      *            The seed for the pseudo-random number generator.
      */
     public Sampler(int vocab_size, float temperature, float topp, long rng_seed) {
+        this(vocab_size, temperature, topp, 0, rng_seed);
+    }
+
+    /**
+     * Constructs a Sampler with the specified parameters, including top-k.
+     *
+     * @param vocab_size
+     *            The size of the vocabulary used in sampling.
+     * @param temperature
+     *            The temperature parameter for controlling the randomness of the
+     *            sampling process.
+     * @param topp
+     *            The top-p parameter for nucleus sampling, applied within the top-k
+     *            candidates when both are set.
+     * @param topk
+     *            The number of most likely tokens to sample from, 0 to disable.
+     * @param rng_seed
+     *            The seed for the pseudo-random number generator.
+     */
+    public Sampler(int vocab_size, float temperature, float topp, int topk, long rng_seed) {
+        this(vocab_size);
+        reset(temperature, topp, topk, rng_seed);
+    }
+
+    /**
+     * Constructs a greedy Sampler whose buffers fit any parameters, to be set
+     * with {@link #reset}.
+     *
+     * @param vocab_size
+     *            The size of the vocabulary used in sampling.
+     */
+    Sampler(int vocab_size) {
         this.vocab_size = vocab_size;
+        this.probindex = new int[vocab_size];
+        this.topk_indices = new int[vocab_size];
+        this.topk_values = new float[vocab_size];
+        int blocks = MatrixVectorCollection.blocks(vocab_size);
+        int heap = MatrixVectorCollection.blockRows(vocab_size);
+        this.block_index = new int[blocks];
+        this.block_value = new float[blocks];
+        this.block_indices = new int[blocks][heap];
+        this.block_values = new float[blocks][heap];
+        this.block_sizes = new int[blocks];
+    }
+
+    /**
+     * Returns the size in bytes of the buffers of a sampler.
+     */
+    static long bytes(int vocab_size) {
+        long blocks = MatrixVectorCollection.blocks(vocab_size);
+        long heap = MatrixVectorCollection.blockRows(vocab_size);
+        return (3L * vocab_size + 3 * blocks + 2 * blocks * heap) * Integer.BYTES;
+    }
+
+    /**
+     * Sets the parameters of the next sequence, keeping the buffers.
+     *
+     * @param temperature
+     *            The temperature parameter, 0 for greedy sampling.
+     * @param topp
+     *            The top-p parameter.
+     * @param topk
+     *            The number of most likely tokens to sample from, 0 to disable.
+     * @param rng_seed
+     *            The seed for the pseudo-random number generator.
+     */
+    void reset(float temperature, float topp, int topk, long rng_seed) {
         this.temperature = temperature;
         this.topp = topp;
+        this.topk = Math.min(Math.max(topk, 0), vocab_size);
         this.rng_seed = rng_seed;
-        this.probindex = new int[vocab_size];
+    }
+
+    /**
+     * Returns whether the next token can be chosen from a fused classifier pass,
+     * i.e., only the largest logit (greedy) or the k largest logits (top-k) are
+     * needed, so the full logits vector never has to be materialized.
+     *
+     * @return true if greedy or top-k sampling is configured.
+     */
+    boolean isFusable() {
+        return temperature == 0.0f || topk > 0;
     }
 
     /**
@@ -0,0 +1,384 @@
+package io.github.mikepapadim;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import uk.ac.manchester.tornado.api.types.arrays.FloatArray;
+
+/**
+ * Runs several {@link Sequence}s on one model (Java version only). Each
+ * iteration advances every sequence that is decoding by one token, and
+ * prefills at most one chunk of {@code chunkSize} prompt tokens of the oldest
+ * sequence still in its prompt. A long prompt is thus split over several
+ * iterations instead of stalling the sequences that are already streaming:
+ * smaller chunks bound the latency added to their tokens, larger ones give the
+ * new sequence a shorter time to first token.
+ *
+ * <p>The decoding sequences are forwarded together, up to {@code maxBatch} per
+ * batch, with the prefill chunk appended to the last batch: every projection
+ * and the classifier run as matrix-matrix products over the rows of the batch,
+ * so the weights are read once per batch instead of once per sequence, while
+ * each row attends over the KV cache of its own sequence. The sequences of a
+ * batch can use different {@link LoraAdapter}s of the model.</p>
+ *
+ * <p>Batching is continuous: sequences can be submitted from any thread at any
+ * time, and are admitted at the start of the next iteration, while a sequence
+ * that finishes (EOS, steps limit or stop sequence) is retired at the end of the
+ * iteration that produced its last token, so its slot is free for the next one
+ * right away instead of when the slowest sequence of its batch finishes.</p>
+ *
+ * <p>The KV caches and samplers come from a {@link SessionPool} of
+ * pre-allocated sessions, which bounds the number of running sequences, and the
+ * {@link AdmissionController} keeps their KV pages within the memory budget: the
+ * others wait in the queue until a session and enough of the budget are
+ * returned. The buffers of the batch are allocated once, so iterations do not
+ * allocate memory in steady state.</p>
+ *
+ * <p>Sequences have a {@link Sequence.Priority}: interactive sequences are
+ * admitted and prefilled before batch ones, and while some are decoding, the
+ * batch sequences only take the rows left free in their batches, in turns, so
+ * batch jobs do not add forward passes to the steps of interactive requests.
+ * A sequence that is cancelled or past its deadline is finished before the next
+ * step, whether it is running or still queued.</p>
+ */
+public class Scheduler {
+
+    final Transformer transformer;
+    final Tokenizer tokenizer;
+    final int chunkSize;
+    final int maxBatch;
+    final BatchState batch;
+    final FloatArray logits; // (maxBatch, vocab_size)
+    final SessionPool sessions;
+    final AdmissionController admission;
+    final int maxPositions; // seq_len, unless the KV caches can discard positions
+
+    // only used by the thread running the iterations
+    final List<Sequence> running = new ArrayList<>();
+    private final List<Sequence> decoding = new ArrayList<>();
+    private final MemorySegment[] logitRows; // (maxBatch,) the rows of logits
+    private final PriorityBlockingQueue<Sequence> pending = new PriorityBlockingQueue<>(11,
+            Comparator.comparing((Sequence seq) -> seq.priority).thenComparingLong(seq -> seq.submitted));
+    private int batchTurn; // the batch sequence that advances first when they do not all fit
+    private volatile int runningCount; // running.size(), written by the thread running the iterations
+    private volatile boolean closed;
+
+    /**
+     * Creates a scheduler with the chunk size, the maximum number of decoding
+     * sequences per batch and the number of sessions set through the
+     * {@code llama2.PrefillChunk} (default 64), {@code llama2.MaxBatch} (default
+     * 16) and {@code llama2.Sessions} (default: the maximum batch) properties.
+     *
+     * @param transformer
+     *            The Transformer model.
+     * @param tokenizer
+     *            The tokenizer, to decode the generated tokens.
+     */
+    Scheduler(Transformer transformer, Tokenizer tokenizer) {
+        this(transformer, tokenizer, Llama2.PREFILL_CHUNK, Integer.getInteger("llama2.MaxBatch", 16));
+    }
+
+    Scheduler(Transformer transformer, Tokenizer tokenizer, int chunkSize, int maxBatch) {
+        this(transformer, tokenizer, chunkSize, maxBatch, new SessionPool(transformer, Integer.getInteger("llama2.Sessions", maxBatch)));
+    }
+
+    Scheduler(Transformer transformer, Tokenizer tokenizer, int chunkSize, int maxBatch, SessionPool sessions) {
+        this.transformer = transformer;
+        this.tokenizer = tokenizer;
+        this.chunkSize = chunkSize;
+        this.maxBatch = maxBatch;
+        this.batch = new BatchState(transformer.config, maxBatch + chunkSize);
+        this.logits = new FloatArray(maxBatch * transformer.config.vocab_size);
+        this.sessions = sessions;
+        this.admission = new AdmissionController(transformer, sessions, BatchState.bytes(transformer.config, maxBatch + chunkSize) + (long) maxBatch * transformer.config.vocab_size * Float.BYTES);
+        this.maxPositions = Llama2.STREAMING || Integer.getInteger("llama2.KVBudget", 0) > 0 ? Integer.MAX_VALUE : transformer.config.seq_len;
+        this.logitRows = new MemorySegment[maxBatch];
+        long logitsBytes = (long) transformer.config.vocab_size * Float.BYTES;
+        for (int r = 0; r < maxBatch; r++) {
+            logitRows[r] = logits.getSegment().asSlice(r * logitsBytes, logitsBytes);
+        }
+    }
+
+    /**
+     * Returns the steps limit of a sequence generating at most {@code maxTokens}
+     * tokens after its prompt.
+     *
+     * @throws IllegalArgumentException
+     *             If the prompt does not fit in the KV cache.
+     */
+    int steps(int numPromptTokens, int maxTokens) {
+        if (numPromptTokens >= maxPositions) {
+            throw new IllegalArgumentException("prompt too long: " + numPromptTokens + " tokens");
+        }
+        // the forward pass of the last prompt token gives the first generated token
+        return (int) Math.min((long) numPromptTokens - 1 + Math.max(maxTokens, 1), maxPositions);
+    }
+
+    /**
+     * Adds a sequence, which starts running at the first iteration where it is
+     * admitted. Can be called from any thread: the check of the queue length and
+     * the addition are atomic, so concurrent submissions cannot overfill the
+     * queue.
+     *
+     * @throws RejectedExecutionException
+     *             If the queue is full.
+     * @throws IllegalArgumentException
+     *             If the sequence does not fit in the memory budget.
+     */
+    void submit(Sequence sequence) {
+        synchronized (pending) {
+            admission.check(sequence, pending.size());
+            sequence.submitted = System.nanoTime();
+            pending.add(sequence);
+            pending.notify();
+        }
+    }
+
+    /**
+     * Returns the admission statistics. Can be called from any thread.
+     */
+    AdmissionController.Stats stats() {
+        long now = System.nanoTime();
+        long oldestWait = 0;
+        for (Sequence seq : pending) {
+            oldestWait = Math.max(oldestWait, now - seq.submitted);
+        }
+        return admission.stats(pending.size(), oldestWait);
+    }
+
+    /**
+     * Returns whether some sequence is not done yet, or was not retired yet. Can
+     * be called from any thread.
+     */
+    boolean isBusy() {
+        return runningCount > 0 || !pending.isEmpty();
+    }
+
+    /**
+     * Runs the sequences until they are all done.
+     */
+    void run() {
+        while (isBusy()) {
+            step();
+        }
+    }
+
+    /**
+     * Starts a daemon thread that runs iterations as long as there are sequences,
+     * and waits for new ones otherwise, until {@link #close()}.
+     *
+     * @return The started thread.
+     */
+    Thread start() {
+        Thread thread = new Thread(() -> {
+            try {
+                while (!closed) {
+                    if (running.isEmpty()) {
+                        // wait for a sequence, leaving it in the queue for the admission
+                        synchronized (pending) {
+                            if (pending.isEmpty()) {
+                                pending.wait(100);
+                            }
+                        }
+                        if (pending.isEmpty()) {
+                            continue;
+                        }
+                    }
+                    step();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "llama2-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Stops the thread started by {@link #start()} after its current iteration.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Finishes the queued sequences that were cancelled or expired, then starts
+     * the others, by priority then in order, as long as there are sessions left
+     * in the session pool and their KV pages fit in the budget.
+     */
+    private void admit() {
+        if (!pending.isEmpty()) {
+            long now = System.nanoTime();
+            for (Sequence seq : pending) {
+                if (seq.interrupted(now)) {
+                    pending.remove(seq);
+                }
+            }
+        }
+        Sequence next;
+        while ((next = pending.peek()) != null) {
+            // only this thread takes sessions, so one is left after the check
+            if (sessions.available() == 0 || !admission.tryAdmit(next)) {
+                return;
+            }
+            // counted as running before it leaves the queue, so it is always seen as busy
+            running.add(next);
+            runningCount = running.size();
+            pending.remove(next);
+            next.start(transformer, sessions.tryAcquire());
+        }
+    }
+
+    /**
+     * Runs one iteration: admits the submitted sequences, runs one decode step of
+     * every decoding sequence and one prefill chunk, then retires the sequences
+     * that are done.
+     */
+    void step() {
+        admit();
+        if (running.isEmpty()) {
+            return;
+        }
+        Config config = transformer.config;
+        long now = System.nanoTime();
+        decoding.clear();
+        Sequence prefilling = null;
+        int interactive = 0; // the interactive sequences come first in decoding
+        for (Sequence seq : running) {
+            if (seq.isDone() || seq.interrupted(now)) {
+                continue;
+            }
+            if (seq.isPrefilling()) {
+                if (prefilling == null || seq.priority.compareTo(prefilling.priority) < 0) {
+                    prefilling = seq;
+                }
+            } else if (seq.priority == Sequence.Priority.INTERACTIVE) {
+                decoding.add(interactive++, seq);
+            } else {
+                decoding.add(seq);
+            }
+        }
+        int batchRows = decoding.size() - interactive;
+        if (interactive > 0 && batchRows > 0) {
+            // the batch sequences only fill the last batch of the interactive ones
+            int free = (maxBatch - interactive % maxBatch) % maxBatch;
+            if (batchRows > free) {
+                List<Sequence> batchSequences = decoding.subList(interactive, decoding.size());
+                Collections.rotate(batchSequences, -(batchTurn % batchRows));
+                batchSequences.subList(free, batchRows).clear();
+                batchTurn += free;
+            }
+        }
+        if (decoding.isEmpty() && prefilling == null) {
+            retire();
+            return;
+        }
+
+        int first = 0;
+        do {
+            int groupStart = first;
+            int groupSize = Math.min(maxBatch, decoding.size() - first);
+            first += groupSize;
+
+            // one row per decoding sequence
+            int rows = 0;
+            for (int g = 0; g < groupSize; g++) {
+                Sequence seq = decoding.get(groupStart + g);
+                seq.shift += Llama2.makeRoom(seq.kv, seq.cachePos(), config.seq_len);
+                addRow(rows++, seq.token, seq.cachePos(), seq.kv, seq.adapter);
+            }
+
+            // then the prefill chunk, with the last group
+            int count = 0;
+            if (prefilling != null && first == decoding.size()) {
+                Sequence seq = prefilling;
+                seq.shift += Llama2.makeRoom(seq.kv, seq.cachePos(), config.seq_len);
+                count = Math.min(Math.min(seq.numPromptTokens - 1, seq.steps) - seq.pos, Math.min(chunkSize, seq.capacity(config) - seq.cachePos()));
+                for (int r = 0; r < count; r++) {
+                    addRow(rows++, seq.promptTokens[seq.pos + r], seq.cachePos() + r, seq.kv, seq.adapter);
+                }
+            }
+
+            InferenceEngine.forwardBatchWithJava(transformer, batch, rows);
+
+            // the classifier, for the decode rows only
+            if (groupSize > 0) {
+                MatrixVectorCollection.matmul(logits, batch.x, ((WeightsFP32) transformer.weights).wcls, config.dim, config.vocab_size, groupSize, batch.input);
+                for (int r = 0; r < groupSize; r++) {
+                    Sequence seq = decoding.get(groupStart + r);
+                    decoded(seq, Llama2.sample(seq.sampler, logitRows[r]));
+                }
+            }
+            if (count > 0) {
+                prefilled(prefilling, count);
+            }
+        } while (first < decoding.size());
+
+        retire();
+    }
+
+    /**
+     * Retires the sequences that are done, and returns their sessions and
+     * budget.
+     */
+    private void retire() {
+        for (int i = running.size() - 1; i >= 0; i--) {
+            Sequence seq = running.get(i);
+            if (seq.isDone()) {
+                running.remove(i);
+                sessions.release(seq.session);
+                admission.release(seq);
+            }
+        }
+        runningCount = running.size();
+    }
+
+    private void addRow(int row, int token, int pos, KVCache kv, LoraAdapter adapter) {
+        batch.tokens[row] = token;
+        batch.positions[row] = pos;
+        batch.caches[row] = kv;
+        batch.adapters[row] = adapter;
+    }
+
+    /**
+     * Advances a sequence past a prefill chunk.
+     */
+    private void prefilled(Sequence seq, int count) {
+        seq.pos += count;
+        seq.token = seq.promptTokens[seq.pos];
+        if (seq.pos >= seq.steps) {
+            seq.finish(Sequence.FinishReason.LENGTH);
+        }
+    }
+
+    /**
+     * Advances a sequence past a decode step, given the sampled token.
+     */
+    private void decoded(Sequence seq, int next) {
+        // the whole prompt is in the KV cache now, share its pages with later requests
+        if (transformer.prefixCache != null && seq.adapter == null && seq.shift == 0 && seq.pos == seq.numPromptTokens - 1) {
+            transformer.prefixCache.insert(seq.promptTokens, seq.numPromptTokens, seq.kv);
+        }
+
+        seq.pos++;
+        // the BOS (=1) token delimits sequences, chat models end their answers with EOS (=2)
+        if (next == 1 || next == 2) {
+            seq.finish(Sequence.FinishReason.EOS);
+            return;
+        }
+        String piece = Llama2.decode(tokenizer, seq.token, next);
+        seq.listener.token(next, piece);
+        seq.token = next;
+        if (seq.matchesStop(piece)) {
+            seq.finish(Sequence.FinishReason.STOP);
+        } else if (seq.pos >= seq.steps) {
+            seq.finish(Sequence.FinishReason.LENGTH);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package io.github.mikepapadim;
+
+/**
+ * The state of one generation request run by a {@link Scheduler}: its prompt,
+ * its sampling parameters, the KV cache and sampler of its session, its output
+ * stream, and how far it got. A
+ * sequence first prefills its prompt up to the last prompt token, possibly over
+ * several chunks, and then decodes one token per step; the forward pass of the
+ * last prompt token is the first decode step, since its logits give the first
+ * generated token.
+ */
+public class Sequence {
+
+    /**
+     * Why a sequence finished.
+     */
+    enum FinishReason {
+        EOS, // the model generated BOS or EOS
+        LENGTH, // the steps limit was reached
+        STOP, // the last piece completed one of the stop sequences
+        CANCELLED, // the caller cancelled the sequence
+        DEADLINE // the deadline of the sequence passed
+    }
+
+    /**
+     * Scheduling class of a sequence. Interactive sequences are admitted and
+     * prefilled before batch ones, and while some are decoding, batch sequences
+     * only take the rows their batches leave free.
+     */
+    enum Priority {
+        INTERACTIVE, BATCH
+    }
+
+    /**
+     * The output stream of a sequence. Its methods are called by the thread
+     * running the scheduler, so they should return quickly.
+     */
+    interface Listener {
+        /**
+         * Receives a generated token and its decoded text.
+         */
+        void token(int token, String piece);
+
+        /**
+         * Called once, after the last token.
+         */
+        void finished(FinishReason reason);
+    }
+
+    final int[] promptTokens;
+    final int numPromptTokens;
+    final int steps; // maximum number of positions, prompt included
+    final Sampler.Settings sampling;
+    final String[] stop; // stop sequences, matched on the decoded output
+    final Listener listener;
+    final Priority priority;
+    final CancellationToken cancellation;
+    final LoraAdapter adapter; // null for the base model
+
+    long submitted; // System.nanoTime() when the sequence was queued
+    SessionPool.Session session; // taken from the session pool when the sequence starts
+    KVCache kv; // the cache of the session
+    Sampler sampler; // the sampler of the session, set to the sampling parameters
+
+    int pos; // position in the sequence of the next token to forward
+    int shift; // positions discarded from the KV cache
+    int token; // next token to forward
+    FinishReason finishReason; // null until the sequence is done
+
+    private final StringBuilder tail = new StringBuilder(); // end of the output, for the stop sequences
+    private final int maxStopLength;
+
+    /**
+     * Creates a sequence, which gets its KV cache and sampler when it starts.
+     *
+     * @param promptTokens
+     *            The prompt tokens, starting with BOS.
+     * @param numPromptTokens
+     *            The number of prompt tokens.
+     * @param steps
+     *            The maximum number of positions, prompt included.
+     * @param sampling
+     *            The sampling parameters of the sequence.
+     * @param stop
+     *            The stop sequences, possibly empty. The sequence finishes with
+     *            the first piece that completes one of them, anywhere in the
+     *            piece; the piece, stop sequence and any text after it included,
+     *            is part of the output.
+     * @param listener
+     *            The output stream of the sequence.
+     */
+    Sequence(int[] promptTokens, int numPromptTokens, int steps, Sampler.Settings sampling, String[] stop, Listener listener) {
+        this(promptTokens, numPromptTokens, steps, sampling, stop, listener, Priority.INTERACTIVE, CancellationToken.NONE);
+    }
+
+    /**
+     * Creates a sequence with a scheduling class, that can be cancelled.
+     *
+     * @param priority
+     *            The scheduling class of the sequence.
+     * @param cancellation
+     *            The token that cancels the sequence, checked before every step.
+     */
+    Sequence(int[] promptTokens, int numPromptTokens, int steps, Sampler.Settings sampling, String[] stop, Listener listener, Priority priority, CancellationToken cancellation) {
+        this(promptTokens, numPromptTokens, steps, sampling, stop, listener, priority, cancellation, null);
+    }
+
+    /**
+     * Creates a sequence that runs with a LoRA adapter of the model.
+     *
+     * @param adapter
+     *            The adapter, or null for the base model.
+     */
+    Sequence(int[] promptTokens, int numPromptTokens, int steps, Sampler.Settings sampling, String[] stop, Listener listener, Priority priority, CancellationToken cancellation,
+            LoraAdapter adapter) {
+        this.promptTokens = promptTokens;
+        this.numPromptTokens = numPromptTokens;
+        this.steps = steps;
+        this.sampling = sampling;
+        this.stop = stop;
+        this.listener = listener;
+        this.priority = priority;
+        this.cancellation = cancellation;
+        this.adapter = adapter;
+        int maxStop = 0;
+        for (String s : stop) {
+            maxStop = Math.max(maxStop, s.length());
+        }
+        this.maxStopLength = maxStop;
+    }
+
+    /**
+     * Starts the sequence on a session from the session pool.
+     *
+     * @param transformer
+     *            The Transformer model.
+     * @param session
+     *            The session, with an empty KV cache.
+     */
+    void start(Transformer transformer, SessionPool.Session session) {
+        this.session = session;
+        this.kv = session.kv();
+        this.sampler = session.sampler();
+        sampler.reset(sampling.temperature(), sampling.topp(), sampling.topk(), sampling.seed());
+        // start from the longest cached prefix of the prompt, if any (the cached keys and values are those of the base model)
+        this.pos = transformer.prefixCache != null && adapter == null ? transformer.prefixCache.fork(promptTokens, numPromptTokens, kv) : 0;
+        this.token = promptTokens[pos];
+    }
+
+    /**
+     * Returns whether the sequence still has prompt tokens to prefill before its
+     * first decode step.
+     */
+    boolean isPrefilling() {
+        return !isDone() && pos < numPromptTokens - 1;
+    }
+
+    /**
+     * Returns whether the sequence finished.
+     */
+    boolean isDone() {
+        return finishReason != null;
+    }
+
+    /**
+     * Returns the number of positions in the KV cache.
+     */
+    int cachePos() {
+        return pos - shift;
+    }
+
+    /**
+     * Returns the maximum number of positions in the KV cache.
+     */
+    int capacity(Config config) {
+        return kv.eviction != null ? kv.eviction.budget : config.seq_len;
+    }
+
+    /**
+     * Appends a piece to the output and returns whether one of the stop sequences
+     * now occurs in the output overlapping the new piece, so ending in the piece
+     * or inside it: a piece can hold text past the stop sequence, which is not
+     * cut. Between pieces, only a tail of the output as long as the longest stop
+     * sequence is kept, since a match must end in the new piece.
+     */
+    boolean matchesStop(String piece) {
+        if (maxStopLength == 0) {
+            return false;
+        }
+        tail.append(piece);
+        boolean matched = false;
+        for (String s : stop) {
+            if (!s.isEmpty() && tail.indexOf(s, Math.max(0, tail.length() - piece.length() - s.length() + 1)) >= 0) {
+                matched = true;
+                break;
+            }
+        }
+        if (tail.length() > maxStopLength) {
+            tail.delete(0, tail.length() - maxStopLength);
+        }
+        return matched;
+    }
+
+    /**
+     * Finishes the sequence if it was cancelled or its deadline passed.
+     *
+     * @param now
+     *            The current {@link System#nanoTime()}.
+     * @return Whether the sequence finished.
+     */
+    boolean interrupted(long now) {
+        if (cancellation.isCancelled()) {
+            finish(FinishReason.CANCELLED);
+        } else if (cancellation.isExpired(now)) {
+            finish(FinishReason.DEADLINE);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks the sequence as done and closes its output stream. Its session goes
+     * back to the session pool when the scheduler retires it.
+     */
+    void finish(FinishReason reason) {
+        finishReason = reason;
+        listener.finished(reason);
+    }
+}
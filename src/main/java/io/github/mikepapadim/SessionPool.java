@@ -0,0 +1,92 @@
+package io.github.mikepapadim;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of the per-session state of a model: the KV cache and the sampler of
+ * every session. All of them are created up front, one per session that can
+ * run at a time, and the native memory of the KV pages they can use is reserved
+ * in the page pool by the {@link AdmissionController}, so serving a request
+ * only takes a session from the pool and gives it back: no KV page table, KV
+ * page or sampler buffer is allocated per request or per token. The activations
+ * of the sessions are the rows of the batch of the {@link Scheduler}, so they
+ * are not pooled.
+ *
+ * <p>Returning a session gives back the pages it used, in proportion to the
+ * positions it used rather than to seq_len. When all the sessions are taken,
+ * new sequences wait in the queue of the scheduler, which only admits them when
+ * a session is available.</p>
+ */
+public class SessionPool {
+
+    /**
+     * The state of one session.
+     *
+     * @param kv
+     *            The KV cache, empty while the session is in the pool.
+     * @param sampler
+     *            The sampler, set to the parameters of each sequence.
+     */
+    record Session(KVCache kv, Sampler sampler) {
+    }
+
+    final Transformer transformer;
+    final int size;
+    final int sessionPositions; // maximum number of positions in the KV cache of a session
+
+    private final ArrayBlockingQueue<Session> idle;
+
+    /**
+     * Creates a pool of {@code size} sessions.
+     *
+     * @param transformer
+     *            The Transformer model.
+     * @param size
+     *            The number of concurrent sessions.
+     */
+    SessionPool(Transformer transformer, int size) {
+        this.transformer = transformer;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            idle.add(new Session(KVCache.create(transformer.config, transformer.kvPages), new Sampler(transformer.config.vocab_size)));
+        }
+        Session any = idle.peek();
+        this.sessionPositions = any != null && any.kv().eviction != null ? any.kv().eviction.budget : transformer.config.seq_len;
+    }
+
+    /**
+     * Returns the size in bytes of the state of the sessions, the KV pages
+     * aside.
+     */
+    long bytes() {
+        return size * (KVCache.bytes(transformer.config, transformer.kvPages) + Sampler.bytes(transformer.config.vocab_size));
+    }
+
+    /**
+     * Takes a session if one is available.
+     *
+     * @return A session with an empty cache, or null if they are all taken.
+     */
+    Session tryAcquire() {
+        return idle.poll();
+    }
+
+    /**
+     * Empties the cache of a session and returns it to the pool.
+     *
+     * @param session
+     *            A session taken from this pool.
+     */
+    void release(Session session) {
+        session.kv().reset();
+        idle.add(session);
+    }
+
+    /**
+     * Returns the number of sessions that are not taken.
+     */
+    int available() {
+        return idle.size();
+    }
+}
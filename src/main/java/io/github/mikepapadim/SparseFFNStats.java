@@ -0,0 +1,70 @@
+package io.github.mikepapadim;
+
+import uk.ac.manchester.tornado.api.types.arrays.FloatArray;
+
+/**
+ * Collects, per layer, the sparsity achieved by the sparse FFN down projection
+ * and its accuracy with respect to the dense projection. The accuracy is
+ * measured on a sample of the positions, by also running the dense matmul.
+ */
+public class SparseFFNStats {
+
+    /**
+     * One out of this many positions is checked against the dense projection.
+     */
+    static final int CHECK_INTERVAL = 16;
+
+    final long[] activeColumns; // (layer,) w2 columns streamed
+    final long[] totalColumns; // (layer,) w2 columns of the dense projection
+    final double[] relativeError; // (layer,) sum of the relative L2 errors of the checked positions
+    final int[] checkedPositions; // (layer,)
+
+    SparseFFNStats(int n_layers) {
+        this.activeColumns = new long[n_layers];
+        this.totalColumns = new long[n_layers];
+        this.relativeError = new double[n_layers];
+        this.checkedPositions = new int[n_layers];
+    }
+
+    boolean isChecked(int pos) {
+        return pos % CHECK_INTERVAL == 0;
+    }
+
+    void recordSparsity(int layer, int active, int hidden_dim) {
+        activeColumns[layer] += active;
+        totalColumns[layer] += hidden_dim;
+    }
+
+    /**
+     * Records the relative L2 error ||sparse - dense|| / ||dense|| of one
+     * position.
+     */
+    void recordError(int layer, FloatArray sparse, FloatArray dense, int dim) {
+        double diff = 0.0;
+        double norm = 0.0;
+        for (int i = 0; i < dim; i++) {
+            double d = sparse.get(i) - dense.get(i);
+            diff += d * d;
+            norm += (double) dense.get(i) * dense.get(i);
+        }
+        relativeError[layer] += norm > 0.0 ? Math.sqrt(diff / norm) : 0.0;
+        checkedPositions[layer]++;
+    }
+
+    void report() {
+        System.err.printf("sparse ffn (threshold %g):\n", Llama2.SPARSE_FFN_THRESHOLD);
+        long active = 0;
+        long total = 0;
+        for (int l = 0; l < activeColumns.length; l++) {
+            active += activeColumns[l];
+            total += totalColumns[l];
+            System.err.printf("  layer %2d: sparsity %6.2f%%, mean relative error %.3e\n", l, sparsity(activeColumns[l], totalColumns[l]),
+                    checkedPositions[l] > 0 ? relativeError[l] / checkedPositions[l] : 0.0);
+        }
+        System.err.printf("  total   : sparsity %6.2f%%\n", sparsity(active, total));
+    }
+
+    private static double sparsity(long active, long total) {
+        return total > 0 ? 100.0 * (total - active) / total : 0.0;
+    }
+}
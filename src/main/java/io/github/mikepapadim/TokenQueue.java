@@ -0,0 +1,50 @@
+package io.github.mikepapadim;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Output stream of a {@link Sequence} read by another thread: the scheduler
+ * thread adds the tokens as they are generated, and the thread serving the
+ * request takes them, so a slow client never stalls the scheduler.
+ */
+final class TokenQueue implements Sequence.Listener {
+
+    /**
+     * A generated token and its decoded text.
+     */
+    record Token(int token, String piece) {
+    }
+
+    private final LinkedBlockingQueue<Object> events = new LinkedBlockingQueue<>(); // tokens, then the finish reason
+    private int tokens;
+
+    @Override
+    public void token(int token, String piece) {
+        tokens++;
+        events.add(new Token(token, piece));
+    }
+
+    @Override
+    public void finished(Sequence.FinishReason reason) {
+        events.add(reason);
+    }
+
+    /**
+     * Waits for the next event of the sequence.
+     *
+     * @return A {@link Token}, or the {@link Sequence.FinishReason} after the last
+     *         token.
+     * @throws InterruptedException
+     *             If interrupted while waiting.
+     */
+    Object take() throws InterruptedException {
+        return events.take();
+    }
+
+    /**
+     * Returns the number of tokens generated, once the finish reason was taken.
+     */
+    int count() {
+        return tokens;
+    }
+}
@@ -38,7 +38,7 @@ public class Tokenizer {
     /**
      * A map containing the sorted vocabulary for efficient lookups.
      */
-    Map<String, Integer> sorted_vocab;
+    volatile Map<String, Integer> sorted_vocab;
 
     /**
      * Constructs a Tokenizer by loading vocabulary and scores from a file. Note: We
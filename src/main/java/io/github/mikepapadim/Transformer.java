@@ -13,8 +13,11 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 
 /**
- * The Transformer class represents a neural network model with hyperparameters,
- * weights, and state information for performing forward passes.
+ * The Transformer class represents a neural network model with hyperparameters
+ * and weights. It is immutable once loaded, so one instance is shared by all
+ * the sessions of the model, each of which runs its forward passes on its own
+ * {@link RunState} from {@link #createState()}. The KV page pool, the prefix
+ * cache and the spill store are shared too, and are thread-safe.
  */
 public class Transformer {
 
@@ -27,22 +30,45 @@ public class Transformer {
     /**
      * The hyperparameters of the architecture (the blueprint).
      */
-    Config config;
+    final Config config;
 
     /**
      * The weights of the model.
      */
-    Weights weights;
+    final Weights weights;
 
     /**
-     * Buffers for the "wave" of activations in the forward pass.
+     * Pages of the KV caches, shared by the sessions of the model.
      */
-    RunState state;
+    final KVPagePool kvPages;
+
+    /**
+     * KV pages of the cached prompt prefixes, null unless enabled through the
+     * {@code llama2.PrefixCacheMB} property.
+     */
+    final PrefixCache prefixCache;
+
+    /**
+     * Disk tier of the KV caches of idle sessions, null unless enabled through the
+     * {@code llama2.KVSpillDir} property.
+     */
+    final KVSpillStore spillStore;
+
+    /**
+     * The Level Zero platform of the weights and the run states, null for the
+     * other versions.
+     */
+    private final ComputeBundle computeBundle;
+
+    /**
+     * The mapping of the checkpoint file, null for the Level Zero version.
+     */
+    private final Arena arena;
 
     /**
      * Size of the checkpoint file in bytes.
      */
-    private final long fileSize;
+    final long fileSize;
 
     /**
      * Constructs a Transformer by loading the model checkpoint from a file.
@@ -53,6 +79,7 @@ public class Transformer {
      *             If an I/O error occurs while reading the checkpoint file.
      */
     public Transformer(String checkpointPath) throws IOException {
+        Arena mapping = null;
         try (FileChannel fileChannel = FileChannel.open(Paths.get(checkpointPath), StandardOpenOption.READ)) {
 
             this.fileSize = fileChannel.size();
@@ -74,20 +101,23 @@ public class Transformer {
                 this.config = new Config(configBuffer);
                 System.out.println(this.config);
 
-                this.state = new RunStateSharedMem(this.config, computeBundle);
+                this.kvPages = new KVPagePool(this.config);
+                this.computeBundle = computeBundle;
+                this.prefixCache = createPrefixCache(this.kvPages);
 
                 // Move the position to the beginning of the weights data
                 MemObject weightsSegment = computeBundle.allocateSharedWithSegment(computeSize(configSize, data));
                 weightsSegment.segment().copyFrom(data.segment().asSlice(configSize));
 
                 this.weights = new WeightsShared(this.config, weightsSegment, computeBundle);
+                this.arena = null;
 
             } else {
-                Arena memoryArena = Arena.ofAuto();
-                MemorySegment data = memoryArena.allocate(fileSize, 1);
-
-                // Read the entire file into the MemorySegment
-                fileChannel.read(data.asByteBuffer());
+                // Map the file, so its pages are shared with the page cache and
+                // given back as soon as the mapping is closed
+                mapping = Arena.ofShared();
+                this.arena = mapping;
+                MemorySegment data = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize, arena);
 
                 int configSize = 7 * Integer.BYTES;
 
@@ -97,14 +127,59 @@ public class Transformer {
                 this.config = new Config(configBuffer);
                 System.out.println(this.config);
 
-                this.state = new RunStateFloat(this.config);
+                this.kvPages = new KVPagePool(this.config);
+                this.computeBundle = null;
+                this.prefixCache = createPrefixCache(this.kvPages);
 
                 // Move the position to the beginning of the weights data
                 MemorySegment weightsSegment = data.asSlice(configSize);
 
-                this.weights = new WeightsFP32(this.config, weightsSegment);
+                this.weights = new WeightsFP32(this.config, weightsSegment, arena);
+            }
+        } catch (IOException | RuntimeException e) {
+            // a corrupt checkpoint, unmapped here since no Transformer is left to close it
+            if (mapping != null) {
+                mapping.close();
             }
+            throw e;
+        }
+        String spillDir = System.getProperty("llama2.KVSpillDir");
+        this.spillStore = spillDir != null ? new KVSpillStore(Paths.get(spillDir)) : null;
+    }
+
+    /**
+     * Creates the buffers of a new session: its activations and an empty KV cache
+     * whose pages come from the shared pool.
+     *
+     * @return A run state for the selected version.
+     */
+    RunState createState() {
+        return computeBundle != null ? new RunStateSharedMem(config, kvPages, computeBundle) : new RunStateFloat(config, kvPages);
+    }
+
+    /**
+     * Returns the size in bytes of the weights: the checkpoint, mapped or copied,
+     * and the weights copied out of it.
+     */
+    long weightBytes() {
+        return weights instanceof WeightsFP32 w ? fileSize + w.copiedBytes : fileSize;
+    }
+
+    /**
+     * Unmaps the checkpoint, with the weights copied out of it, and frees the KV
+     * pages. The model must not be used
+     * afterwards: no session may be running.
+     */
+    void close() {
+        if (arena != null) {
+            arena.close();
         }
+        kvPages.close();
+    }
+
+    private static PrefixCache createPrefixCache(KVPagePool kvPages) {
+        long budgetMB = Long.getLong("llama2.PrefixCacheMB", 0);
+        return budgetMB > 0 ? new PrefixCache(kvPages, budgetMB << 20) : null;
     }
 
     private long computeSize(long offset, MemObject data) {
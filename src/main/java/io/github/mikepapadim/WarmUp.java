@@ -0,0 +1,111 @@
+package io.github.mikepapadim;
+
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.IntStream;
+
+/**
+ * Warm-up of a model before it serves requests (Java version only). The first
+ * iterations of the forward pass, the sampling and the tokenizer run in the
+ * interpreter until the JIT compiles them, so the first requests of a new
+ * process would be much slower than the next ones. The warm-up runs synthetic
+ * sequences through the {@link Scheduler} of the model first: for every context
+ * length of {@code llama2.WarmUpContexts} (default 16,128) and every batch size
+ * from 1 to the maximum batch, in powers of two, a batch of prompts of that
+ * length is prefilled and decoded for a few tokens, with greedy, top-p and top-k
+ * sampling, for {@code llama2.WarmUpRounds} rounds (default 3). The warm-up is
+ * enabled by default in the serving modes, and disabled with
+ * {@code -Dllama2.WarmUp=false}.
+ *
+ * <p>The warm-up leaves no trace in the model: its prompts are removed from the
+ * prefix cache, and it is not counted in the admission statistics.</p>
+ */
+public class WarmUp {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("llama2.WarmUp", "true"));
+
+    /**
+     * Text encoded to warm up the tokenizer, whose tokens are repeated to make the
+     * prompts.
+     */
+    private static final String TEXT = "Once upon a time, there was a little girl named Lily. She loved to play outside in the sunshine, 1234567890 times a day!";
+
+    /**
+     * Tokens generated per sequence.
+     */
+    private static final int DECODE_STEPS = 8;
+
+    final Scheduler scheduler;
+    final int rounds;
+    final int[] contexts;
+
+    /**
+     * Creates the warm-up of a scheduler, with the rounds and context lengths set
+     * through properties.
+     */
+    WarmUp(Scheduler scheduler) {
+        this.scheduler = scheduler;
+        this.rounds = Integer.getInteger("llama2.WarmUpRounds", 3);
+        this.contexts = Arrays.stream(System.getProperty("llama2.WarmUpContexts", "16,128").split(",")).mapToInt(c -> Integer.parseInt(c.strip())).toArray();
+    }
+
+    /**
+     * Runs the warm-up on the calling thread. The scheduler thread must not be
+     * started yet.
+     */
+    void run() {
+        long start = System.nanoTime();
+        Tokenizer tokenizer = scheduler.tokenizer;
+        int maxContext = Math.min(scheduler.maxPositions, scheduler.transformer.config.seq_len) - DECODE_STEPS;
+        long sequences = 0;
+        for (int round = 0; round < rounds; round++) {
+            int[] text = new int[TEXT.length() * 2 + 3]; // +3 for '\0', ?BOS, ?EOS
+            int textTokens = Llama2.encode(tokenizer, TEXT, true, false, text);
+            for (int context : contexts) {
+                int length = Math.max(2, Math.min(context, maxContext));
+                for (int batch : batchSizes(scheduler.maxBatch)) {
+                    for (int i = 0; i < batch; i++) {
+                        // BOS, then the text from a different offset for every sequence
+                        int[] prompt = new int[length];
+                        prompt[0] = text[0];
+                        for (int t = 1; t < length; t++) {
+                            prompt[t] = text[1 + (i + t) % (textTokens - 1)];
+                        }
+                        Sampler.Settings sampling = switch (i % 3) {
+                            case 0 -> new Sampler.Settings(0.0f, 0.9f, 0, round + 1);
+                            case 1 -> new Sampler.Settings(1.0f, 0.9f, 0, round + 1);
+                            default -> new Sampler.Settings(1.0f, 1.0f, 40, round + 1);
+                        };
+                        try {
+                            scheduler.submit(new Sequence(prompt, length, scheduler.steps(length, DECODE_STEPS), sampling, new String[0], new Sequence.Listener() {
+                                @Override
+                                public void token(int token, String piece) {
+                                }
+
+                                @Override
+                                public void finished(Sequence.FinishReason reason) {
+                                }
+                            }));
+                            sequences++;
+                        } catch (IllegalArgumentException | RejectedExecutionException e) {
+                            // beyond the budget of the model, never served either
+                        }
+                    }
+                    scheduler.run();
+                }
+            }
+        }
+        if (scheduler.transformer.prefixCache != null) {
+            scheduler.transformer.prefixCache.clear();
+        }
+        scheduler.admission.resetStats();
+        System.err.printf("warm-up: %d sequences in %.1f s\n", sequences, (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Returns the powers of two below the maximum batch, then the maximum batch.
+     */
+    private static int[] batchSizes(int maxBatch) {
+        return IntStream.concat(IntStream.iterate(1, b -> b < maxBatch, b -> 2 * b), IntStream.of(maxBatch)).toArray();
+    }
+}
@@ -1,9 +1,9 @@
 package io.github.mikepapadim;
 
+import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.util.Arrays;
 
 import uk.ac.manchester.tornado.api.types.tensors.Shape;
 import uk.ac.manchester.tornado.api.types.tensors.TensorFP32;
@@ -22,9 +22,9 @@ public class WeightsFP32 implements Weights{
     final FloatBuffer[] rms_att_weight; // (layer, dim) rmsnorm weights
 
     // weights for matmuls. note dim == n_heads * head_size
-    final TensorFP32[] wq; // (layer, dim, n_heads * head_size)
-    final TensorFP32[] wk; // (layer, dim, n_kv_heads * head_size)
-    final TensorFP32[] wv; // (layer, dim, n_kv_heads * head_size)
+    final FloatBuffer[] wq; // (layer, dim, n_heads * head_size)
+    final FloatBuffer[] wk; // (layer, dim, n_kv_heads * head_size)
+    final FloatBuffer[] wv; // (layer, dim, n_kv_heads * head_size)
     final FloatBuffer[] wo; // (layer, n_heads * head_size, dim)
 
     // weights for ffn
@@ -32,39 +32,49 @@ public class WeightsFP32 implements Weights{
     final FloatBuffer[] w1; // (layer, hidden_dim, dim)
     final FloatBuffer[] w2; // (layer, dim, hidden_dim)
     final FloatBuffer[] w3; // (layer, hidden_dim, dim)
+    final FloatBuffer[] w2t; // (layer, hidden_dim, dim) transposed copy of w2, only for the sparse FFN (as large as w2)
 
     // final rmsnorm
     final FloatBuffer rms_final_weight; // (dim,)
 
     final FloatBuffer wcls; // (vocab_size, dim)
 
-    TensorFP32 weightTensor; // vocabInTensor
+    final TensorFP32 weightTensor; // vocabInTensor, only for the TornadoVM version
+
+    final long copiedBytes; // weights copied out of the checkpoint (w2t, weightTensor)
 
     /**
      * Constructs Weights by parsing information from a checkpoint's memory segment.
+     * The weights are views of the segment, except for w2t, allocated in the
+     * given arena, and the classifier tensor of the TornadoVM version.
      *
      * @param config
      *            The configuration of the Transformer model.
      * @param memorySegment
      *            The memory segment containing weight information.
+     * @param arena
+     *            The arena of the copied weights, closed with the checkpoint.
      */
-    WeightsFP32(Config config, MemorySegment memorySegment) {
+    WeightsFP32(Config config, MemorySegment memorySegment, Arena arena) {
         long[] position = new long[] { 0 };
         this.token_embedding_table = takeFloats(memorySegment, position, config.vocab_size, config.dim);
         this.rms_att_weight = takeArray(memorySegment, position, config.n_layers, config.dim);
-        this.wq = takeTensors(memorySegment, position, config.n_layers, config.dim, config.n_heads * config.head_size);
-        this.wk = takeTensors(memorySegment, position, config.n_layers, config.dim, config.n_kv_heads * config.head_size);
-        this.wv = takeTensors(memorySegment, position, config.n_layers, config.dim, config.n_kv_heads * config.head_size);
+        this.wq = takeArray(memorySegment, position, config.n_layers, config.dim, config.n_heads * config.head_size);
+        this.wk = takeArray(memorySegment, position, config.n_layers, config.dim, config.n_kv_heads * config.head_size);
+        this.wv = takeArray(memorySegment, position, config.n_layers, config.dim, config.n_kv_heads * config.head_size);
         this.wo = takeArray(memorySegment, position, config.n_layers, config.n_heads * config.head_size, config.dim);
         this.rms_ffn_weight = takeArray(memorySegment, position, config.n_layers, config.dim);
         this.w1 = takeArray(memorySegment, position, config.n_layers, config.hidden_dim, config.dim);
         this.w2 = takeArray(memorySegment, position, config.n_layers, config.dim, config.hidden_dim);
         this.w3 = takeArray(memorySegment, position, config.n_layers, config.hidden_dim, config.dim);
+        this.w2t = Llama2.USE_SPARSE_FFN ? transposeArray(this.w2, config.dim, config.hidden_dim, arena) : null;
         this.rms_final_weight = takeFloats(memorySegment, position, config.dim);
         position[0] += ((long) config.seq_len * config.head_size / 2) * Float.BYTES; // skip what used to be freq_cis_real (for RoPE)
         position[0] += ((long) config.seq_len * config.head_size / 2) * Float.BYTES; // skip what used to be freq_cis_imag (for RoPE)
         this.wcls = config.shared_weights ? this.token_embedding_table : takeFloats(memorySegment, position, config.vocab_size, config.dim);
-        this.weightTensor = getWeightTensor(wcls, wcls.remaining());
+        this.weightTensor = Transformer.USE_TORNADOVM ? getWeightTensor(wcls, wcls.remaining()) : null;
+        long copied = Llama2.USE_SPARSE_FFN ? (long) config.n_layers * config.dim * config.hidden_dim : 0;
+        this.copiedBytes = (copied + (weightTensor != null ? wcls.remaining() : 0)) * Float.BYTES;
     }
 
     /**
@@ -83,6 +93,26 @@ public class WeightsFP32 implements Weights{
         return t;
     }
 
+    /**
+     * Transposes every (rows, cols) matrix of a layer array into a new off-heap
+     * (cols, rows) matrix, so that a column of the original matrix can be streamed
+     * as a contiguous row.
+     */
+    private FloatBuffer[] transposeArray(FloatBuffer[] matrices, int rows, int cols, Arena arena) {
+        FloatBuffer[] transposed = new FloatBuffer[matrices.length];
+        for (int l = 0; l < matrices.length; l++) {
+            FloatBuffer src = matrices[l];
+            FloatBuffer dst = arena.allocate((long) rows * cols * Float.BYTES, Float.BYTES).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < cols; j++) {
+                    dst.put(j * rows + i, src.get(i * cols + j));
+                }
+            }
+            transposed[l] = dst;
+        }
+        return transposed;
+    }
+
     private FloatBuffer takeFloats(MemorySegment memorySegment, long[] position, int... dims) {
         long totalBytes = 1;
         for (int d : dims) {
@@ -102,44 +132,4 @@ public class WeightsFP32 implements Weights{
         }
         return segments;
     }
-
-    private TensorFP32[] takeTensors(MemorySegment memorySegment, long[] position, int dim0, int... dims) {
-        TensorFP32[] weightTensors = new TensorFP32[dim0];
-        for (int i = 0; i < dim0; ++i) {
-            weightTensors[i] = takeTensor(memorySegment, position, dims);
-        }
-        return weightTensors;
-    }
-
-    /**
-     * Constructs a {@code TensorFP32} from a subsection of a {@code MemorySegment} based on specified dimensions.
-     * This method calculates the total size in bytes required for the tensor based on the provided dimensions,
-     * where each dimension's size multiplies the size of a float (since it operates in a float-specific context).
-     * It then creates a slice from the original memory segment starting from a specified position and with the size
-     * calculated. This slice is used to populate the new {@code TensorFP32} instance. After populating, the starting
-     * position in the original memory segment is updated by the size of the slice.
-     *
-     * @param memorySegment the {@code MemorySegment} from which the tensor data will be extracted.
-     * @param position      an array with the starting position for the slice in the memory segment. This value is updated
-     *                      to reflect the new position after the slice is taken.
-     * @param dims          variable number of integer arguments representing the dimensions of the tensor. These define
-     *                      the shape and the amount of data to extract from the memory segment.
-     * @return a new {@code TensorFP32} instance containing the data extracted from the specified segment of memory.
-     */
-    private TensorFP32 takeTensor(MemorySegment memorySegment, long[] position, int... dims) {
-        long totalBytes = 1;
-
-        for (int d : dims) {
-            totalBytes *= d;
-        }
-        totalBytes *= Float.BYTES;
-        MemorySegment slice = memorySegment.asSlice(position[0], totalBytes);
-        position[0] += totalBytes;
-        long[] longArray = Arrays.stream(dims).mapToLong(i -> i).toArray();
-        Shape shape = new Shape(longArray);
-        TensorFP32 t = new TensorFP32(shape);
-        t.getSegment().copyFrom(slice);
-        return t;
-    }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,52 @@
+package io.github.mikepapadim;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class JsonTest {
+
+    @Test
+    void roundTripsEveryKindOfValue() {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("prompt", "Once upon a time");
+        value.put("max_tokens", 256.0);
+        value.put("temperature", 0.7);
+        value.put("stream", true);
+        value.put("stop", List.of("\n", "The end"));
+        value.put("user", null);
+        value.put("nested", Map.of("empty", List.of()));
+        String text = Json.write(value);
+        assertEquals("{\"prompt\":\"Once upon a time\",\"max_tokens\":256,\"temperature\":0.7,\"stream\":true,\"stop\":[\"\\n\",\"The end\"],\"user\":null,\"nested\":{\"empty\":[]}}", text);
+        assertEquals(value, Json.parse(text));
+    }
+
+    @Test
+    void roundTripsEscapedStrings() {
+        for (String s : new String[] { "", "quote \" backslash \\ slash /", "tab\tline\nreturn\r", "\u0001\u001f", "caf\u00e9 \u2603 \ud83d\ude00" }) {
+            assertEquals(s, Json.parse(Json.quote(s)));
+        }
+        assertEquals("\u00e9/\b\f", Json.parse("\"\\u00e9\\/\\b\\f\""));
+    }
+
+    @Test
+    void readsNumbersAsDoubles() {
+        assertEquals(Arrays.asList(1.0, -2.5, 1e3, 0.0), Json.parse(" [1, -2.5, 1e3, 0] "));
+        assertEquals("[1,-2.5,1000,1.0E20]", Json.write(Arrays.asList(1.0, -2.5, 1e3, 1e20)));
+    }
+
+    @Test
+    void rejectsInvalidDocuments() {
+        for (String text : new String[] { "", "{", "{\"a\" 1}", "[1,]", "\"unterminated", "\"\\x\"", "\"\\u12\"", "tru", "1 2", "{\"a\":1}}" }) {
+            assertThrows(IllegalArgumentException.class, () -> Json.parse(text), text);
+        }
+        assertThrows(IllegalArgumentException.class, () -> Json.parseObject("[1]"));
+        assertThrows(IllegalArgumentException.class, () -> Json.write(new Object()));
+    }
+}
@@ -0,0 +1,262 @@
+package io.github.mikepapadim;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class KVCacheTest {
+
+    private static final int PAGE_SIZE = 16;
+    private static final float FP16_EPSILON = 1.0f / 2048; // relative rounding error of a half float
+
+    private static final Config CONFIG = TestModel.config();
+    private static final int HEAD_SIZE = CONFIG.head_size;
+    private static final int KV_DIM = CONFIG.n_kv_heads * HEAD_SIZE;
+
+    /**
+     * Stores random keys and values at the positions [0, count) of every layer.
+     *
+     * @return The stored vectors, (kv, layer, pos, kv_dim).
+     */
+    private static float[][][][] fill(KVCache kv, int count, long seed) {
+        Random random = new Random(seed);
+        float[][][][] rows = new float[2][CONFIG.n_layers][count][KV_DIM];
+        for (int layer = 0; layer < CONFIG.n_layers; layer++) {
+            for (int pos = 0; pos < count; pos++) {
+                for (int i = 0; i < KV_DIM; i++) {
+                    rows[0][layer][pos][i] = (float) random.nextGaussian();
+                    rows[1][layer][pos][i] = (float) random.nextGaussian();
+                }
+                kv.store(layer, pos, MemorySegment.ofArray(rows[0][layer][pos]), MemorySegment.ofArray(rows[1][layer][pos]));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the decoded row of a head at a position.
+     *
+     * @param which
+     *            0 for the key, 1 for the value.
+     */
+    static float[] read(KVCache kv, int which, int layer, int kvHead, int pos) {
+        float[] row = new float[kv.head_size];
+        kv.accumulate(kv.pages[pos / kv.pageSize], kv.offset(which, layer, kvHead) + (pos % kv.pageSize) * kv.rowBytes, 1.0f, row);
+        return row;
+    }
+
+    /**
+     * Returns the largest rounding error of one element of a row.
+     */
+    private static float elementError(String precision, float[] row, int from) {
+        float max = 0.0f;
+        for (int i = from; i < from + HEAD_SIZE; i++) {
+            max = Math.max(max, Math.abs(row[i]));
+        }
+        return switch (precision) {
+            case "fp32" -> 0.0f;
+            case "fp16" -> max * FP16_EPSILON;
+            default -> max / 127.0f / 2.0f * 1.0001f; // half a quantization step
+        };
+    }
+
+    @Test
+    void storedRowsDecodeWithinThePrecision() {
+        for (String precision : new String[] { "fp32", "fp16", "int8" }) {
+            KVPagePool pool = new KVPagePool(CONFIG, precision, PAGE_SIZE, 0);
+            KVCache kv = KVCache.create(CONFIG, pool);
+            int count = 40;
+            float[][][][] rows = fill(kv, count, 7);
+            for (int which = 0; which < 2; which++) {
+                for (int layer = 0; layer < CONFIG.n_layers; layer++) {
+                    for (int pos = 0; pos < count; pos++) {
+                        for (int h = 0; h < CONFIG.n_kv_heads; h++) {
+                            float[] row = read(kv, which, layer, h, pos);
+                            float bound = elementError(precision, rows[which][layer][pos], h * HEAD_SIZE);
+                            for (int i = 0; i < HEAD_SIZE; i++) {
+                                assertEquals(rows[which][layer][pos][h * HEAD_SIZE + i], row[i], bound, precision);
+                            }
+                        }
+                    }
+                }
+            }
+            kv.reset();
+            pool.close();
+        }
+    }
+
+    @Test
+    void attentionScoresAreWithinThePrecision() {
+        float scale = (float) Math.sqrt(HEAD_SIZE);
+        Random random = new Random(11);
+        for (String precision : new String[] { "fp32", "fp16", "int8" }) {
+            KVPagePool pool = new KVPagePool(CONFIG, precision, PAGE_SIZE, 0);
+            KVCache kv = KVCache.create(CONFIG, pool);
+            int count = 37; // the last page is partly filled
+            float[][][][] rows = fill(kv, count, 13);
+            float[] q = new float[CONFIG.dim];
+            for (int i = 0; i < q.length; i++) {
+                q[i] = (float) random.nextGaussian();
+            }
+            float[] att = new float[count];
+            int kvMul = CONFIG.n_heads / CONFIG.n_kv_heads;
+            for (int layer = 0; layer < CONFIG.n_layers; layer++) {
+                for (int h = 0; h < CONFIG.n_heads; h++) {
+                    int kvHead = h / kvMul;
+                    kv.attentionScores(layer, kvHead, count, MemorySegment.ofArray(q), h * HEAD_SIZE, att, 0);
+                    for (int t = 0; t < count; t++) {
+                        float[] key = rows[0][layer][t];
+                        float exact = 0.0f;
+                        float bound = 0.0f;
+                        float keyError = elementError(precision, key, kvHead * HEAD_SIZE);
+                        for (int i = 0; i < HEAD_SIZE; i++) {
+                            exact += q[h * HEAD_SIZE + i] * key[kvHead * HEAD_SIZE + i];
+                            bound += Math.abs(q[h * HEAD_SIZE + i]) * keyError;
+                        }
+                        // plus the rounding of the float sums
+                        assertEquals(exact / scale, att[t], bound / scale + 1e-5f, precision + " layer " + layer + " head " + h + " pos " + t);
+                    }
+                }
+            }
+            kv.reset();
+            pool.close();
+        }
+    }
+
+    /**
+     * Returns a key rotated to a position, like the RoPE of the forward pass.
+     */
+    static float[] rope(float[] key, int pos) {
+        float[] rotated = key.clone();
+        for (int i = 0; i < key.length; i += 2) {
+            int head_dim = i % HEAD_SIZE;
+            float freq = (float) (1.0 / Math.pow(10000.0f, head_dim / (float) HEAD_SIZE));
+            float val = pos * freq;
+            float fcr = (float) Math.cos(val);
+            float fci = (float) Math.sin(val);
+            rotated[i] = key[i] * fcr - key[i + 1] * fci;
+            rotated[i + 1] = key[i] * fci + key[i + 1] * fcr;
+        }
+        return rotated;
+    }
+
+    private static float[] head(float[] row, int kvHead) {
+        float[] head = new float[HEAD_SIZE];
+        System.arraycopy(row, kvHead * HEAD_SIZE, head, 0, HEAD_SIZE);
+        return head;
+    }
+
+    /**
+     * Stores random keys, rotated to their positions, and values at the positions
+     * [from, to) of every layer.
+     *
+     * @return The keys before the rotation and the values, (kv, layer, pos, kv_dim).
+     */
+    private static float[][][][] fillRotated(KVCache kv, int from, int to, long seed) {
+        Random random = new Random(seed);
+        float[][][][] rows = new float[2][CONFIG.n_layers][to][KV_DIM];
+        for (int layer = 0; layer < CONFIG.n_layers; layer++) {
+            for (int pos = 0; pos < to; pos++) {
+                for (int i = 0; i < KV_DIM; i++) {
+                    rows[0][layer][pos][i] = (float) random.nextGaussian();
+                    rows[1][layer][pos][i] = (float) random.nextGaussian();
+                }
+                if (pos >= from) {
+                    kv.store(layer, pos, MemorySegment.ofArray(rope(rows[0][layer][pos], pos)), MemorySegment.ofArray(rows[1][layer][pos]));
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Checks that the cached position {@code pos} holds the key of the position
+     * {@code src} rotated to {@code pos}, and the value of {@code src}.
+     */
+    private static void assertMoved(KVCache kv, float[][][][] rows, int src, int pos) {
+        for (int layer = 0; layer < CONFIG.n_layers; layer++) {
+            float[] key = rope(rows[0][layer][src], pos);
+            for (int h = 0; h < CONFIG.n_kv_heads; h++) {
+                String where = "layer " + layer + " head " + h + " position " + src + " -> " + pos;
+                assertArrayEquals(head(key, h), read(kv, 0, layer, h, pos), 1e-4f, where);
+                assertArrayEquals(head(rows[1][layer][src], h), read(kv, 1, layer, h, pos), 0.0f, where);
+            }
+        }
+    }
+
+    @Test
+    void discardRotatesTheMovedKeysToTheirNewPositions() {
+        KVPagePool pool = new KVPagePool(CONFIG, "fp32", PAGE_SIZE, 0);
+        KVCache kv = KVCache.create(CONFIG, pool);
+        float[][][][] rows = fillRotated(kv, 0, 40, 17);
+        kv.discard(4, 8, 40);
+        for (int pos = 0; pos < 32; pos++) {
+            assertMoved(kv, rows, pos < 4 ? pos : pos + 8, pos);
+        }
+        assertEquals(2, pool.usedPages());
+        kv.reset();
+        pool.close();
+    }
+
+    @Test
+    void discardCopiesTheSharedPagesItWrites() {
+        KVPagePool pool = new KVPagePool(CONFIG, "fp32", PAGE_SIZE, 0);
+        KVCache owner = KVCache.create(CONFIG, pool);
+        float[][][][] rows = fillRotated(owner, 0, 40, 19);
+        // the full pages are shared, the last one is written by each cache
+        KVCache kv = KVCache.create(CONFIG, pool);
+        kv.share(0, owner.pageTable[0]);
+        kv.share(1, owner.pageTable[1]);
+        fillRotated(kv, 32, 40, 19);
+        assertEquals(4, pool.usedPages());
+
+        kv.discard(4, 8, 40);
+        for (int pos = 0; pos < 32; pos++) {
+            assertMoved(kv, rows, pos < 4 ? pos : pos + 8, pos);
+        }
+        // the owner still reads its own positions
+        for (int pos = 0; pos < 40; pos++) {
+            assertMoved(owner, rows, pos, pos);
+        }
+        assertNotEquals(owner.pageTable[0], kv.pageTable[0]);
+        assertNotEquals(owner.pageTable[1], kv.pageTable[1]);
+        assertEquals(5, pool.usedPages());
+        kv.reset();
+        owner.reset();
+        assertEquals(0, pool.usedPages());
+        pool.close();
+    }
+
+    @Test
+    void compactRotatesEachKeptKeyByItsOwnDisplacement() {
+        KVPagePool pool = new KVPagePool(CONFIG, "fp32", PAGE_SIZE, 0);
+        KVCache kv = KVCache.create(CONFIG, pool);
+        float[][][][] rows = fillRotated(kv, 0, 40, 23);
+        // every kv head of a layer keeps its own positions, as the heavy hitters do
+        int[][] keep = { { 0, 1, 5, 9, 20, 21, 33, 39 }, { 0, 2, 3, 4, 17, 18, 19, 30, 31, 38 } };
+        for (int h = 0; h < CONFIG.n_kv_heads; h++) {
+            kv.compact(0, h, keep[h], keep[h].length);
+        }
+        for (int h = 0; h < CONFIG.n_kv_heads; h++) {
+            for (int pos = 0; pos < keep[h].length; pos++) {
+                int src = keep[h][pos];
+                String where = "head " + h + " position " + src + " -> " + pos;
+                assertArrayEquals(head(rope(rows[0][0][src], pos), h), read(kv, 0, 0, h, pos), 1e-4f, where);
+                assertArrayEquals(head(rows[1][0][src], h), read(kv, 1, 0, h, pos), 0.0f, where);
+            }
+        }
+        // the other layers are left as they were
+        for (int pos = 0; pos < 40; pos++) {
+            for (int h = 0; h < CONFIG.n_kv_heads; h++) {
+                assertArrayEquals(head(rope(rows[0][1][pos], pos), h), read(kv, 0, 1, h, pos), 0.0f);
+            }
+        }
+        kv.reset();
+        pool.close();
+    }
+}
@@ -0,0 +1,146 @@
+package io.github.mikepapadim;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class KVPagePoolTest {
+
+    private static final Config CONFIG = TestModel.config();
+
+    @Test
+    void releasedPagesAreHandedOutAgain() {
+        KVPagePool pool = new KVPagePool(CONFIG, "fp32", 16, 0);
+        int a = pool.allocate();
+        int b = pool.allocate();
+        int c = pool.allocate();
+        assertEquals(3, pool.usedPages());
+        pool.release(b);
+        assertEquals(2, pool.usedPages());
+        assertEquals(b, pool.allocate());
+        assertEquals(3, pool.usedPages());
+
+        // a range of a page table, with unallocated entries
+        pool.release(new int[] { a, -1, c, -1 }, 0, 4);
+        assertEquals(1, pool.usedPages());
+        pool.release(b);
+        assertEquals(0, pool.usedPages());
+        pool.close();
+    }
+
+    @Test
+    void pagesDoNotOverlap() {
+        KVPagePool pool = new KVPagePool(CONFIG, "fp32", 16, 0);
+        // more pages than one chunk holds
+        int count = pool.pagesPerChunk + 3;
+        int[] pages = new int[count];
+        for (int i = 0; i < count; i++) {
+            pages[i] = pool.allocate();
+            MemorySegment segment = pool.segment(pages[i]);
+            assertEquals(pool.pageBytes, segment.byteSize());
+            segment.set(ValueLayout.JAVA_INT, 0, i);
+            segment.set(ValueLayout.JAVA_INT, pool.pageBytes - Integer.BYTES, i);
+        }
+        for (int i = 0; i < count; i++) {
+            MemorySegment segment = pool.segment(pages[i]);
+            assertEquals(i, segment.get(ValueLayout.JAVA_INT, 0));
+            assertEquals(i, segment.get(ValueLayout.JAVA_INT, pool.pageBytes - Integer.BYTES));
+        }
+        pool.close();
+    }
+
+    @Test
+    void theLimitCountsThePagesInUse() {
+        KVPagePool pool = new KVPagePool(CONFIG, "fp32", 16, 2);
+        pool.reserve(10);
+        assertEquals(0, pool.usedPages());
+        int a = pool.allocate();
+        int b = pool.allocate();
+        assertNotEquals(a, b);
+        assertThrows(IllegalStateException.class, pool::allocate);
+        pool.release(a);
+        assertEquals(a, pool.allocate());
+        pool.close();
+    }
+
+    @Test
+    void cachesTakePagesWhenFirstWrittenAndReturnThemWhenTruncated() {
+        KVPagePool pool = new KVPagePool(CONFIG, "fp32", 16, 0);
+        KVCache kv = KVCache.create(CONFIG, pool);
+        float[] row = new float[CONFIG.n_kv_heads * CONFIG.head_size];
+        for (int pos = 0; pos < 33; pos++) {
+            kv.store(0, pos, MemorySegment.ofArray(row), MemorySegment.ofArray(row));
+            assertEquals(pos / 16 + 1, pool.usedPages());
+        }
+        kv.truncate(20);
+        assertEquals(2, pool.usedPages());
+        kv.truncate(16);
+        assertEquals(1, pool.usedPages());
+        kv.reset();
+        assertEquals(0, pool.usedPages());
+        pool.close();
+    }
+
+    @Test
+    void sharedPagesStayUntilTheirLastReference() {
+        KVPagePool pool = new KVPagePool(CONFIG, "fp32", 16, 0);
+        PrefixCache prefixCache = new PrefixCache(pool, Long.MAX_VALUE);
+        Random random = new Random(5);
+        int[] tokens = new int[40];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = random.nextInt(CONFIG.vocab_size);
+        }
+        KVCache first = KVCache.create(CONFIG, pool);
+        float[][] keys = new float[tokens.length][CONFIG.n_kv_heads * CONFIG.head_size];
+        for (int pos = 0; pos < tokens.length; pos++) {
+            for (int i = 0; i < keys[pos].length; i++) {
+                keys[pos][i] = (float) random.nextGaussian();
+            }
+            for (int layer = 0; layer < CONFIG.n_layers; layer++) {
+                first.store(layer, pos, MemorySegment.ofArray(keys[pos]), MemorySegment.ofArray(keys[pos]));
+            }
+        }
+        int page0 = first.pageTable[0];
+        int page1 = first.pageTable[1];
+
+        // the two full pages are cached, the partial one is not
+        prefixCache.insert(tokens, tokens.length, first);
+        assertTrue(pool.isShared(page0));
+        assertTrue(pool.isShared(page1));
+        assertFalse(pool.isShared(first.pageTable[2]));
+        first.reset();
+        assertEquals(2, pool.usedPages());
+        assertFalse(pool.isShared(page0));
+
+        // a new cache shares them instead of copying
+        KVCache second = KVCache.create(CONFIG, pool);
+        assertEquals(32, prefixCache.fork(tokens, tokens.length, second));
+        assertEquals(page0, second.pageTable[0]);
+        assertEquals(page1, second.pageTable[1]);
+        assertTrue(pool.isShared(page0));
+        assertEquals(2, pool.usedPages());
+        for (int pos = 0; pos < 32; pos++) {
+            for (int h = 0; h < CONFIG.n_kv_heads; h++) {
+                float[] expected = new float[CONFIG.head_size];
+                System.arraycopy(keys[pos], h * CONFIG.head_size, expected, 0, CONFIG.head_size);
+                assertArrayEquals(expected, KVCacheTest.read(second, 0, CONFIG.n_layers - 1, h, pos));
+            }
+        }
+
+        prefixCache.clear();
+        assertFalse(pool.isShared(page0));
+        assertEquals(2, pool.usedPages());
+        second.reset();
+        assertEquals(0, pool.usedPages());
+        pool.close();
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.mikepapadim;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.FloatBuffer;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import uk.ac.manchester.tornado.api.types.arrays.FloatArray;
+
+class MatrixVectorCollectionTest {
+
+    private static final int N = 48;
+    private static final int D = 1001; // not a multiple of the number of blocks
+
+    private static float[] random(Random random, int size) {
+        float[] values = new float[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = (float) random.nextGaussian();
+        }
+        return values;
+    }
+
+    private static FloatArray floatArray(float[] values) {
+        FloatArray array = new FloatArray(values.length);
+        for (int i = 0; i < values.length; i++) {
+            array.set(i, values[i]);
+        }
+        return array;
+    }
+
+    private static float[] dense(FloatArray x, FloatBuffer w, int n, int d) {
+        FloatArray xout = new FloatArray(d);
+        MatrixVectorCollection.matmul(xout, x, w, n, d);
+        float[] out = new float[d];
+        for (int i = 0; i < d; i++) {
+            out[i] = xout.get(i);
+        }
+        return out;
+    }
+
+    private static int argmax(float[] values) {
+        int max = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > values[max]) {
+                max = i;
+            }
+        }
+        return max;
+    }
+
+    @Test
+    void argmaxMatchesTheDenseMatmul() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 20; trial++) {
+            FloatBuffer w = FloatBuffer.wrap(random(random, N * D));
+            FloatArray x = floatArray(random(random, N));
+            int blocks = MatrixVectorCollection.blocks(D);
+            int max = MatrixVectorCollection.matmulArgmax(x, w, N, D, new int[blocks], new float[blocks]);
+            assertEquals(argmax(dense(x, w, N, D)), max, "trial " + trial);
+        }
+    }
+
+    @Test
+    void argmaxKeepsTheFirstOfTiedRows() {
+        Random random = new Random(2);
+        float[] weights = random(random, N * D);
+        FloatArray x = floatArray(random(random, N));
+        int max = argmax(dense(x, FloatBuffer.wrap(weights), N, D));
+        // the same row earlier, in another block, and later
+        int first = Math.max(0, max - D / 2);
+        System.arraycopy(weights, max * N, weights, first * N, N);
+        System.arraycopy(weights, max * N, weights, (D - 1) * N, N);
+        int blocks = MatrixVectorCollection.blocks(D);
+        assertEquals(first, MatrixVectorCollection.matmulArgmax(x, FloatBuffer.wrap(weights), N, D, new int[blocks], new float[blocks]));
+    }
+
+    @Test
+    void topKMatchesTheSortedDenseMatmul() {
+        Random random = new Random(3);
+        for (int k : new int[] { 1, 5, 40, D, D + 10 }) {
+            FloatBuffer w = FloatBuffer.wrap(random(random, N * D));
+            FloatArray x = floatArray(random(random, N));
+            float[] logits = dense(x, w, N, D);
+            int[] expected = IntStream.range(0, D).boxed().sorted(Comparator.comparing((Integer i) -> logits[i]).reversed()).limit(k).mapToInt(i -> i).toArray();
+
+            int blocks = MatrixVectorCollection.blocks(D);
+            int heapSize = Math.min(k, MatrixVectorCollection.blockRows(D));
+            int[] indices = new int[Math.min(k, D)];
+            float[] values = new float[Math.min(k, D)];
+            int size = MatrixVectorCollection.matmulTopK(x, w, N, D, k, indices, values, new int[blocks][heapSize], new float[blocks][heapSize], new int[blocks]);
+            assertEquals(expected.length, size, "k=" + k);
+            assertArrayEquals(expected, indices, "k=" + k);
+            for (int i = 0; i < size; i++) {
+                // the same dot products as the dense matmul, so the same values
+                assertEquals(logits[indices[i]], values[i], 0.0f, "k=" + k);
+            }
+        }
+    }
+
+    @Test
+    void sparseMatmulWithoutThresholdMatchesTheDenseMatmul() {
+        Random random = new Random(4);
+        int n = 96;
+        int d = 200;
+        float[] weights = random(random, n * d);
+        float[] transposed = new float[n * d];
+        for (int i = 0; i < d; i++) {
+            for (int j = 0; j < n; j++) {
+                transposed[j * d + i] = weights[i * n + j];
+            }
+        }
+        float[] input = random(random, n);
+        for (int j = 0; j < n; j += 3) {
+            input[j] = 0.0f; // exact zeros are skipped even without a threshold
+        }
+        float[] expected = dense(floatArray(input), FloatBuffer.wrap(weights), n, d);
+
+        FloatArray xout = floatArray(random(random, d)); // overwritten, not accumulated into
+        int active = MatrixVectorCollection.matmulSparse(xout, floatArray(input), FloatBuffer.wrap(transposed), n, d, 0.0f, new int[n]);
+        assertEquals(n - (n + 2) / 3, active);
+        for (int i = 0; i < d; i++) {
+            assertEquals(expected[i], xout.get(i), 1e-4f, "row " + i);
+        }
+
+        // with a threshold, the result of the dense matmul over the inputs above it
+        float threshold = 0.5f;
+        float[] kept = input.clone();
+        int above = 0;
+        for (int j = 0; j < n; j++) {
+            if (Math.abs(kept[j]) <= threshold) {
+                kept[j] = 0.0f;
+            } else {
+                above++;
+            }
+        }
+        expected = dense(floatArray(kept), FloatBuffer.wrap(weights), n, d);
+        assertEquals(above, MatrixVectorCollection.matmulSparse(xout, floatArray(input), FloatBuffer.wrap(transposed), n, d, threshold, new int[n]));
+        for (int i = 0; i < d; i++) {
+            assertEquals(expected[i], xout.get(i), 1e-4f, "row " + i);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package io.github.mikepapadim;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class SchedulerTest {
+
+    private static final Sampler.Settings GREEDY = new Sampler.Settings(0.0f, 0.9f, 0, 0);
+
+    private static TestModel model;
+
+    @BeforeAll
+    static void load() throws IOException {
+        model = TestModel.create();
+    }
+
+    @AfterAll
+    static void unload() throws IOException {
+        model.close();
+    }
+
+    @Test
+    void stepsCountThePromptAndTheGeneratedTokens() {
+        Scheduler scheduler = new Scheduler(model.transformer, model.tokenizer, 4, 2);
+        // the last prompt token gives the first generated token
+        assertEquals(10, scheduler.steps(5, 6));
+        assertEquals(1, scheduler.steps(1, 1));
+        // at least one token is generated
+        assertEquals(5, scheduler.steps(5, 0));
+        // bounded by the KV cache
+        assertEquals(TestModel.SEQ_LEN, scheduler.steps(TestModel.SEQ_LEN - 1, 10));
+        assertEquals(TestModel.SEQ_LEN, scheduler.steps(10, Integer.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> scheduler.steps(TestModel.SEQ_LEN, 1));
+    }
+
+    @Test
+    void chunkedPrefillMatchesSingleSequenceForward() {
+        // a prompt over several chunks, then a prompt shorter than one
+        Scheduler scheduler = new Scheduler(model.transformer, model.tokenizer, 4, 1, new SessionPool(model.transformer, 1));
+        for (int length : new int[] { 23, 3 }) {
+            int[] prompt = prompt(length, length);
+            List<Integer> output = new ArrayList<>();
+            scheduler.submit(new Sequence(prompt, prompt.length, scheduler.steps(prompt.length, 10), GREEDY, new String[0], listener(output)));
+            scheduler.run();
+            assertEquals(generate(prompt, 10), output, "prompt of " + length);
+        }
+    }
+
+    @Test
+    void batchRowsMatchSingleSequenceForward() {
+        // more sequences than rows per batch, with prompts longer than a chunk
+        Scheduler scheduler = new Scheduler(model.transformer, model.tokenizer, 4, 3, new SessionPool(model.transformer, 5));
+        int[][] prompts = new int[5][];
+        List<List<Integer>> outputs = new ArrayList<>();
+        for (int i = 0; i < prompts.length; i++) {
+            prompts[i] = prompt(1 + 3 * i, 20 + i);
+            List<Integer> output = new ArrayList<>();
+            outputs.add(output);
+            scheduler.submit(new Sequence(prompts[i], prompts[i].length, scheduler.steps(prompts[i].length, 12), GREEDY, new String[0], listener(output)));
+        }
+        scheduler.run();
+        for (int i = 0; i < prompts.length; i++) {
+            assertEquals(generate(prompts[i], 12), outputs.get(i), "sequence " + i);
+        }
+    }
+
+    @Test
+    void retiredSequencesReturnTheirCachesAndBudget() {
+        SessionPool sessions = new SessionPool(model.transformer, 2);
+        Scheduler scheduler = new Scheduler(model.transformer, model.tokenizer, 4, 2, sessions);
+        int usedPages = model.transformer.kvPages.usedPages();
+        List<Sequence.FinishReason> reasons = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int[] prompt = prompt(3 + i, 6 + 2 * i);
+            scheduler.submit(new Sequence(prompt, prompt.length, scheduler.steps(prompt.length, 4 + i), GREEDY, new String[0], new Sequence.Listener() {
+                @Override
+                public void token(int token, String piece) {
+                }
+
+                @Override
+                public void finished(Sequence.FinishReason reason) {
+                    reasons.add(reason);
+                }
+            }));
+        }
+        // only two sequences run at a time, the others wait for their caches
+        scheduler.step();
+        assertEquals(0, sessions.available());
+        assertEquals(2, scheduler.stats().running());
+        assertEquals(3, scheduler.stats().queued());
+
+        scheduler.run();
+        assertFalse(scheduler.isBusy());
+        assertEquals(5, reasons.size());
+        assertEquals(2, sessions.available());
+        AdmissionController.Stats stats = scheduler.stats();
+        assertEquals(0, stats.running());
+        assertEquals(0, stats.queued());
+        assertEquals(5, stats.admitted());
+        assertEquals(0, stats.reservedBytes());
+        assertEquals(usedPages, model.transformer.kvPages.usedPages());
+    }
+
+    @Test
+    void cancelledSequencesAreRetired() {
+        SessionPool sessions = new SessionPool(model.transformer, 2);
+        Scheduler scheduler = new Scheduler(model.transformer, model.tokenizer, 4, 2, sessions);
+        CancellationToken cancellation = new CancellationToken();
+        int[] prompt = prompt(5, 16);
+        List<Sequence.FinishReason> reasons = new ArrayList<>();
+        scheduler.submit(new Sequence(prompt, prompt.length, scheduler.steps(prompt.length, 20), GREEDY, new String[0], new Sequence.Listener() {
+            @Override
+            public void token(int token, String piece) {
+            }
+
+            @Override
+            public void finished(Sequence.FinishReason reason) {
+                reasons.add(reason);
+            }
+        }, Sequence.Priority.INTERACTIVE, cancellation));
+        scheduler.step();
+        cancellation.cancel();
+        scheduler.run();
+        assertEquals(List.of(Sequence.FinishReason.CANCELLED), reasons);
+        assertEquals(2, sessions.available());
+        assertEquals(0, scheduler.stats().reservedBytes());
+    }
+
+    @Test
+    void concurrentSubmissionsDoNotOverfillTheQueue() throws InterruptedException {
+        Scheduler scheduler = new Scheduler(model.transformer, model.tokenizer, 4, 2);
+        int maxQueue = scheduler.admission.maxQueue;
+        int[] prompt = prompt(7, 4);
+        int steps = scheduler.steps(prompt.length, 1);
+        AtomicInteger rejected = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < maxQueue / 2; i++) {
+                    try {
+                        scheduler.submit(new Sequence(prompt, prompt.length, steps, GREEDY, new String[0], listener(new ArrayList<>())));
+                    } catch (RejectedExecutionException e) {
+                        rejected.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(maxQueue, scheduler.stats().queued());
+        assertEquals(threads.length * (maxQueue / 2) - maxQueue, rejected.get());
+    }
+
+    /**
+     * Generates greedily with the single-sequence forward pass, until EOS or the
+     * steps limit, like the scheduler.
+     */
+    private static List<Integer> generate(int[] prompt, int maxTokens) {
+        RunState state = model.transformer.createState();
+        Sampler sampler = new Sampler(TestModel.VOCAB_SIZE, GREEDY.temperature(), GREEDY.topp(), GREEDY.topk(), GREEDY.seed());
+        List<Integer> output = new ArrayList<>();
+        int steps = prompt.length - 1 + maxTokens;
+        int token = prompt[0];
+        for (int pos = 0; pos < steps; pos++) {
+            MemorySegment logits = InferenceEngine.forwardWithJava(model.transformer, state, token, pos);
+            if (pos < prompt.length - 1) {
+                token = prompt[pos + 1];
+                continue;
+            }
+            int next = Llama2.sample(sampler, logits);
+            if (next == 1 || next == 2) {
+                break;
+            }
+            output.add(next);
+            token = next;
+        }
+        state.kv.reset();
+        return output;
+    }
+
+    /**
+     * Returns BOS followed by tokens that are neither BOS nor EOS.
+     */
+    private static int[] prompt(int seed, int length) {
+        int[] prompt = new int[length];
+        prompt[0] = 1;
+        for (int i = 1; i < length; i++) {
+            prompt[i] = 3 + (seed * 7 + i * 13) % (TestModel.VOCAB_SIZE - 3);
+        }
+        return prompt;
+    }
+
+    private static Sequence.Listener listener(List<Integer> output) {
+        return new Sequence.Listener() {
+            @Override
+            public void token(int token, String piece) {
+                output.add(token);
+            }
+
+            @Override
+            public void finished(Sequence.FinishReason reason) {
+            }
+        };
+    }
+}
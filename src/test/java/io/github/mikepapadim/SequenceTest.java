@@ -0,0 +1,68 @@
+package io.github.mikepapadim;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SequenceTest {
+
+    private static Sequence sequence(String... stop) {
+        return new Sequence(new int[] { 1 }, 1, 1, null, stop, new Sequence.Listener() {
+            @Override
+            public void token(int token, String piece) {
+            }
+
+            @Override
+            public void finished(Sequence.FinishReason reason) {
+            }
+        });
+    }
+
+    @Test
+    void neverMatchesWithoutStopSequences() {
+        Sequence seq = sequence();
+        assertFalse(seq.matchesStop("The end"));
+        assertFalse(sequence("").matchesStop("anything"));
+    }
+
+    @Test
+    void matchesInsideAPiece() {
+        assertTrue(sequence("end").matchesStop("end"));
+        assertTrue(sequence("end").matchesStop("the end."));
+        assertFalse(sequence("end").matchesStop("the en"));
+    }
+
+    @Test
+    void matchesAcrossPieces() {
+        Sequence seq = sequence("The end");
+        assertFalse(seq.matchesStop("The"));
+        assertFalse(seq.matchesStop(" e"));
+        assertFalse(seq.matchesStop("n"));
+        assertTrue(seq.matchesStop("d!"));
+    }
+
+    @Test
+    void matchesAnyOfTheStopSequences() {
+        Sequence seq = sequence("\n\n", "User:");
+        assertFalse(seq.matchesStop("Hello\n"));
+        assertFalse(seq.matchesStop("Use"));
+        assertTrue(seq.matchesStop("r: hi"));
+        seq = sequence("\n\n", "User:");
+        assertFalse(seq.matchesStop("Hello\n"));
+        assertTrue(seq.matchesStop("\n"));
+    }
+
+    @Test
+    void doesNotMatchOnlyBeforeTheNewPiece() {
+        // a match must overlap the new piece, so an earlier one is not reported again
+        Sequence seq = sequence("ab");
+        assertTrue(seq.matchesStop("xab"));
+        assertFalse(seq.matchesStop("c"));
+        // the tail is bounded, but a match spanning it is still found
+        seq = sequence("abc");
+        assertFalse(seq.matchesStop("xxxxxxxxxxa"));
+        assertFalse(seq.matchesStop("b"));
+        assertTrue(seq.matchesStop("c"));
+    }
+}
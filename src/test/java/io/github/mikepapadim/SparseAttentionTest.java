@@ -0,0 +1,68 @@
+package io.github.mikepapadim;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs with {@code -Dllama2.SparseAttention=true} and
+ * {@code -Dllama2.SparseAttentionRecall=1.0} (see the pom), so every page is
+ * attended.
+ */
+class SparseAttentionTest {
+
+    private static final int PAGE_SIZE = 4; // many pages past the recent ones
+
+    private static final Config CONFIG = TestModel.config();
+    private static final int HEAD_SIZE = CONFIG.head_size;
+    private static final int KV_DIM = CONFIG.n_kv_heads * HEAD_SIZE;
+
+    @Test
+    void everyPageSelectedGivesTheExactScores() {
+        assertTrue(KVCache.SPARSE_ATTENTION, "llama2.SparseAttention must be set");
+        assertEquals(1.0, KVCache.SPARSE_ATTENTION_RECALL, 0.0, "llama2.SparseAttentionRecall must be 1");
+        KVPagePool pool = new KVPagePool(CONFIG, "fp32", PAGE_SIZE, 0);
+        KVCache kv = KVCache.create(CONFIG, pool);
+        Random random = new Random(29);
+        float scale = (float) Math.sqrt(HEAD_SIZE);
+        int kvMul = CONFIG.n_heads / CONFIG.n_kv_heads;
+        float[][][] keys = new float[CONFIG.n_layers][CONFIG.seq_len][KV_DIM];
+        float[] q = new float[CONFIG.dim];
+        float[] att = new float[CONFIG.seq_len];
+        for (int pos = 0; pos < CONFIG.seq_len; pos++) {
+            for (int layer = 0; layer < CONFIG.n_layers; layer++) {
+                float[] value = new float[KV_DIM];
+                for (int i = 0; i < KV_DIM; i++) {
+                    // a few positions stand out, like in trained models
+                    keys[layer][pos][i] = (float) random.nextGaussian() * (pos % 7 == 0 ? 4.0f : 1.0f);
+                    value[i] = (float) random.nextGaussian();
+                }
+                kv.store(layer, pos, MemorySegment.ofArray(keys[layer][pos]), MemorySegment.ofArray(value));
+            }
+            // attend at every length, so partial pages and a single page are covered
+            int count = pos + 1;
+            for (int i = 0; i < q.length; i++) {
+                q[i] = (float) random.nextGaussian();
+            }
+            for (int layer = 0; layer < CONFIG.n_layers; layer++) {
+                for (int h = 0; h < CONFIG.n_heads; h++) {
+                    int kvHead = h / kvMul;
+                    kv.attentionScores(layer, kvHead, count, MemorySegment.ofArray(q), h * HEAD_SIZE, att, 0);
+                    for (int t = 0; t < count; t++) {
+                        float exact = 0.0f;
+                        for (int i = 0; i < HEAD_SIZE; i++) {
+                            exact += q[h * HEAD_SIZE + i] * keys[layer][t][kvHead * HEAD_SIZE + i];
+                        }
+                        assertEquals(exact / scale, att[t], 1e-5f, "length " + count + " layer " + layer + " head " + h + " pos " + t);
+                    }
+                }
+            }
+        }
+        kv.reset();
+        pool.close();
+    }
+}
@@ -0,0 +1,107 @@
+package io.github.mikepapadim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * The configuration of a tiny model shared by the tests, and a checkpoint with
+ * random weights and its tokenizer, written to a temporary directory, so the
+ * tests run the Java version without a real model.
+ */
+final class TestModel {
+
+    static final int DIM = 32;
+    static final int HIDDEN_DIM = 64;
+    static final int N_LAYERS = 2;
+    static final int N_HEADS = 4;
+    static final int N_KV_HEADS = 2;
+    static final int VOCAB_SIZE = 64;
+    static final int SEQ_LEN = 48;
+
+    final Path dir;
+    final Transformer transformer;
+    final Tokenizer tokenizer;
+
+    private TestModel(Path dir, Transformer transformer, Tokenizer tokenizer) {
+        this.dir = dir;
+        this.transformer = transformer;
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * Returns the configuration of the model, with shared classifier weights.
+     */
+    static Config config() {
+        ByteBuffer header = ByteBuffer.allocate(7 * Integer.BYTES);
+        header.putInt(DIM).putInt(HIDDEN_DIM).putInt(N_LAYERS).putInt(N_HEADS).putInt(N_KV_HEADS).putInt(VOCAB_SIZE).putInt(SEQ_LEN);
+        return new Config(header.flip());
+    }
+
+    /**
+     * Writes the model and loads it for the Java version.
+     */
+    static TestModel create() throws IOException {
+        Transformer.USE_JAVA = true;
+        Transformer.USE_LEVEL_ZERO = false;
+        Path dir = Files.createTempDirectory("llama2-test");
+        Path checkpoint = dir.resolve("model.bin");
+        Path vocab = dir.resolve("tok.bin");
+        Files.write(checkpoint, checkpoint());
+        Files.write(vocab, tokenizer());
+        Transformer transformer = new Transformer(checkpoint.toString());
+        return new TestModel(dir, transformer, new Tokenizer(vocab.toString(), VOCAB_SIZE));
+    }
+
+    /**
+     * Unloads the model and deletes its files.
+     */
+    void close() throws IOException {
+        transformer.close();
+        Files.deleteIfExists(dir.resolve("model.bin"));
+        Files.deleteIfExists(dir.resolve("tok.bin"));
+        Files.deleteIfExists(dir);
+    }
+
+    private static byte[] checkpoint() {
+        int headSize = DIM / N_HEADS;
+        int kvDim = N_KV_HEADS * headSize;
+        long floats = (long) VOCAB_SIZE * DIM // token_embedding_table, shared with the classifier
+                + (long) N_LAYERS * (2 * DIM + 2 * DIM * DIM + 2 * DIM * kvDim + 3 * DIM * HIDDEN_DIM) // layers
+                + DIM // rms_final_weight
+                + (long) SEQ_LEN * headSize; // freq_cis_real and freq_cis_imag
+        ByteBuffer buffer = ByteBuffer.allocate(7 * Integer.BYTES + (int) floats * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(DIM).putInt(HIDDEN_DIM).putInt(N_LAYERS).putInt(N_HEADS).putInt(N_KV_HEADS).putInt(VOCAB_SIZE).putInt(SEQ_LEN);
+        Random random = new Random(42);
+        for (long i = 0; i < floats; i++) {
+            buffer.putFloat((float) random.nextGaussian() * 0.5f);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] tokenizer() {
+        ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(8);
+        for (int i = 0; i < VOCAB_SIZE; i++) {
+            byte[] bytes = piece(i).getBytes(StandardCharsets.UTF_8);
+            buffer.putFloat(-i).putInt(bytes.length).put(bytes);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Returns the text of a token: unknown, BOS, EOS, then single characters.
+     */
+    static String piece(int token) {
+        return switch (token) {
+            case 0 -> "<unk>";
+            case 1 -> "\n<s>\n";
+            case 2 -> "\n</s>\n";
+            default -> String.valueOf((char) ('0' + token - 3));
+        };
+    }
+}